@@ -1,5 +1,19 @@
 package io.mudis.mudisclient.client;
 
+import io.mudis.mudisshared.model.Reply;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous client. Requests are pipelined on one connection and each returned future
+ * completes with the reply carrying that request's id.
+ * <p>
+ * Messages a subscription pushes ({@code PUSH} frames under the id of the request that opened it) go to
+ * the listener given with that request. Listeners run on the connection's event loop and must not block.
+ * Pushes no listener claims are offered to the {@link io.mudis.mudisclient.queue.MessageQueue}.
+ */
 public interface Client {
     void connect();
 
@@ -7,5 +21,141 @@ public interface Client {
 
     boolean isConnected();
 
-    void send(String msg);
+    /**
+     * Sends a raw command line, e.g. "PUBLISH news hello".
+     */
+    CompletableFuture<Reply> send(String msg);
+
+    CompletableFuture<Reply> publish(String channel, byte[] payload);
+
+    CompletableFuture<Reply> subscribe(String channel, String ds);
+
+    /**
+     * Subscribes and hands every message the subscription pushes, e.g. to a stream ({@code ()}), to
+     * {@code onPush} until the channel is unsubscribed.
+     */
+    CompletableFuture<Reply> subscribe(String channel, String ds, Consumer<Reply> onPush);
+
+    CompletableFuture<Reply> unsubscribe(String channel);
+
+    /**
+     * Subscribes to every channel matching the pattern, e.g. "orders.*.eu" or "orders.**".
+     */
+    CompletableFuture<Reply> psubscribe(String pattern, String ds);
+
+    /**
+     * Subscribes to a pattern and hands every message the subscription pushes to {@code onPush} until the
+     * pattern is unsubscribed.
+     */
+    CompletableFuture<Reply> psubscribe(String pattern, String ds, Consumer<Reply> onPush);
+
+    CompletableFuture<Reply> punsubscribe(String pattern);
+
+    /**
+     * Attaches to the durable subscription {@code name} on the channel, creating it if needed. Messages are
+     * then pushed as "<offset> <message>" from {@code from}, or from the last acknowledged offset when it is null.
+     */
+    CompletableFuture<Reply> dsubscribe(String channel, String name, Long from);
+
+    /**
+     * Attaches to a durable subscription and hands every pushed "<offset> <message>" to {@code onPush}
+     * until the subscription is deleted.
+     */
+    CompletableFuture<Reply> dsubscribe(String channel, String name, Long from, Consumer<Reply> onPush);
+
+    /**
+     * Acknowledges every message of the durable subscription up to and including the offset.
+     */
+    CompletableFuture<Reply> ack(String channel, String name, long offset);
+
+    /**
+     * Deletes the durable subscription.
+     */
+    CompletableFuture<Reply> dunsubscribe(String channel, String name);
+
+    CompletableFuture<Reply> show(String channel);
+
+    /**
+     * Requests up to {@code count} messages from {@code cursor} on. The reply body is the next cursor,
+     * a space and the page, e.g. "42 [a, b]".
+     */
+    CompletableFuture<Reply> show(String channel, long cursor, int count);
+
+    /**
+     * Requests the messages added since the previous call (at most {@code count}, 0 = all), in the
+     * same format as a page.
+     */
+    CompletableFuture<Reply> showNew(String channel, int count);
+
+    /**
+     * Removes and returns up to {@code count} of the oldest buffered messages as "[a, b]".
+     */
+    CompletableFuture<Reply> pop(String channel, int count);
+
+    /**
+     * Removes and returns every buffered message.
+     */
+    CompletableFuture<Reply> drain(String channel);
+
+    /**
+     * Lists this connection's subscriptions as "<channel> <data structure>" lines.
+     */
+    CompletableFuture<Reply> subscriptions();
+
+    /**
+     * Requests server statistics as "key:value" lines.
+     */
+    CompletableFuture<Reply> info();
+
+    /**
+     * Asks the server to save a snapshot; the reply comes once it is on disk.
+     */
+    CompletableFuture<Reply> snapshot();
+
+    /**
+     * Requests the cluster topology: the virtual node count, then one node per line. Build a
+     * {@link io.mudis.mudisshared.cluster.HashRing} from it to find the node owning a channel.
+     */
+    CompletableFuture<Reply> cluster();
+
+    /**
+     * Makes the server a replica of {@code leader} ("host:port"), or promotes it to leader if
+     * {@code leader} is "NO ONE".
+     */
+    CompletableFuture<Reply> replicaOf(String leader);
+
+    /**
+     * Reads a key's value, which is the reply body, or a warning if the key is absent.
+     */
+    CompletableFuture<Reply> get(String key);
+
+    /**
+     * Sets a key to a non-empty value, which may hold spaces but no line breaks.
+     */
+    CompletableFuture<Reply> set(String key, byte[] value);
+
+    /**
+     * Sets a key to a value that expires after {@code ttlMillis}.
+     */
+    CompletableFuture<Reply> set(String key, byte[] value, long ttlMillis);
+
+    /**
+     * Deletes keys; the reply body counts those that were present.
+     */
+    CompletableFuture<Reply> del(String... keys);
+
+    /**
+     * Reads several keys at once; the reply body has one line per key, empty for an absent one.
+     */
+    CompletableFuture<Reply> mget(String... keys);
+
+    /**
+     * Sets several keys at once, in the map's iteration order. Values may not hold whitespace.
+     */
+    CompletableFuture<Reply> mset(Map<String, String> entries);
+
+    /**
+     * Adds one to a key's integer value; the reply body is the new value.
+     */
+    CompletableFuture<Reply> incr(String key);
 }
@@ -1,22 +1,107 @@
 package io.mudis.mudisclient.client;
 
 import io.mudis.mudisclient.queue.MessageQueue;
+import io.mudis.mudisshared.model.Reply;
+import io.mudis.mudisshared.model.Status;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class ClientHandler extends SimpleChannelInboundHandler<String> {
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Completes the future of the request each reply answers. Messages pushed to a subscription go to the
+ * listener registered under the id of the request that opened it; anything else that matches no outstanding
+ * request is offered to the {@link MessageQueue}, and dropped if its subscribers are too far behind, so a
+ * slow consumer never stalls the event loop.
+ * A reply split into {@link Status#CONTINUE} frames is joined back together before it is delivered.
+ * <p>
+ * The pending and listener maps are only touched from the channel's event loop, so they need no
+ * synchronization.
+ */
+public class ClientHandler extends SimpleChannelInboundHandler<Reply> {
     private static final Logger Log = LoggerFactory.getLogger(ClientHandler.class);
     private final MessageQueue messageQueue;
+    private final IntObjectMap<CompletableFuture<Reply>> pending = new IntObjectHashMap<>();
+    private final IntObjectMap<StringBuilder> partial = new IntObjectHashMap<>();
+    private final IntObjectMap<Consumer<Reply>> listeners = new IntObjectHashMap<>();
 
     public ClientHandler(MessageQueue messageQueue) {
         this.messageQueue = messageQueue;
     }
 
+    void track(int requestId, CompletableFuture<Reply> future) {
+        pending.put(requestId, future);
+    }
+
+    /**
+     * Hands what the subscription opened by the request pushes to the listener, unless the request is refused.
+     */
+    void listen(int requestId, Consumer<Reply> listener) {
+        listeners.put(requestId, listener);
+    }
+
+    void forget(int requestId) {
+        listeners.remove(requestId);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Reply response) {
+        int requestId = response.requestId();
+        if (response.status() == Status.CONTINUE) {
+            StringBuilder body = partial.get(requestId);
+            if (body == null) {
+                partial.put(requestId, body = new StringBuilder());
+            }
+            body.append(response.body());
+            return;
+        }
+
+        StringBuilder head = partial.remove(requestId);
+        if (head != null) {
+            response = new Reply(requestId, response.status(), head.append(response.body()).toString());
+        }
+
+        CompletableFuture<Reply> future = pending.remove(response.requestId());
+        if (future != null) {
+            if (response.status() == Status.ERROR) {
+                listeners.remove(requestId);
+            }
+            future.complete(response);
+            return;
+        }
+
+        Consumer<Reply> listener = response.status() == Status.PUSH ? listeners.get(requestId) : null;
+        if (listener != null) {
+            try {
+                listener.accept(response);
+            } catch (RuntimeException e) {
+                Log.error("Push listener for request {} failed", requestId, e);
+            }
+        } else {
+            messageQueue.offer(response, (_, dropped) -> {
+                Log.debug("Message queue full, dropped reply to request {}", dropped.requestId());
+                return false;
+            });
+        }
+    }
+
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, String response) {
-        messageQueue.submit(response);
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (!pending.isEmpty()) {
+            Log.warn("Connection closed with {} request(s) in flight", pending.size());
+            var cause = new ClosedChannelException();
+            pending.values().forEach(future -> future.completeExceptionally(cause));
+            pending.clear();
+        }
+        partial.clear();
+        listeners.clear();
+        ctx.fireChannelInactive();
     }
 
     @Override
@@ -1,7 +1,12 @@
 package io.mudis.mudisclient.client;
 
 import io.mudis.mudisclient.codec.ClientCodec;
+import io.mudis.mudisclient.model.Request;
 import io.mudis.mudisclient.queue.MessageQueue;
+import io.mudis.mudisshared.model.Operation;
+import io.mudis.mudisshared.model.Reply;
+import io.mudis.mudisshared.model.Status;
+import io.mudis.mudisshared.protocol.Protocol;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
@@ -16,10 +21,31 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Netty-based client implementation for connecting to Mudis server.
+ * <p>
+ * Requests from any thread are queued and written by a single drain task on the channel's event loop,
+ * which flushes once per batch. The number of requests awaiting a reply is capped; beyond the cap new
+ * requests fail immediately instead of queueing without bound.
+ * <p>
+ * A push listener is registered with the handler by the same drain task that writes its request, so it is in
+ * place before anything can be pushed. Which request opened each listened-to subscription is remembered, so
+ * the listener is dropped once the subscription is ended or replaced.
  */
 @Component
 public class ClientImpl implements Client {
@@ -30,6 +56,13 @@ public class ClientImpl implements Client {
 
     private final MessageQueue messageQueue;
     private final MultiThreadIoEventLoopGroup workerGroup;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Queue<PendingRequest> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    // "SUBSCRIBE <channel>", "PSUBSCRIBE <pattern>" or "DSUBSCRIBE <channel> <name>" -> id of its request
+    private final Map<String, Integer> pushSubscriptions = new ConcurrentHashMap<>();
+    private final Semaphore inFlight;
+    private final int maxInFlight;
 
     @Value("${mudis.client.port:6379}")
     private int port;
@@ -39,8 +72,10 @@ public class ClientImpl implements Client {
     private volatile Channel channel;
 
     @Autowired
-    public ClientImpl(MessageQueue messageQueue) {
+    public ClientImpl(MessageQueue messageQueue, @Value("${mudis.client.max-in-flight:10000}") int maxInFlight) {
         this.messageQueue = messageQueue;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
         this.workerGroup = new MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory());
     }
 
@@ -82,20 +117,274 @@ public class ClientImpl implements Client {
     }
 
     @Override
-    public void send(String msg) {
+    public CompletableFuture<Reply> send(String msg) {
         if (msg == null || msg.trim().isEmpty()) {
             throw new IllegalArgumentException("Message cannot be null or empty");
         }
 
+        return submit(Request.parse(nextRequestId(), msg));
+    }
+
+    @Override
+    public CompletableFuture<Reply> publish(String channel, byte[] payload) {
+        return submit(new Request(nextRequestId(), Operation.PUBLISH, channel, payload));
+    }
+
+    @Override
+    public CompletableFuture<Reply> subscribe(String channel, String ds) {
+        return submit(new Request(nextRequestId(), Operation.SUBSCRIBE, channel, ds.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public CompletableFuture<Reply> subscribe(String channel, String ds, Consumer<Reply> onPush) {
+        var request = new Request(nextRequestId(), Operation.SUBSCRIBE, channel, ds.getBytes(StandardCharsets.UTF_8));
+        return listen("SUBSCRIBE " + channel, request, onPush);
+    }
+
+    @Override
+    public CompletableFuture<Reply> unsubscribe(String channel) {
+        return unlisten("SUBSCRIBE " + channel, submit(new Request(nextRequestId(), Operation.UNSUBSCRIBE, channel, null)));
+    }
+
+    @Override
+    public CompletableFuture<Reply> psubscribe(String pattern, String ds) {
+        return submit(new Request(nextRequestId(), Operation.PSUBSCRIBE, pattern, ds.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public CompletableFuture<Reply> psubscribe(String pattern, String ds, Consumer<Reply> onPush) {
+        var request = new Request(nextRequestId(), Operation.PSUBSCRIBE, pattern, ds.getBytes(StandardCharsets.UTF_8));
+        return listen("PSUBSCRIBE " + pattern, request, onPush);
+    }
+
+    @Override
+    public CompletableFuture<Reply> punsubscribe(String pattern) {
+        return unlisten("PSUBSCRIBE " + pattern, submit(new Request(nextRequestId(), Operation.PUNSUBSCRIBE, pattern, null)));
+    }
+
+    @Override
+    public CompletableFuture<Reply> dsubscribe(String channel, String name, Long from) {
+        String argument = from == null ? name : name + " " + from;
+        return submit(new Request(nextRequestId(), Operation.DSUBSCRIBE, channel, argument.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public CompletableFuture<Reply> dsubscribe(String channel, String name, Long from, Consumer<Reply> onPush) {
+        String argument = from == null ? name : name + " " + from;
+        var request = new Request(nextRequestId(), Operation.DSUBSCRIBE, channel, argument.getBytes(StandardCharsets.UTF_8));
+        return listen("DSUBSCRIBE " + channel + " " + name, request, onPush);
+    }
+
+    @Override
+    public CompletableFuture<Reply> ack(String channel, String name, long offset) {
+        byte[] argument = (name + " " + offset).getBytes(StandardCharsets.UTF_8);
+        return submit(new Request(nextRequestId(), Operation.ACK, channel, argument));
+    }
+
+    @Override
+    public CompletableFuture<Reply> dunsubscribe(String channel, String name) {
+        var request = new Request(nextRequestId(), Operation.DUNSUBSCRIBE, channel, name.getBytes(StandardCharsets.UTF_8));
+        return unlisten("DSUBSCRIBE " + channel + " " + name, submit(request));
+    }
+
+    @Override
+    public CompletableFuture<Reply> show(String channel) {
+        return submit(new Request(nextRequestId(), Operation.SHOW, channel, null));
+    }
+
+    @Override
+    public CompletableFuture<Reply> show(String channel, long cursor, int count) {
+        byte[] argument = (cursor + " " + count).getBytes(StandardCharsets.US_ASCII);
+        return submit(new Request(nextRequestId(), Operation.SHOW, channel, argument));
+    }
+
+    @Override
+    public CompletableFuture<Reply> showNew(String channel, int count) {
+        byte[] argument = ("NEW " + count).getBytes(StandardCharsets.US_ASCII);
+        return submit(new Request(nextRequestId(), Operation.SHOW, channel, argument));
+    }
+
+    @Override
+    public CompletableFuture<Reply> pop(String channel, int count) {
+        byte[] argument = Integer.toString(count).getBytes(StandardCharsets.US_ASCII);
+        return submit(new Request(nextRequestId(), Operation.POP, channel, argument));
+    }
+
+    @Override
+    public CompletableFuture<Reply> drain(String channel) {
+        return submit(new Request(nextRequestId(), Operation.DRAIN, channel, null));
+    }
+
+    @Override
+    public CompletableFuture<Reply> subscriptions() {
+        return submit(new Request(nextRequestId(), Operation.SUBSCRIPTIONS, "", null));
+    }
+
+    @Override
+    public CompletableFuture<Reply> info() {
+        return submit(new Request(nextRequestId(), Operation.INFO, "", null));
+    }
+
+    @Override
+    public CompletableFuture<Reply> snapshot() {
+        return submit(new Request(nextRequestId(), Operation.SNAPSHOT, "", null));
+    }
+
+    @Override
+    public CompletableFuture<Reply> cluster() {
+        return submit(new Request(nextRequestId(), Operation.CLUSTER, "", null));
+    }
+
+    @Override
+    public CompletableFuture<Reply> replicaOf(String leader) {
+        return submit(new Request(nextRequestId(), Operation.REPLICAOF, leader, null));
+    }
+
+    @Override
+    public CompletableFuture<Reply> get(String key) {
+        return submit(new Request(nextRequestId(), Operation.GET, key, null));
+    }
+
+    @Override
+    public CompletableFuture<Reply> set(String key, byte[] value) {
+        return submit(new Request(nextRequestId(), Operation.SET, key, value));
+    }
+
+    @Override
+    public CompletableFuture<Reply> set(String key, byte[] value, long ttlMillis) {
+        byte[] option = (" PX " + ttlMillis).getBytes(StandardCharsets.US_ASCII);
+        byte[] argument = Arrays.copyOf(value, value.length + option.length);
+        System.arraycopy(option, 0, argument, value.length, option.length);
+        return submit(new Request(nextRequestId(), Operation.SET, key, argument));
+    }
+
+    @Override
+    public CompletableFuture<Reply> del(String... keys) {
+        return submit(new Request(nextRequestId(), Operation.DEL, String.join(" ", keys), null));
+    }
+
+    @Override
+    public CompletableFuture<Reply> mget(String... keys) {
+        return submit(new Request(nextRequestId(), Operation.MGET, String.join(" ", keys), null));
+    }
+
+    @Override
+    public CompletableFuture<Reply> mset(Map<String, String> entries) {
+        StringJoiner pairs = new StringJoiner(" ");
+        entries.forEach((key, value) -> pairs.add(key).add(value));
+        return submit(new Request(nextRequestId(), Operation.MSET, pairs.toString(), null));
+    }
+
+    @Override
+    public CompletableFuture<Reply> incr(String key) {
+        return submit(new Request(nextRequestId(), Operation.INCR, key, null));
+    }
+
+    /**
+     * Sends a request opening a subscription whose pushes go to {@code onPush}, replacing the listener of an
+     * earlier request for the same subscription.
+     */
+    private CompletableFuture<Reply> listen(String subscription, Request request, Consumer<Reply> onPush) {
+        var reply = submit(request, onPush);
+        if (reply.isCompletedExceptionally()) {
+            return reply;
+        }
+
+        int requestId = request.requestId();
+        Integer replaced = pushSubscriptions.put(subscription, requestId);
+        if (replaced != null) {
+            forget(replaced);
+        }
+        return reply.whenComplete((response, _) -> {
+            if (response == null || response.status() == Status.ERROR) {
+                pushSubscriptions.remove(subscription, requestId);
+            }
+        });
+    }
+
+    /**
+     * Drops the listener of the subscription once the request ending it succeeds.
+     */
+    private CompletableFuture<Reply> unlisten(String subscription, CompletableFuture<Reply> reply) {
+        return reply.whenComplete((response, _) -> {
+            if (response != null && response.status() != Status.ERROR) {
+                Integer requestId = pushSubscriptions.remove(subscription);
+                if (requestId != null) {
+                    forget(requestId);
+                }
+            }
+        });
+    }
+
+    private void forget(int requestId) {
+        Channel ch = channel;
+        if (ch != null) {
+            ch.eventLoop().execute(() -> {
+                ClientHandler handler = ch.pipeline().get(ClientHandler.class);
+                if (handler != null) {
+                    handler.forget(requestId);
+                }
+            });
+        }
+    }
+
+    private CompletableFuture<Reply> submit(Request request) {
+        return submit(request, null);
+    }
+
+    private CompletableFuture<Reply> submit(Request request, Consumer<Reply> onPush) {
         if (!isConnected()) {
             throw new IllegalStateException("Not connected to server");
         }
 
-        channel.writeAndFlush(msg).addListener(future -> {
-            if (!future.isSuccess()) {
-                Log.error("Failed to send message: {}", msg, future.cause());
+        if (!inFlight.tryAcquire()) {
+            return CompletableFuture.failedFuture(
+                    new RejectedExecutionException("Too many requests in flight (max " + maxInFlight + ")"));
+        }
+
+        var future = new CompletableFuture<Reply>();
+        future.whenComplete((_, _) -> inFlight.release());
+
+        outbound.offer(new PendingRequest(request, future, onPush));
+        if (drainScheduled.compareAndSet(false, true)) {
+            channel.eventLoop().execute(this::drain);
+        }
+        return future;
+    }
+
+    /**
+     * Writes every queued request and flushes once. Runs on the channel's event loop.
+     */
+    private void drain() {
+        drainScheduled.set(false);
+
+        Channel ch = channel;
+        ClientHandler handler = ch.pipeline().get(ClientHandler.class);
+        int written = 0;
+
+        PendingRequest pending;
+        while ((pending = outbound.poll()) != null) {
+            if (handler == null || !ch.isActive()) {
+                pending.future().completeExceptionally(new IllegalStateException("Not connected to server"));
+                continue;
             }
-        });
+            if (pending.onPush() != null) {
+                handler.listen(pending.request().requestId(), pending.onPush());
+            }
+            handler.track(pending.request().requestId(), pending.future());
+            ch.write(pending.request(), ch.voidPromise());
+            written++;
+        }
+
+        if (written > 0) {
+            ch.flush();
+        }
+    }
+
+    private int nextRequestId() {
+        int id = nextRequestId.incrementAndGet();
+        // 0 is reserved for frames that do not answer a request; skip it when the counter wraps
+        return id != Protocol.NO_REQUEST_ID ? id : nextRequestId.incrementAndGet();
     }
 
     @Override
@@ -147,6 +436,9 @@ public class ClientImpl implements Client {
         }
     }
 
+    private record PendingRequest(Request request, CompletableFuture<Reply> future, Consumer<Reply> onPush) {
+    }
+
     private void sleep() {
         try {
             Thread.sleep((long) ClientImpl.RETRY_DELAY_MS);
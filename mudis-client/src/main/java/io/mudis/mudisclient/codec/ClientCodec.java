@@ -1,61 +1,63 @@
 package io.mudis.mudisclient.codec;
 
-import io.mudis.mudisshared.model.Operation;
+import io.mudis.mudisclient.model.Request;
+import io.mudis.mudisshared.model.Reply;
+import io.mudis.mudisshared.model.Status;
+import io.mudis.mudisshared.protocol.Protocol;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.List;
 
 /**
- * Codec for encoding client commands and decoding server responses.
- * Protocol: [operation_ordinal:int][args_length:int][args:bytes]
+ * Codec for encoding client requests and decoding server responses.
+ * Protocol: see {@link Protocol}
  */
-public class ClientCodec extends ByteToMessageCodec<String> {
+public class ClientCodec extends ByteToMessageCodec<Request> {
     private static final Logger Log = LoggerFactory.getLogger(ClientCodec.class);
-    private static final int MIN_HEADER_SIZE = 4; // For response length
 
     @Override
-    protected void encode(ChannelHandlerContext ctx, String command, ByteBuf out) {
-        String[] parts = command.trim().split("\\s+");
-
-        if (parts.length == 0 || parts[0].isEmpty()) {
-            throw new IllegalArgumentException("Empty operation");
+    protected void encode(ChannelHandlerContext ctx, Request request, ByteBuf out) {
+        int lengthIndex = Protocol.writeRequestHeader(out, request.operation(), request.requestId());
+        int length = ByteBufUtil.writeUtf8(out, request.channel());
+
+        byte[] argument = request.argument();
+        if (argument != null) {
+            out.writeByte(' ');
+            out.writeBytes(argument);
+            length += 1 + argument.length;
         }
 
-        Operation op = parseOperation(parts[0]);
-        byte[] argsBytes = getArgumentsBytes(parts);
-
-        out.writeInt(op.ordinal());
-        out.writeInt(argsBytes.length);
-        out.writeBytes(argsBytes);
+        out.setInt(lengthIndex, length);
     }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
-        if (in.readableBytes() < MIN_HEADER_SIZE) {
+        if (in.readableBytes() < Protocol.HEADER_SIZE) {
             return;
         }
 
         in.markReaderIndex();
 
+        Protocol.checkVersion(in.readByte());
+        Status status = Status.fromOrdinal(in.readUnsignedByte());
+        int requestId = in.readInt();
         int size = in.readInt();
-        if (size < 0) {
-            throw new IllegalStateException("Negative response size: " + size);
-        }
+        Protocol.checkLength(size);
 
         if (in.readableBytes() < size) {
             in.resetReaderIndex();
             return;
         }
 
-        byte[] response = new byte[size];
-        in.readBytes(response);
-        out.add(new String(response, StandardCharsets.UTF_8));
+        String body = in.toString(in.readerIndex(), size, StandardCharsets.UTF_8);
+        in.skipBytes(size);
+        out.add(new Reply(requestId, status, body));
     }
 
     @Override
@@ -63,25 +65,4 @@ public class ClientCodec extends ByteToMessageCodec<String> {
         Log.error("Codec error", cause);
         ctx.close();
     }
-
-    private Operation parseOperation(String opName) {
-        try {
-            return Operation.valueOf(opName.toUpperCase());
-        } catch (IllegalArgumentException e) {
-            throw new IllegalArgumentException(
-                    "Unknown operation: " + opName + ". Valid operations: " + Operation.asString(), e
-            );
-        }
-    }
-
-    private byte[] getArgumentsBytes(String[] parts) {
-        if (parts.length < 2) {
-            return new byte[0];
-        }
-
-        return String.join(
-                " ",
-                Arrays.copyOfRange(parts, 1, parts.length)
-        ).getBytes();
-    }
 }
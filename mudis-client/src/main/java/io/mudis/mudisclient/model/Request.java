@@ -0,0 +1,42 @@
+package io.mudis.mudisclient.model;
+
+import io.mudis.mudisshared.model.Operation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Request addressed to a channel. The argument (payload or data structure) is optional
+ * and sent after the channel name, separated by a single space.
+ */
+public record Request(int requestId, Operation operation, String channel, byte[] argument) {
+
+    /**
+     * Parses a raw command line such as "PUBLISH news hello world".
+     */
+    public static Request parse(int requestId, String line) {
+        String[] parts = line.trim().split("\\s+");
+
+        if (parts.length == 0 || parts[0].isEmpty()) {
+            throw new IllegalArgumentException("Empty operation");
+        }
+
+        Operation op = parseOperation(parts[0]);
+        String channel = parts.length > 1 ? parts[1] : "";
+        byte[] argument = parts.length > 2
+                ? String.join(" ", Arrays.copyOfRange(parts, 2, parts.length)).getBytes(StandardCharsets.UTF_8)
+                : null;
+
+        return new Request(requestId, op, channel, argument);
+    }
+
+    private static Operation parseOperation(String opName) {
+        try {
+            return Operation.valueOf(opName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    "Unknown operation: " + opName + ". Valid operations: " + Operation.asString(), e
+            );
+        }
+    }
+}
@@ -1,9 +1,10 @@
 package io.mudis.mudisclient.queue;
 
+import io.mudis.mudisshared.model.Reply;
 import org.springframework.stereotype.Service;
 
 import java.util.concurrent.SubmissionPublisher;
 
 @Service
-public class MessageQueue extends SubmissionPublisher<String> {
+public class MessageQueue extends SubmissionPublisher<Reply> {
 }
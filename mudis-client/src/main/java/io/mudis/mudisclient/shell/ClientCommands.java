@@ -1,13 +1,20 @@
 package io.mudis.mudisclient.shell;
 
 import io.mudis.mudisclient.client.Client;
+import io.mudis.mudisshared.cluster.HashRing;
+import io.mudis.mudisshared.model.Reply;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.shell.core.command.annotation.Argument;
 import org.springframework.shell.core.command.annotation.Command;
 import org.springframework.stereotype.Component;
 
+import java.util.concurrent.TimeUnit;
+
 @Component
 @SuppressWarnings("unused")
 public class ClientCommands {
+    // A snapshot writes every buffered message, so it may take well beyond a normal reply
+    private static final int SNAPSHOT_TIMEOUT_SECONDS = 120;
     private final Client client;
 
     @Autowired
@@ -33,4 +40,80 @@ public class ClientCommands {
 
         return result.toString();
     }
+
+    @Command(name = "INFO", description = "Show server storage and memory statistics", group = "Client")
+    public String info() {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        try {
+            Reply reply = client.info().get(5, TimeUnit.SECONDS);
+            return reply.isOk() ? reply.body() : reply.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR: interrupted";
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    @Command(name = "CLUSTER", description = "List the cluster's nodes, or show which node owns a channel", group = "Client")
+    public String cluster(@Argument(index = 0, description = "Channel name", defaultValue = "") String channel) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        try {
+            Reply reply = client.cluster().get(5, TimeUnit.SECONDS);
+            if (!reply.isOk()) {
+                return reply.toString();
+            }
+            HashRing ring = HashRing.parse(reply.body());
+            if (channel.isBlank()) {
+                return String.join("\n", ring.nodes());
+            }
+            return channel + " is owned by " + ring.ownerOf(channel);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR: interrupted";
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    @Command(name = "REPLICAOF", description = "Make the server a replica of host:port, or promote it with NO ONE", group = "Client")
+    public String replicaOf(@Argument(index = 0, description = "Leader host:port, or NO") String leader,
+                            @Argument(index = 1, description = "ONE, after NO", defaultValue = "") String one) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        try {
+            Reply reply = client.replicaOf(one.isBlank() ? leader : leader + " " + one).get(5, TimeUnit.SECONDS);
+            return reply.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR: interrupted";
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    @Command(name = "SNAPSHOT", description = "Save a snapshot of every buffered subscription on the server", group = "Client")
+    public String snapshot() {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        try {
+            Reply reply = client.snapshot().get(SNAPSHOT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return reply.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR: interrupted";
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
 }
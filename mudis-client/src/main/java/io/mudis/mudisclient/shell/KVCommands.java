@@ -1,8 +1,130 @@
 package io.mudis.mudisclient.shell;
 
+import io.mudis.mudisclient.client.Client;
+import io.mudis.mudisshared.model.Reply;
+import jakarta.validation.constraints.NotBlank;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.shell.core.command.annotation.Argument;
+import org.springframework.shell.core.command.annotation.Command;
 import org.springframework.stereotype.Component;
 
-@SuppressWarnings("unused")
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Shell commands for the server's key-value store. Commands taking several keys take them as one quoted,
+ * space-separated argument.
+ */
 @Component
+@SuppressWarnings("unused")
 public class KVCommands {
+    private static final int DEFAULT_RESPONSE_TIMEOUT_SECONDS = 5;
+    private final Client client;
+
+    @Autowired
+    public KVCommands(Client client) {
+        this.client = client;
+    }
+
+    @Command(name = "GET", description = "Read a key's value", group = "Key-Value")
+    public String get(@NotBlank @Argument(index = 0, description = "Key") String key) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        return awaitServerResponse(client.get(key), r -> r.isOk() ? r.body() : r.toString());
+    }
+
+    @Command(name = "SET", description = "Set a key's value", group = "Key-Value")
+    public String set(@NotBlank @Argument(index = 0, description = "Key") String key,
+                      @NotBlank @Argument(index = 1, description = "Value") String value,
+                      @Argument(index = 2, description = "Expiry, e.g. \"EX 60\" or \"PX 1500\"",
+                              defaultValue = "") String expiry) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        String cleanExpiry = expiry.replace("\"", "").trim();
+        String cleanValue = value.replace("\"", "") + (cleanExpiry.isEmpty() ? "" : " " + cleanExpiry);
+        return awaitServerResponse(client.set(key, cleanValue.getBytes(StandardCharsets.UTF_8)), Reply::toString);
+    }
+
+    @Command(name = "DEL", description = "Delete keys", group = "Key-Value")
+    public String del(@NotBlank @Argument(index = 0, description = "Keys, e.g. \"a b c\"") String keys) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        return awaitServerResponse(client.del(splitKeys(keys)), r -> r.isOk() ? "Deleted " + r.body() + " key(s)" : r.toString());
+    }
+
+    @Command(name = "MGET", description = "Read several keys at once", group = "Key-Value")
+    public String mget(@NotBlank @Argument(index = 0, description = "Keys, e.g. \"a b c\"") String keys) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        String[] names = splitKeys(keys);
+        return awaitServerResponse(client.mget(names), r -> {
+            if (!r.isOk()) {
+                return r.toString();
+            }
+            String[] values = r.body().split("\n", -1);
+            var result = new StringBuilder();
+            for (int i = 0; i < names.length; i++) {
+                String value = i < values.length ? values[i] : "";
+                result.append(i > 0 ? "\n" : "").append(names[i]).append(": ").append(value.isEmpty() ? "(nil)" : value);
+            }
+            return result.toString();
+        });
+    }
+
+    @Command(name = "MSET", description = "Set several keys at once", group = "Key-Value")
+    public String mset(@NotBlank @Argument(index = 0, description = "Key value pairs, e.g. \"a 1 b 2\"") String pairs) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        String[] tokens = splitKeys(pairs);
+        if (tokens.length % 2 != 0) {
+            return "ERROR: Every key needs a value";
+        }
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < tokens.length; i += 2) {
+            entries.put(tokens[i], tokens[i + 1]);
+        }
+        return awaitServerResponse(client.mset(entries), Reply::toString);
+    }
+
+    @Command(name = "INCR", description = "Add one to a key's integer value", group = "Key-Value")
+    public String incr(@NotBlank @Argument(index = 0, description = "Key") String key) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        return awaitServerResponse(client.incr(key), r -> r.isOk() ? r.body() : r.toString());
+    }
+
+    private static String[] splitKeys(String keys) {
+        return keys.replace("\"", "").trim().split("\\s+");
+    }
+
+    private String awaitServerResponse(CompletableFuture<Reply> reply, Function<Reply, String> formatter) {
+        try {
+            return formatter.apply(reply.get(DEFAULT_RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        } catch (TimeoutException e) {
+            return "ERROR: timeout waiting for server response";
+        } catch (ExecutionException e) {
+            return "ERROR: " + e.getCause().getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR: interrupted";
+        }
+    }
 }
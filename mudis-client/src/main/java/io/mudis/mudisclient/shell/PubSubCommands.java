@@ -1,48 +1,59 @@
 package io.mudis.mudisclient.shell;
 
 import io.mudis.mudisclient.client.Client;
-import io.mudis.mudisclient.queue.MessageQueue;
+import io.mudis.mudisshared.model.Reply;
 import jakarta.validation.constraints.NotBlank;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.shell.core.command.annotation.Argument;
 import org.springframework.shell.core.command.annotation.Command;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.StringJoiner;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Flow;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Shell commands for pub/sub operations.
+ * <p>
+ * Messages pushed to stream and durable subscriptions are collected as they arrive, the newest
+ * {@value #MAX_PUSHED} kept, and shown by PUSHED.
  */
 @Component
 @SuppressWarnings("unused")
 public class PubSubCommands {
     private static final int DEFAULT_RESPONSE_TIMEOUT_SECONDS = 5;
-    private final MessageQueue messageQueue;
+    private static final int MAX_PUSHED = 1000;
     private final Client client;
+    private final Deque<String> pushed = new ArrayDeque<>();
 
     @Autowired
-    public PubSubCommands(Client client, MessageQueue messageQueue) {
+    public PubSubCommands(Client client) {
         this.client = client;
-        this.messageQueue = messageQueue;
     }
 
     @Command(name = "PUBLISH",
             description = "Publish a message to a channel",
             group = "Pub/Sub")
     public String publish(@NotBlank @Argument(index = 0, description = "Channel name") String channel,
-                          @NotBlank @Argument(index = 1, description = "Message to publish") String message) {
+                          @NotBlank @Argument(index = 1, description = "Message to publish") String message,
+                          @Argument(index = 2, description = "Schedule, e.g. \"DELAY 5000\" or \"AT 1767225600000\"",
+                                  defaultValue = "") String schedule) {
         if (!client.isConnected()) {
             return "ERROR: Client is not connected. Run 'start' first.";
         }
 
-        String cleanMessage = message.replace("\"", "");
-        client.send("PUBLISH " + channel + " " + cleanMessage);
+        String cleanSchedule = schedule.replace("\"", "").trim();
+        String cleanMessage = message.replace("\"", "") + (cleanSchedule.isEmpty() ? "" : " " + cleanSchedule);
+        var reply = client.publish(channel, cleanMessage.getBytes(StandardCharsets.UTF_8));
 
-        return awaitServerResponse("Message sent");
+        return awaitServerResponse("Message sent", reply, Reply::toString);
     }
 
     @Command(name = "SUBSCRIBE",
@@ -54,8 +65,12 @@ public class PubSubCommands {
                     description = "Channel name") String channel,
             @NotBlank @Argument(
                     index = 1,
-                    description = "Data structure: [] (queue), #{} (set)",
-                    defaultValue = "[]") String ds
+                    description = "Data structure: [] (queue), #{} (set), () (stream)",
+                    defaultValue = "[]") String ds,
+            @Argument(
+                    index = 2,
+                    description = "Limits and group, e.g. \"MAXLEN 1000 MAXBYTES 65536 REJECT MAXAGE 60000 GROUP workers HASH\"",
+                    defaultValue = "") String limits
     ) {
         if (!client.isConnected()) {
             return "ERROR: Client is not connected. Run 'start' first.";
@@ -63,13 +78,16 @@ public class PubSubCommands {
 
         ds = validateDataStructure(ds);
         if (ds == null) {
-            return "ERROR: Invalid data structure. Use [] for queue, #{} for set.";
+            return "ERROR: Invalid data structure. Use [] for queue, #{} for set, () for stream.";
         }
 
-        String command = "SUBSCRIBE " + channel + " " + ds;
-        client.send(command);
+        String cleanLimits = limits.replace("\"", "").trim();
+        String argument = cleanLimits.isEmpty() ? ds : ds + " " + cleanLimits;
+        var reply = ds.equals("()")
+                ? client.subscribe(channel, argument, collect(channel))
+                : client.subscribe(channel, argument);
 
-        return awaitServerResponse("Subscription request sent");
+        return awaitServerResponse("Subscription request sent", reply, Reply::toString);
     }
 
     @Command(name = "UNSUBSCRIBE",
@@ -81,14 +99,155 @@ public class PubSubCommands {
             return "ERROR: Client is not connected. Run 'start' first.";
         }
 
-        client.send("UNSUBSCRIBE " + channel);
-        return awaitServerResponse("Unsubscribe request sent");
+        var reply = client.unsubscribe(channel);
+        return awaitServerResponse("Unsubscribe request sent", reply, Reply::toString);
+    }
+
+    @Command(name = "PSUBSCRIBE",
+            description = "Subscribe to every channel matching a pattern, e.g. orders.*.eu or orders.**",
+            group = "Pub/Sub")
+    public String psubscribe(
+            @NotBlank @Argument(
+                    index = 0,
+                    description = "Channel pattern") String pattern,
+            @NotBlank @Argument(
+                    index = 1,
+                    description = "Data structure: [] (queue), #{} (set), () (stream)",
+                    defaultValue = "[]") String ds,
+            @Argument(
+                    index = 2,
+                    description = "Limits and group, e.g. \"MAXLEN 1000 MAXBYTES 65536 REJECT MAXAGE 60000 GROUP workers HASH\"",
+                    defaultValue = "") String limits
+    ) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        ds = validateDataStructure(ds);
+        if (ds == null) {
+            return "ERROR: Invalid data structure. Use [] for queue, #{} for set, () for stream.";
+        }
+
+        String cleanLimits = limits.replace("\"", "").trim();
+        String argument = cleanLimits.isEmpty() ? ds : ds + " " + cleanLimits;
+        var reply = ds.equals("()")
+                ? client.psubscribe(pattern, argument, collect(pattern))
+                : client.psubscribe(pattern, argument);
+
+        return awaitServerResponse("Subscription request sent", reply, Reply::toString);
+    }
+
+    @Command(name = "PUNSUBSCRIBE",
+            description = "Unsubscribe from a channel pattern",
+            group = "Pub/Sub")
+    public String punsubscribe(
+            @NotBlank @Argument(index = 0, description = "Channel pattern") String pattern) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        var reply = client.punsubscribe(pattern);
+        return awaitServerResponse("Unsubscribe request sent", reply, Reply::toString);
+    }
+
+    @Command(name = "DSUBSCRIBE",
+            description = "Attach to a durable subscription, replaying from its last acknowledged or a given offset",
+            group = "Pub/Sub")
+    public String dsubscribe(
+            @NotBlank @Argument(index = 0, description = "Channel name") String channel,
+            @NotBlank @Argument(index = 1, description = "Subscription name") String name,
+            @Argument(index = 2, description = "Offset to replay from", defaultValue = "") String from) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        Long offset;
+        try {
+            offset = from.isBlank() ? null : Long.parseLong(from.trim());
+        } catch (NumberFormatException e) {
+            return "ERROR: Offset must be a number";
+        }
+        var reply = client.dsubscribe(channel, name, offset, collect(channel + " " + name));
+        return awaitServerResponse("Subscription request sent", reply, Reply::toString);
+    }
+
+    @Command(name = "ACK",
+            description = "Acknowledge a durable subscription's messages up to an offset",
+            group = "Pub/Sub")
+    public String ack(@NotBlank @Argument(index = 0, description = "Channel name") String channel,
+                      @NotBlank @Argument(index = 1, description = "Subscription name") String name,
+                      @NotBlank @Argument(index = 2, description = "Last processed offset") String offset) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        long acknowledged;
+        try {
+            acknowledged = Long.parseLong(offset.trim());
+        } catch (NumberFormatException e) {
+            return "ERROR: Offset must be a number";
+        }
+        var reply = client.ack(channel, name, acknowledged);
+        return awaitServerResponse("", reply, Reply::toString);
+    }
+
+    @Command(name = "DUNSUBSCRIBE",
+            description = "Delete a durable subscription",
+            group = "Pub/Sub")
+    public String dunsubscribe(@NotBlank @Argument(index = 0, description = "Channel name") String channel,
+                               @NotBlank @Argument(index = 1, description = "Subscription name") String name) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        var reply = client.dunsubscribe(channel, name);
+        return awaitServerResponse("Unsubscribe request sent", reply, Reply::toString);
+    }
+
+    @Command(name = "SUBSCRIPTIONS",
+            description = "List the channels this client is subscribed to",
+            group = "Pub/Sub")
+    public String subscriptions() {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
+
+        var reply = client.subscriptions();
+        return awaitServerResponse("", reply, r -> !r.isOk() ? r.toString() : r.body().isEmpty() ? "No subscriptions" : r.body());
+    }
+
+    @Command(name = "PUSHED",
+            description = "Show and clear the messages pushed to stream and durable subscriptions",
+            group = "Pub/Sub")
+    public String pushed() {
+        StringJoiner lines = new StringJoiner("\n");
+        synchronized (pushed) {
+            pushed.forEach(lines::add);
+            pushed.clear();
+        }
+        return lines.length() == 0 ? "No pushed messages" : lines.toString();
+    }
+
+    /**
+     * Listener collecting what a subscription pushes as "<source> <message>" lines. It runs on the
+     * client's event loop, so it only appends.
+     */
+    private Consumer<Reply> collect(String source) {
+        return push -> {
+            synchronized (pushed) {
+                if (pushed.size() == MAX_PUSHED) {
+                    pushed.removeFirst();
+                }
+                pushed.addLast(source + " " + push.body());
+            }
+        };
     }
 
     private String validateDataStructure(String ds) {
         return switch (ds.trim()) {
             case "[]" -> "[]";
             case "#{}" -> "#{}";
+            case "()" -> "()";
             default -> null;
         };
     }
@@ -96,67 +255,74 @@ public class PubSubCommands {
     @Command(name = "SHOW",
             description = "Show published data for a subscriber local channel",
             group = "Pub/Sub")
-    public String show(@NotBlank @Argument(index = 0, description = "Channel name") String channel) {
+    public String show(@NotBlank @Argument(index = 0, description = "Channel name") String channel,
+                       @Argument(index = 1,
+                               description = "Cursor to page from, or NEW for messages since the last NEW read",
+                               defaultValue = "") String from,
+                       @Argument(index = 2, description = "Page size, 0 for no limit", defaultValue = "") String count) {
         if (!client.isConnected()) {
             return "ERROR: Client is not connected. Run 'start' first.";
         }
 
-        client.send("SHOW " + channel);
-        return awaitServerResponse("");
+        CompletableFuture<Reply> reply;
+        try {
+            int size = count.isBlank() ? (from.equalsIgnoreCase("NEW") ? 0 : 100) : Integer.parseInt(count.trim());
+            if (from.isBlank()) {
+                reply = client.show(channel);
+            } else if (from.equalsIgnoreCase("NEW")) {
+                reply = client.showNew(channel, size);
+            } else {
+                reply = client.show(channel, Long.parseLong(from.trim()), size);
+            }
+        } catch (NumberFormatException e) {
+            return "ERROR: Cursor and count must be numbers";
+        }
+        return awaitServerResponse("", reply, r -> r.isOk() ? r.body() : r.toString());
     }
 
-    private String awaitServerResponse(String prefix) {
-        var messages = new StringBuilder();
-        var future = new CompletableFuture<Void>();
-        var counter = new AtomicInteger(1);
-
-        if (!prefix.isBlank()) {
-            messages.append("\n");
+    @Command(name = "POP",
+            description = "Remove and show the oldest messages of a subscriber local channel",
+            group = "Pub/Sub")
+    public String pop(@NotBlank @Argument(index = 0, description = "Channel name") String channel,
+                      @Argument(index = 1, description = "Number of messages to remove", defaultValue = "1") String count) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
         }
 
-        Flow.Subscriber<String> subscriber = new Flow.Subscriber<>() {
-            private Flow.Subscription subscription;
-
-            @Override
-            public void onSubscribe(Flow.Subscription subscription) {
-                this.subscription = subscription;
-                subscription.request(1);
-            }
-
-            @Override
-            public void onNext(String item) {
-                if (counter.get() == 1) {
-                    messages.append(item);
-                } else {
-                    messages.append(item).append("\n");
-                }
-
-                if (counter.incrementAndGet() > 1) {
-                    subscription.cancel();
-                    future.complete(null);
-                }
-            }
+        int size;
+        try {
+            size = Integer.parseInt(count.trim());
+        } catch (NumberFormatException e) {
+            return "ERROR: Count must be a number";
+        }
+        var reply = client.pop(channel, size);
+        return awaitServerResponse("", reply, r -> r.isOk() ? r.body() : r.toString());
+    }
 
-            @Override
-            public void onError(Throwable throwable) {
-                future.completeExceptionally(throwable);
-            }
+    @Command(name = "DRAIN",
+            description = "Remove and show every message of a subscriber local channel",
+            group = "Pub/Sub")
+    public String drain(@NotBlank @Argument(index = 0, description = "Channel name") String channel) {
+        if (!client.isConnected()) {
+            return "ERROR: Client is not connected. Run 'start' first.";
+        }
 
-            @Override
-            public void onComplete() {
-                future.complete(null);
-            }
-        };
+        var reply = client.drain(channel);
+        return awaitServerResponse("", reply, r -> r.isOk() ? r.body() : r.toString());
+    }
 
-        messageQueue.subscribe(subscriber);
+    private String awaitServerResponse(String prefix, CompletableFuture<Reply> reply, Function<Reply, String> formatter) {
+        String separator = prefix.isBlank() ? "" : "\n";
 
         try {
-            future.get(DEFAULT_RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-            return prefix + messages;
+            return prefix + separator + formatter.apply(reply.get(DEFAULT_RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS));
         } catch (TimeoutException e) {
             return prefix + " (timeout waiting for server response)";
-        } catch (Exception e) {
-            return prefix + " (error: " + e.getMessage() + ")";
+        } catch (ExecutionException e) {
+            return prefix + " (error: " + e.getCause().getMessage() + ")";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return prefix + " (interrupted)";
         }
     }
 }
@@ -0,0 +1,141 @@
+package io.mudis.mudisserver.pubsub;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.lang.ref.Reference;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Compares {@link MessageSet} with the {@code LinkedHashSet} it replaced for SET subscriptions: heap bytes
+ * per entry, and time per add of a new message, per add of an equal copy (rejected as a duplicate) and per
+ * entry iterated.
+ * <p>
+ * Messages are distinct 14-byte heap buffers, added in a shuffled order. Memory is the growth of the used
+ * heap once the filled set is built, with the messages themselves allocated beforehand, so it counts only
+ * the set's own structure. Run it with {@code mvn -B -Pbench -pl mudis-server -am process-classes}, which
+ * forks a JVM with a serial collector so the heap figures are stable; {@code -Dbench.entries=N} sets the
+ * number of messages (1,000,000 by default).
+ */
+public class MessageSetBench {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final long SEED = 42;
+    // Keeps the iteration loop from being optimised away
+    private static volatile long sink;
+
+    static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        ByteBuf[] messages = messages(entries);
+        ByteBuf[] copies = copies(messages);
+
+        System.out.printf("%,d distinct %d-byte messages%n%n", entries, messages[0].readableBytes());
+        System.out.printf("%-14s %12s %12s %12s %12s%n", "", "B/entry", "add ns", "dup add ns", "iter ns");
+        run("MessageSet", MessageSet::new, messages, copies);
+        run("LinkedHashSet", LinkedHashSet::new, messages, copies);
+    }
+
+    private static void run(String name, Supplier<Collection<ByteBuf>> factory, ByteBuf[] messages, ByteBuf[] copies) {
+        double bytesPerEntry = bytesPerEntry(factory, messages);
+
+        double[] add = new double[MEASURED_ROUNDS];
+        double[] duplicate = new double[MEASURED_ROUNDS];
+        double[] iterate = new double[MEASURED_ROUNDS];
+        long checksum = 0;
+        for (int round = -WARMUP_ROUNDS; round < MEASURED_ROUNDS; round++) {
+            Collection<ByteBuf> set = factory.get();
+
+            long start = System.nanoTime();
+            for (ByteBuf message : messages) {
+                set.add(message);
+            }
+            long added = System.nanoTime();
+            for (ByteBuf copy : copies) {
+                if (set.add(copy)) {
+                    throw new IllegalStateException(name + " took an equal copy as a new message");
+                }
+            }
+            long duplicated = System.nanoTime();
+            for (ByteBuf message : set) {
+                checksum += message.readableBytes();
+            }
+            long iterated = System.nanoTime();
+
+            if (set.size() != messages.length) {
+                throw new IllegalStateException(name + " holds " + set.size() + " messages");
+            }
+            if (round >= 0) {
+                add[round] = (double) (added - start) / messages.length;
+                duplicate[round] = (double) (duplicated - added) / messages.length;
+                iterate[round] = (double) (iterated - duplicated) / messages.length;
+            }
+        }
+
+        sink = checksum;
+        System.out.printf("%-14s %12.1f %12.0f %12.0f %12.0f%n",
+                name, bytesPerEntry, median(add), median(duplicate), median(iterate));
+    }
+
+    /**
+     * Heap the filled set holds beyond the messages, which are already allocated.
+     */
+    private static double bytesPerEntry(Supplier<Collection<ByteBuf>> factory, ByteBuf[] messages) {
+        long before = usedHeap();
+        Collection<ByteBuf> set = factory.get();
+        for (ByteBuf message : messages) {
+            set.add(message);
+        }
+        long after = usedHeap();
+        Reference.reachabilityFence(set);
+        return (double) (after - before) / messages.length;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static ByteBuf[] messages(int count) {
+        ByteBuf[] messages = new ByteBuf[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = message(i);
+        }
+        return shuffle(messages, SEED);
+    }
+
+    /**
+     * Equal but separate buffers, in their own shuffled order, as a republished message would arrive.
+     */
+    private static ByteBuf[] copies(ByteBuf[] messages) {
+        return shuffle(Arrays.stream(messages).map(ByteBuf::copy).toArray(ByteBuf[]::new), SEED + 1);
+    }
+
+    private static ByteBuf[] shuffle(ByteBuf[] messages, long seed) {
+        Random random = new Random(seed);
+        for (int i = messages.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            ByteBuf swapped = messages[i];
+            messages[i] = messages[j];
+            messages[j] = swapped;
+        }
+        return messages;
+    }
+
+    private static ByteBuf message(int index) {
+        return Unpooled.wrappedBuffer(String.format("msg-%010d", index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
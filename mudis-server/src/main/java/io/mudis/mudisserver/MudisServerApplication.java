@@ -1,14 +1,24 @@
 package io.mudis.mudisserver;
 
+import io.mudis.mudisserver.persistence.PersistenceLog;
+import io.mudis.mudisserver.persistence.SnapshotStore;
 import io.mudis.mudisserver.pubsub.PublisherRegistrar;
+import io.mudis.mudisserver.server.DelayedPublishes;
 import io.mudis.mudisserver.server.ServerImpl;
 
+import java.io.IOException;
+
 public class MudisServerApplication {
 
-    static void main() {
+    static void main() throws IOException {
+        PersistenceLog.INSTANCE.open();
+        SnapshotStore.INSTANCE.open();
         var server = new ServerImpl();
         server.start();
         server.stop();
+        SnapshotStore.INSTANCE.close();
+        DelayedPublishes.INSTANCE.shutdown();
         PublisherRegistrar.INSTANCE.shutdown();
+        PersistenceLog.INSTANCE.close();
     }
 }
@@ -0,0 +1,118 @@
+package io.mudis.mudisserver.cluster;
+
+import io.mudis.mudisshared.model.Status;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.EventLoopGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Brings a channel another node owns to this one: a STREAM subscription on the owner whose pushes are
+ * published to the local subscribers, so however many clients subscribe here, the owner sends each message
+ * once. If the subscription fails or its connection drops, it is opened again a second later; messages
+ * published in between are not recovered.
+ */
+final class ChannelRelay {
+    private static final Logger Log = LoggerFactory.getLogger(ChannelRelay.class);
+    private static final long RETRY_MILLIS = 1000;
+
+    private final String channel;
+    private final PeerPool owner;
+    private final EventLoopGroup group;
+    private final BiConsumer<String, ByteBuf> deliver;
+    // Guarded by this
+    private Attempt current;
+    private boolean closed;
+    private volatile CompletableFuture<Void> ready = new CompletableFuture<>();
+
+    ChannelRelay(String channel, PeerPool owner, EventLoopGroup group, BiConsumer<String, ByteBuf> deliver) {
+        this.channel = channel;
+        this.owner = owner;
+        this.group = group;
+        this.deliver = deliver;
+    }
+
+    String node() {
+        return owner.node();
+    }
+
+    /**
+     * Completes once the owner has confirmed the current subscription, or exceptionally if it could not be
+     * opened; a retry is under way then.
+     */
+    CompletableFuture<Void> ready() {
+        return ready;
+    }
+
+    synchronized void open() {
+        if (closed) {
+            return;
+        }
+        if (ready.isDone()) {
+            ready = new CompletableFuture<>();
+        }
+        Attempt attempt = new Attempt(ready);
+        current = attempt;
+        attempt.connection = owner.connectionFor(channel);
+        attempt.requestId = attempt.connection.subscribe(channel, attempt, attempt::replied);
+    }
+
+    synchronized void close() {
+        closed = true;
+        if (current != null) {
+            current.connection.unsubscribe(channel, current.requestId);
+            current = null;
+        }
+        ready.completeExceptionally(new IllegalStateException("Relay of channel " + channel + " closed"));
+    }
+
+    /**
+     * Schedules the next attempt, unless this one was already superseded.
+     */
+    private synchronized void retry(Attempt failed) {
+        if (closed || current != failed) {
+            return;
+        }
+        current = null;
+        group.schedule(this::open, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * One subscription to the owner; a failed one is never reused.
+     */
+    private final class Attempt implements PeerConnection.StreamListener {
+        private final CompletableFuture<Void> ready;
+        private PeerConnection connection;
+        private int requestId;
+
+        private Attempt(CompletableFuture<Void> ready) {
+            this.ready = ready;
+        }
+
+        private void replied(Status status, String body) {
+            if (status == Status.ERROR) {
+                Log.warn("Cannot relay channel {} from node {}: {}", channel, owner.node(), body);
+                ready.completeExceptionally(new IllegalStateException(body));
+                retry(this);
+            } else {
+                Log.info("Relaying channel {} from node {}", channel, owner.node());
+                ready.complete(null);
+            }
+        }
+
+        @Override
+        public void pushed(ByteBuf payload) {
+            deliver.accept(channel, payload);
+        }
+
+        @Override
+        public void lost() {
+            ready.completeExceptionally(new IllegalStateException("Connection to node " + owner.node() + " lost"));
+            retry(this);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package io.mudis.mudisserver.cluster;
+
+import io.mudis.mudisserver.pubsub.Publisher;
+import io.mudis.mudisserver.pubsub.PublisherRegistrar;
+import io.mudis.mudisserver.replication.Replication;
+import io.mudis.mudisserver.utils.ConfigProperties;
+import io.mudis.mudisshared.cluster.HashRing;
+import io.mudis.mudisshared.model.Operation;
+import io.mudis.mudisshared.model.Status;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * This server's place in a cluster of nodes sharing the channel namespace. Every node is configured with
+ * the same {@code mudis.cluster.nodes}, and a {@link HashRing} over them assigns each channel to one owner,
+ * which holds its subscriptions' state, persists its publishes and applies their DELAY and AT.
+ * <p>
+ * A client may connect to any node. A PUBLISH to a channel owned elsewhere is forwarded to the owner and
+ * its reply relayed back. A SUBSCRIBE is served locally, with a {@link ChannelRelay} streaming the channel
+ * from its owner for as long as it has local subscribers, so SHOW, POP and UNSUBSCRIBE stay local too.
+ * Clients that ask for the topology with CLUSTER can skip the hop and talk to owners directly.
+ * <p>
+ * Connections opened by other nodes announce themselves with {@code CLUSTER PEER}, and everything arriving
+ * on them is served locally, so a request is forwarded at most once. Pattern subscriptions, durable
+ * subscriptions and the node list are not distributed: patterns see the channels their node owns, durable
+ * subscriptions must be opened on the owner, and changing the node list takes a restart of every node.
+ */
+public enum ClusterNode {
+    INSTANCE();
+
+    private static final Logger Log = LoggerFactory.getLogger(ClusterNode.class);
+    private static final AttributeKey<String> PEER = AttributeKey.valueOf("mudis.cluster.peer");
+
+    private final HashRing ring;
+    private final String self;
+    private final int poolSize;
+    private final PublisherRegistrar publisherRegistrar = PublisherRegistrar.INSTANCE;
+    private final Map<String, ChannelRelay> relays = new ConcurrentHashMap<>();
+    private volatile Map<String, PeerPool> peers = Map.of();
+    private volatile EventLoopGroup group;
+
+    /**
+     * Receives the reply to a request sent to another node, on the event loop of the connection to it.
+     */
+    public interface ReplyListener {
+        void replied(Status status, String body);
+    }
+
+    ClusterNode() {
+        List<String> nodes = Arrays.stream(ConfigProperties.get("mudis.cluster.nodes", "").split(","))
+                .map(String::strip)
+                .filter(node -> !node.isEmpty())
+                .toList();
+        String configuredSelf = ConfigProperties.get("mudis.cluster.self", "").strip();
+        this.self = configuredSelf.isEmpty() ? "127.0.0.1:" + ConfigProperties.get("mudis.server.port").strip() : configuredSelf;
+        this.poolSize = ConfigProperties.getInt("mudis.cluster.connections", 2);
+        this.ring = nodes.isEmpty() ? null : new HashRing(nodes, ConfigProperties.getInt("mudis.cluster.vnodes", 128));
+        if (ring != null && !ring.nodes().contains(self)) {
+            throw new IllegalStateException("mudis.cluster.self " + self + " is not one of mudis.cluster.nodes " + nodes);
+        }
+    }
+
+    public boolean isEnabled() {
+        return ring != null;
+    }
+
+    /**
+     * Starts connecting to the other nodes on demand, using the server's event loops.
+     */
+    public void start(EventLoopGroup group) {
+        if (!isEnabled()) {
+            return;
+        }
+        this.group = group;
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true);
+        this.peers = ring.nodes().stream()
+                .filter(node -> !node.equals(self))
+                .collect(Collectors.toUnmodifiableMap(Function.identity(),
+                        node -> new PeerPool(bootstrap, node, self, poolSize)));
+        publisherRegistrar.onChannelRemoved(this::channelRemoved);
+        Log.info("Cluster node {} of {}", self, ring.nodes());
+    }
+
+    public String self() {
+        return self;
+    }
+
+    public HashRing ring() {
+        return ring;
+    }
+
+    public String ownerOf(String channel) {
+        return ring.ownerOf(channel);
+    }
+
+    public int relayCount() {
+        return relays.size();
+    }
+
+    /**
+     * Whether a request about the channel arriving on this connection belongs to another node.
+     */
+    public boolean forwards(ChannelHandlerContext ctx, String channel) {
+        return ring != null && !isPeer(ctx) && !ring.ownerOf(channel).equals(self);
+    }
+
+    public boolean isPeer(ChannelHandlerContext ctx) {
+        return ctx.channel().hasAttr(PEER);
+    }
+
+    public void markPeer(ChannelHandlerContext ctx, String node) {
+        ctx.channel().attr(PEER).set(node);
+        Log.info("Connection {} opened by node {}", ctx.channel().remoteAddress(), node);
+    }
+
+    /**
+     * Sends a request to the channel's owner, taking ownership of {@code args}. The listener runs on an
+     * event loop of the server, but not necessarily the caller's.
+     */
+    public void forward(String channel, Operation op, ByteBuf args, ReplyListener listener) {
+        peers.get(ownerOf(channel)).connectionFor(channel).request(op, args, listener);
+    }
+
+    /**
+     * Makes sure the channel is relayed from its owner, which must be another node, and returns when the
+     * relay is ready. Called after subscribing locally, so the relay is never closed under the subscription.
+     */
+    public CompletableFuture<Void> relay(String channel) {
+        return relays.computeIfAbsent(channel, name -> {
+            ChannelRelay relay = new ChannelRelay(name, peers.get(ownerOf(name)), group, this::deliverRelayed);
+            relay.open();
+            return relay;
+        }).ready();
+    }
+
+    private void channelRemoved(String channel) {
+        relays.computeIfPresent(channel, (_, relay) -> {
+            // A subscriber may have arrived since the publisher went, and is relying on this relay
+            if (publisherRegistrar.get(channel) != null) {
+                return relay;
+            }
+            relay.close();
+            return null;
+        });
+    }
+
+    /**
+     * Publishes a relayed message to the local subscribers, on the thread owning the channel.
+     */
+    private void deliverRelayed(String channel, ByteBuf payload) {
+        EventExecutor owner = publisherRegistrar.ownerOf(channel);
+        if (owner == null || owner.inEventLoop()) {
+            publishRelayed(channel, payload);
+            return;
+        }
+        payload.retain();
+        owner.execute(() -> {
+            try {
+                publishRelayed(channel, payload);
+            } finally {
+                payload.release();
+            }
+        });
+    }
+
+    private void publishRelayed(String channel, ByteBuf payload) {
+        Publisher publisher = publisherRegistrar.get(channel);
+        if (publisher == null) {
+            return;
+        }
+        var result = publisher.publish(payload);
+        if (result.rejected()) {
+            Log.warn("Relayed publish rejected on channel: {} ({})", channel, result.rejection());
+            return;
+        }
+        Replication.INSTANCE.published(channel, payload);
+    }
+}
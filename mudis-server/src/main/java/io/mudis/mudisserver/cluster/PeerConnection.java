@@ -0,0 +1,236 @@
+package io.mudis.mudisserver.cluster;
+
+import io.mudis.mudisshared.model.Operation;
+import io.mudis.mudisshared.model.Status;
+import io.mudis.mudisshared.protocol.Protocol;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection to another node of the cluster, speaking the ordinary client protocol. Its first request is
+ * {@code CLUSTER PEER <self>}, so the other node serves whatever arrives on it locally instead of routing it
+ * on. Many requests can be in flight, each answered through the listener registered under its request id;
+ * PUSH frames of a stream subscription go to the {@link StreamListener} of the SUBSCRIBE that opened it.
+ * <p>
+ * Requests are written as soon as they are made, in order, and flushed once the event loop has run the
+ * writes already queued, so a burst of forwarded publishes shares a few flushes. When the connection closes, requests still waiting are answered
+ * with an error and streams are told they were lost.
+ */
+final class PeerConnection extends SimpleChannelInboundHandler<PeerDecoder.Frame> {
+    private static final Logger Log = LoggerFactory.getLogger(PeerConnection.class);
+
+    /**
+     * Receives what a stream subscription pushes, on the connection's event loop. The payload is only
+     * valid during the call.
+     */
+    interface StreamListener {
+        void pushed(ByteBuf payload);
+
+        void lost();
+    }
+
+    private final String node;
+    private final ChannelFuture connected;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Map<Integer, ClusterNode.ReplyListener> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, StreamListener> streams = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+    private volatile long closedAt;
+
+    PeerConnection(Bootstrap bootstrap, String node, String self) {
+        this.node = node;
+        int separator = node.lastIndexOf(':');
+        this.connected = bootstrap.clone()
+                .handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline()
+                                .addLast(new PeerDecoder())
+                                .addLast(PeerConnection.this);
+                    }
+                })
+                .connect(node.substring(0, separator), Integer.parseInt(node.substring(separator + 1)));
+        connected.addListener(future -> {
+            if (future.isSuccess()) {
+                Log.info("Connected to node {}", node);
+                request(Operation.CLUSTER, text("PEER " + self), (status, body) -> {
+                    if (status == Status.ERROR) {
+                        Log.error("Node {} refused the peer connection: {}", node, body);
+                        connected.channel().close();
+                    }
+                });
+            } else {
+                Log.warn("Cannot connect to node {}: {}", node, future.cause().getMessage());
+            }
+        });
+        connected.channel().closeFuture().addListener(_ -> close("Connection to node " + node + " lost"));
+    }
+
+    String node() {
+        return node;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Milliseconds since the connection closed, or 0 if it is open.
+     */
+    long closedFor() {
+        return closed ? System.currentTimeMillis() - closedAt : 0;
+    }
+
+    /**
+     * Sends a request with the given arguments, which this takes ownership of.
+     */
+    void request(Operation op, ByteBuf args, ClusterNode.ReplyListener listener) {
+        int requestId = nextRequestId();
+        ByteBuf header = Unpooled.buffer(Protocol.HEADER_SIZE);
+        int lengthIndex = Protocol.writeRequestHeader(header, op, requestId);
+        header.setInt(lengthIndex, args.readableBytes());
+        ByteBuf frame = Unpooled.wrappedBuffer(header, args);
+
+        pending.put(requestId, listener);
+        if (connected.isDone()) {
+            write(requestId, frame);
+        } else {
+            connected.addListener(_ -> write(requestId, frame));
+        }
+    }
+
+    /**
+     * Opens a STREAM subscription to the channel and returns its request id, under which the node pushes
+     * every message published to it.
+     */
+    int subscribe(String channel, StreamListener stream, ClusterNode.ReplyListener listener) {
+        int requestId = nextRequestId();
+        ByteBuf header = Unpooled.buffer();
+        int lengthIndex = Protocol.writeRequestHeader(header, Operation.SUBSCRIBE, requestId);
+        int length = header.writeCharSequence(channel + " ()", StandardCharsets.UTF_8);
+        header.setInt(lengthIndex, length);
+
+        streams.put(requestId, stream);
+        pending.put(requestId, listener);
+        if (connected.isDone()) {
+            write(requestId, header);
+        } else {
+            connected.addListener(_ -> write(requestId, header));
+        }
+        return requestId;
+    }
+
+    /**
+     * Closes the stream subscription opened under {@code requestId}.
+     */
+    void unsubscribe(String channel, int requestId) {
+        if (streams.remove(requestId) == null || closed) {
+            return;
+        }
+        request(Operation.UNSUBSCRIBE, text(channel), (status, body) -> {
+            if (status == Status.ERROR) {
+                Log.debug("Node {} did not unsubscribe from channel {}: {}", node, channel, body);
+            }
+        });
+    }
+
+    static ByteBuf text(String text) {
+        return Unpooled.copiedBuffer(text, StandardCharsets.UTF_8);
+    }
+
+    private int nextRequestId() {
+        int requestId;
+        do {
+            requestId = nextRequestId.incrementAndGet();
+        } while (requestId == Protocol.NO_REQUEST_ID);
+        return requestId;
+    }
+
+    private void write(int requestId, ByteBuf frame) {
+        Channel channel = connected.channel();
+        if (!connected.isSuccess() || !channel.isActive()) {
+            frame.release();
+            fail(requestId, closed ? "Connection to node " + node + " lost" : "Cannot connect to node " + node);
+            return;
+        }
+        channel.write(frame, channel.voidPromise());
+        if (flushScheduled.compareAndSet(false, true)) {
+            channel.eventLoop().execute(() -> {
+                flushScheduled.set(false);
+                channel.flush();
+            });
+        }
+    }
+
+    private void fail(int requestId, String reason) {
+        ClusterNode.ReplyListener listener = pending.remove(requestId);
+        if (listener != null) {
+            listener.replied(Status.ERROR, reason);
+        }
+        StreamListener stream = streams.remove(requestId);
+        if (stream != null) {
+            stream.lost();
+        }
+    }
+
+    private void close(String reason) {
+        closedAt = System.currentTimeMillis();
+        closed = true;
+        // Requests racing with this find the channel inactive and fail themselves
+        for (int requestId : new ArrayList<>(pending.keySet())) {
+            fail(requestId, reason);
+        }
+        List<StreamListener> lost = new ArrayList<>(streams.values());
+        streams.clear();
+        lost.forEach(StreamListener::lost);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, PeerDecoder.Frame frame) {
+        try {
+            if (frame.status() == Status.PUSH) {
+                StreamListener stream = streams.get(frame.requestId());
+                if (stream != null) {
+                    stream.pushed(frame.body());
+                }
+                return;
+            }
+            if (frame.status() == Status.CONTINUE) {
+                return;
+            }
+            if (frame.status() == Status.ERROR) {
+                // A refused subscription pushes nothing
+                streams.remove(frame.requestId());
+            }
+            ClusterNode.ReplyListener listener = pending.remove(frame.requestId());
+            if (listener != null) {
+                listener.replied(frame.status(), frame.body().toString(StandardCharsets.UTF_8));
+            }
+        } finally {
+            frame.body().release();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        Log.error("Exception on connection to node {}", node, cause);
+        ctx.close();
+    }
+}
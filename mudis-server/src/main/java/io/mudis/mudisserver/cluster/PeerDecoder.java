@@ -0,0 +1,46 @@
+package io.mudis.mudisserver.cluster;
+
+import io.mudis.mudisshared.model.Status;
+import io.mudis.mudisshared.protocol.Protocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import java.util.List;
+
+/**
+ * Decodes the replies another node sends on a peer connection, or a leader on a replication link. Unlike the
+ * client's codec it keeps each body as a retained slice of the inbound buffer, so relayed messages reach the
+ * local publisher without being decoded to a String.
+ * Protocol: see {@link Protocol}
+ */
+public final class PeerDecoder extends ByteToMessageDecoder {
+
+    /**
+     * One reply frame; whoever handles it releases the body.
+     */
+    public record Frame(Status status, int requestId, ByteBuf body) {
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (in.readableBytes() < Protocol.HEADER_SIZE) {
+            return;
+        }
+
+        in.markReaderIndex();
+
+        Protocol.checkVersion(in.readByte());
+        Status status = Status.fromOrdinal(in.readUnsignedByte());
+        int requestId = in.readInt();
+        int size = in.readInt();
+        Protocol.checkLength(size);
+
+        if (in.readableBytes() < size) {
+            in.resetReaderIndex();
+            return;
+        }
+
+        out.add(new Frame(status, requestId, in.readRetainedSlice(size)));
+    }
+}
@@ -0,0 +1,51 @@
+package io.mudis.mudisserver.cluster;
+
+import io.netty.bootstrap.Bootstrap;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A few connections to one node. Each channel always uses the same one, picked by its name, so requests
+ * about a channel reach the node in the order they were made while different channels spread over the
+ * pool. A connection that closed is replaced on first use, though not more than once a second, so a node
+ * that is down fails requests fast instead of being dialled for each of them.
+ */
+final class PeerPool {
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final Bootstrap bootstrap;
+    private final String node;
+    private final String self;
+    private final AtomicReferenceArray<PeerConnection> connections;
+
+    PeerPool(Bootstrap bootstrap, String node, String self, int size) {
+        this.bootstrap = bootstrap;
+        this.node = node;
+        this.self = self;
+        this.connections = new AtomicReferenceArray<>(Math.max(1, size));
+    }
+
+    String node() {
+        return node;
+    }
+
+    PeerConnection connectionFor(String channel) {
+        int slot = Math.floorMod(channel.hashCode(), connections.length());
+        PeerConnection connection = connections.get(slot);
+        if (usable(connection)) {
+            return connection;
+        }
+        synchronized (this) {
+            connection = connections.get(slot);
+            if (!usable(connection)) {
+                connection = new PeerConnection(bootstrap, node, self);
+                connections.set(slot, connection);
+            }
+            return connection;
+        }
+    }
+
+    private static boolean usable(PeerConnection connection) {
+        return connection != null && (!connection.isClosed() || connection.closedFor() < RECONNECT_MILLIS);
+    }
+}
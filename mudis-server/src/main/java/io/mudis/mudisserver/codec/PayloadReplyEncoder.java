@@ -0,0 +1,30 @@
+package io.mudis.mudisserver.codec;
+
+import io.mudis.mudisserver.model.PayloadReply;
+import io.mudis.mudisshared.protocol.Protocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.List;
+
+/**
+ * Encodes {@link PayloadReply} as a separate header buffer followed by the body itself, so stored
+ * messages reach the socket without being copied into the frame.
+ * Protocol: see {@link Protocol}
+ */
+@ChannelHandler.Sharable
+public class PayloadReplyEncoder extends MessageToMessageEncoder<PayloadReply> {
+    public static final PayloadReplyEncoder INSTANCE = new PayloadReplyEncoder();
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, PayloadReply reply, List<Object> out) {
+        ByteBuf header = ctx.alloc().ioBuffer(Protocol.HEADER_SIZE);
+        int lengthIndex = Protocol.writeResponseHeader(header, reply.status(), reply.requestId());
+        header.setInt(lengthIndex, reply.body().readableBytes());
+
+        out.add(header);
+        out.add(reply.body().retain());
+    }
+}
@@ -2,49 +2,51 @@ package io.mudis.mudisserver.codec;
 
 import io.mudis.mudisserver.model.Message;
 import io.mudis.mudisshared.model.Operation;
+import io.mudis.mudisshared.model.Reply;
+import io.mudis.mudisshared.protocol.Protocol;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 /**
  * Codec for decoding client messages and encoding server responses.
- * Protocol: [operation_ordinal:int][args_length:int][args:bytes]
+ * Protocol: see {@link Protocol}
  */
-public class ServerCodec extends ByteToMessageCodec<String> {
+public class ServerCodec extends ByteToMessageCodec<Reply> {
     private static final Logger Log = LoggerFactory.getLogger(ServerCodec.class);
-    private static final int MIN_HEADER_SIZE = 8; // 4 bytes for operation + 4 bytes for length
 
     @Override
-    protected void encode(ChannelHandlerContext ctx, String msg, ByteBuf out) {
-        byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
-        out.writeInt(bytes.length);
-        out.writeBytes(bytes);
+    protected void encode(ChannelHandlerContext ctx, Reply reply, ByteBuf out) {
+        int lengthIndex = Protocol.writeResponseHeader(out, reply.status(), reply.requestId());
+        int length = ByteBufUtil.writeUtf8(out, reply.body());
+        out.setInt(lengthIndex, length);
     }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
-        if (in.readableBytes() < MIN_HEADER_SIZE) {
+        if (in.readableBytes() < Protocol.HEADER_SIZE) {
             return;
         }
 
         in.markReaderIndex();
 
         try {
-            Operation op = readOperation(in);
-            String args = readArguments(in);
+            Protocol.checkVersion(in.readByte());
+            int ordinal = in.readUnsignedByte();
+            int requestId = in.readInt();
+            ByteBuf args = readArguments(in);
 
             if (args == null) {
                 in.resetReaderIndex();
                 return;
             }
 
-            Message message = Message.of(op, args);
-            out.add(message);
+            out.add(toMessage(ordinal, requestId, args));
 
         } catch (IllegalStateException | IllegalArgumentException e) {
             Log.error("Error decoding message", e);
@@ -59,24 +61,29 @@ public class ServerCodec extends ByteToMessageCodec<String> {
         ctx.close();
     }
 
-    private Operation readOperation(ByteBuf in) {
-        int ordinal = in.readInt();
-        return Operation.values()[ordinal];
+    /**
+     * The frame is complete at this point, so bad arguments only fail this request, not the connection.
+     */
+    private Message toMessage(int ordinal, int requestId, ByteBuf args) {
+        try {
+            return Message.of(Operation.fromOrdinal(ordinal), requestId, args);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            Log.warn("Rejected request {}: {}", requestId, e.getMessage());
+            return new Message.Invalid(requestId, e.getMessage());
+        }
     }
 
-    private String readArguments(ByteBuf in) {
+    /**
+     * Returns the arguments as a slice of the cumulation buffer, or null while the frame is incomplete.
+     */
+    private ByteBuf readArguments(ByteBuf in) {
         int size = in.readInt();
+        Protocol.checkLength(size);
 
         if (in.readableBytes() < size) {
             return null;
         }
 
-        if (size == 0) {
-            return "";
-        }
-
-        byte[] argsBytes = new byte[size];
-        in.readBytes(argsBytes);
-        return new String(argsBytes, StandardCharsets.UTF_8);
+        return in.readSlice(size);
     }
 }
@@ -0,0 +1,32 @@
+package io.mudis.mudisserver.kv;
+
+/**
+ * Which key a write evicts when the key-value store is over {@code mudis.kv.maxmemory}. Every policy but
+ * NOEVICTION picks the worst of a few sampled keys rather than the worst of all of them.
+ */
+public enum EvictionPolicy {
+    // Refuse the write with an error reply
+    NOEVICTION,
+    // The least recently used key
+    ALLKEYS_LRU,
+    // The least frequently used key
+    ALLKEYS_LFU,
+    // The least recently used key with an expiry
+    VOLATILE_LRU,
+    // The least frequently used key with an expiry
+    VOLATILE_LFU,
+    // The key with an expiry that is due soonest
+    VOLATILE_TTL;
+
+    boolean volatileOnly() {
+        return this == VOLATILE_LRU || this == VOLATILE_LFU || this == VOLATILE_TTL;
+    }
+
+    boolean tracksRecency() {
+        return this == ALLKEYS_LRU || this == VOLATILE_LRU;
+    }
+
+    boolean tracksFrequency() {
+        return this == ALLKEYS_LFU || this == VOLATILE_LFU;
+    }
+}
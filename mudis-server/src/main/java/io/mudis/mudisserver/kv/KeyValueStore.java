@@ -0,0 +1,463 @@
+package io.mudis.mudisserver.kv;
+
+import io.mudis.mudisserver.utils.ConfigProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide key-value store behind GET, SET, DEL, MGET, MSET and INCR. Keys and values are kept as the
+ * byte arrays they arrived as, with no String or boxing in between.
+ * <p>
+ * The key space is split over {@code mudis.kv.stripes} {@link Stripe}s, each a hash table under its own
+ * lock, so operations on different stripes never wait for each other, and each stripe grows by moving a
+ * few buckets per operation rather than stopping to rehash. A key's hash picks its stripe with its high
+ * bits and its bucket with its low ones. Multi-key operations lock their stripes in index order, which makes
+ * MSET and MGET atomic without risk of deadlock.
+ * <p>
+ * A key set with an expiry is removed by whichever comes first: an operation finding it expired, or the
+ * background sweep, which every {@code mudis.kv.expiry.tick.ms} checks no more than
+ * {@code mudis.kv.expiry.sweep.keys} of the keys with an expiry, picking up where it stopped.
+ * <p>
+ * With {@code mudis.kv.maxmemory} set, a write that would take the store over it first evicts keys as the
+ * {@link EvictionPolicy} says, one at a time: of {@code mudis.kv.eviction.samples} keys sampled from a random
+ * stripe, the least recently or frequently used, or the soonest to expire. Recency and frequency are kept in
+ * one int per entry, so eviction needs no list threaded through the entries and reads only touch the entry
+ * they read. Each write evicts about as much as it adds, so memory stays near the limit without pauses.
+ * <p>
+ * Values are never changed in place, only replaced, so one returned by {@link #get} may be written out
+ * without copying.
+ */
+public enum KeyValueStore {
+    INSTANCE();
+
+    // Approximate heap cost of an entry beyond its key and value bytes: the entry and two array headers
+    private static final int ENTRY_OVERHEAD = 72;
+    // Resolution of the recency clock; as an int it wraps after about eight months
+    private static final long RECENCY_UNIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // Frequency is an 8-bit logarithmic counter below a 24-bit timestamp in minutes of its last decay. A new key
+    // starts above zero so it is not the first evicted, a hit is counted with a probability falling as the
+    // counter grows, and the counter drops by one for every idle minute.
+    private static final int LFU_INITIAL = 5;
+    private static final int LFU_LOG_FACTOR = 10;
+    private static final long MINUTE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    // Keys swept under one stripe lock, so the sweep never holds it for long
+    private static final int SWEEP_SLICE = 64;
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+    private final LongAdder keys = new LongAdder();
+    private final LongAdder usedBytes = new LongAdder();
+    private final LongAdder expiredKeys = new LongAdder();
+    private final LongAdder evictedKeys = new LongAdder();
+    private final long maxMemory;
+    private final EvictionPolicy evictionPolicy;
+    private final int evictionSamples;
+    private final int sweepKeys;
+    private final ScheduledExecutorService sweeper;
+    // Stripe the next sweep starts with; only touched by the sweeper thread
+    private int sweepStripe;
+
+    KeyValueStore() {
+        int configured = Math.max(1, Math.min(ConfigProperties.getInt("mudis.kv.stripes", 64), 1 << 16));
+        int count = Integer.highestOneBit(configured);
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+        // With one stripe, a shift of 32 would be no shift at all
+        this.stripeShift = count == 1 ? 0 : 32 - Integer.numberOfTrailingZeros(count);
+
+        this.maxMemory = Math.max(0, ConfigProperties.getLong("mudis.kv.maxmemory", 0));
+        this.evictionPolicy = EvictionPolicy.valueOf(
+                ConfigProperties.get("mudis.kv.eviction", "NOEVICTION").trim().toUpperCase());
+        this.evictionSamples = Math.max(1, ConfigProperties.getInt("mudis.kv.eviction.samples", 5));
+        this.sweepKeys = Math.max(1, ConfigProperties.getInt("mudis.kv.expiry.sweep.keys", 1000));
+
+        long tickMillis = Math.max(1, ConfigProperties.getLong("mudis.kv.expiry.tick.ms", 100));
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("mudis-kv-expiry").daemon().factory());
+        sweeper.scheduleWithFixedDelay(this::sweepExpired, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public long size() {
+        return keys.sum();
+    }
+
+    /**
+     * Approximate bytes held by keys, values and their entries.
+     */
+    public long usedBytes() {
+        return usedBytes.sum();
+    }
+
+    /**
+     * @return the configured limit on {@link #usedBytes}, or 0 for none
+     */
+    public long maxMemory() {
+        return maxMemory;
+    }
+
+    public EvictionPolicy evictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public long expiredKeys() {
+        return expiredKeys.sum();
+    }
+
+    public long evictedKeys() {
+        return evictedKeys.sum();
+    }
+
+    /**
+     * @return the value, or null if the key is absent
+     */
+    public byte[] get(byte[] key) {
+        int hash = hash(key);
+        Stripe stripe = stripeOf(hash);
+        stripe.lock.lock();
+        try {
+            Stripe.Entry entry = live(stripe, key, hash, System.currentTimeMillis());
+            if (entry == null) {
+                return null;
+            }
+            touch(entry);
+            return entry.value;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Maps the key to the value, keeping both arrays, which must not change afterwards.
+     *
+     * @param expiresAt epoch milliseconds at which the key expires, or 0 for never; an expiry the key had
+     *                  is replaced either way
+     * @throws IllegalStateException if the store is full and the eviction policy cannot make room
+     */
+    public void set(byte[] key, byte[] value, long expiresAt) {
+        makeRoom(ENTRY_OVERHEAD + key.length + value.length);
+        int hash = hash(key);
+        Stripe stripe = stripeOf(hash);
+        stripe.lock.lock();
+        try {
+            Stripe.Entry entry = put(stripe, key, hash, value, System.currentTimeMillis());
+            stripe.expireAt(entry, expiresAt);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * @return how many of the keys were present
+     */
+    public int delete(byte[][] keys) {
+        Stripe[] locked = lockAll(keys);
+        try {
+            long now = System.currentTimeMillis();
+            int deleted = 0;
+            for (byte[] key : keys) {
+                int hash = hash(key);
+                Stripe.Entry removed = stripeOf(hash).remove(key, hash);
+                if (removed == null) {
+                    continue;
+                }
+                if (removed.isExpired(now)) {
+                    release(removed, expiredKeys);
+                } else {
+                    release(removed, null);
+                    deleted++;
+                }
+            }
+            return deleted;
+        } finally {
+            unlockAll(locked);
+        }
+    }
+
+    /**
+     * Reads the keys at one point in time.
+     *
+     * @return their values, null for absent keys
+     */
+    public byte[][] getAll(byte[][] keys) {
+        Stripe[] locked = lockAll(keys);
+        try {
+            long now = System.currentTimeMillis();
+            byte[][] values = new byte[keys.length][];
+            for (int i = 0; i < keys.length; i++) {
+                int hash = hash(keys[i]);
+                Stripe.Entry entry = live(stripeOf(hash), keys[i], hash, now);
+                if (entry != null) {
+                    touch(entry);
+                    values[i] = entry.value;
+                }
+            }
+            return values;
+        } finally {
+            unlockAll(locked);
+        }
+    }
+
+    /**
+     * Sets every key to its value at once, without expiry; a later duplicate key wins.
+     *
+     * @throws IllegalStateException if the store is full and the eviction policy cannot make room
+     */
+    public void setAll(byte[][] keys, byte[][] values) {
+        long bytes = 0;
+        for (int i = 0; i < keys.length; i++) {
+            bytes += ENTRY_OVERHEAD + keys[i].length + values[i].length;
+        }
+        makeRoom(bytes);
+        Stripe[] locked = lockAll(keys);
+        try {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < keys.length; i++) {
+                int hash = hash(keys[i]);
+                Stripe stripe = stripeOf(hash);
+                stripe.expireAt(put(stripe, keys[i], hash, values[i], now), 0);
+            }
+        } finally {
+            unlockAll(locked);
+        }
+    }
+
+    /**
+     * Adds one to the key's value, read as a signed decimal long, or sets it to 1 if the key is absent. The
+     * key keeps any expiry it had.
+     *
+     * @return the new value
+     * @throws IllegalArgumentException if the value is not an integer or would overflow
+     * @throws IllegalStateException    if the store is full and the eviction policy cannot make room
+     */
+    public long increment(byte[] key) {
+        makeRoom(ENTRY_OVERHEAD + key.length + 20);
+        int hash = hash(key);
+        Stripe stripe = stripeOf(hash);
+        stripe.lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            Stripe.Entry current = live(stripe, key, hash, now);
+            long value;
+            try {
+                value = current == null ? 1 : Math.incrementExact(Long.parseLong(new String(current.value, StandardCharsets.US_ASCII)));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Value is not an integer", e);
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Increment would overflow", e);
+            }
+            put(stripe, key, hash, Long.toString(value).getBytes(StandardCharsets.US_ASCII), now);
+            return value;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Points the key's entry at the value, adding one if the key is absent or has expired, and counts it as
+     * used. The entry keeps its expiry.
+     */
+    private Stripe.Entry put(Stripe stripe, byte[] key, int hash, byte[] value, long now) {
+        Stripe.Entry entry = live(stripe, key, hash, now);
+        if (entry == null) {
+            entry = stripe.insert(key, hash, value);
+            entry.access = initialAccess();
+            keys.increment();
+            usedBytes.add(ENTRY_OVERHEAD + key.length + value.length);
+            return entry;
+        }
+        usedBytes.add(value.length - entry.value.length);
+        entry.value = value;
+        touch(entry);
+        return entry;
+    }
+
+    /**
+     * Finds the key's entry, removing it instead if it has expired.
+     */
+    private Stripe.Entry live(Stripe stripe, byte[] key, int hash, long now) {
+        Stripe.Entry entry = stripe.find(key, hash);
+        if (entry != null && entry.isExpired(now)) {
+            stripe.remove(key, hash);
+            release(entry, expiredKeys);
+            return null;
+        }
+        return entry;
+    }
+
+    private void release(Stripe.Entry removed, LongAdder counter) {
+        keys.decrement();
+        usedBytes.add(-(ENTRY_OVERHEAD + removed.key.length + removed.value.length));
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+
+    /**
+     * Evicts keys until {@code bytes} more fit under the limit. Runs before the write locks any stripe, and
+     * holds one stripe lock at a time, so it cannot deadlock with other writers.
+     */
+    private void makeRoom(long bytes) {
+        if (maxMemory == 0) {
+            return;
+        }
+        while (usedBytes.sum() + bytes > maxMemory) {
+            if (evictionPolicy == EvictionPolicy.NOEVICTION || bytes > maxMemory || !evictOne()) {
+                throw new IllegalStateException("Key-value store is over mudis.kv.maxmemory ("
+                        + maxMemory + " bytes)");
+            }
+        }
+    }
+
+    /**
+     * Samples the stripes in turn from a random one, and evicts the best candidate of the first that has any.
+     *
+     * @return false if there was nothing the policy may evict
+     */
+    private boolean evictOne() {
+        Stripe.Entry[] sample = new Stripe.Entry[evictionSamples];
+        int first = ThreadLocalRandom.current().nextInt(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = stripes[(first + i) & (stripes.length - 1)];
+            stripe.lock.lock();
+            try {
+                int found = stripe.sample(sample, evictionPolicy.volatileOnly());
+                if (found == 0) {
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                Stripe.Entry victim = sample[0];
+                long worst = evictionScore(victim, now);
+                for (int j = 1; j < found; j++) {
+                    long score = evictionScore(sample[j], now);
+                    if (score > worst) {
+                        victim = sample[j];
+                        worst = score;
+                    }
+                }
+                stripe.remove(victim.key, victim.hash);
+                release(victim, victim.isExpired(now) ? expiredKeys : evictedKeys);
+                return true;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * How much the entry deserves eviction, higher first. An expired entry always goes first.
+     */
+    private long evictionScore(Stripe.Entry entry, long now) {
+        if (entry.isExpired(now)) {
+            return Long.MAX_VALUE;
+        }
+        return switch (evictionPolicy) {
+            case ALLKEYS_LRU, VOLATILE_LRU -> recencyClock() - entry.access;
+            case ALLKEYS_LFU, VOLATILE_LFU -> 255 - decayedFrequency(entry.access);
+            case VOLATILE_TTL -> -entry.expiresAt;
+            case NOEVICTION -> 0;
+        };
+    }
+
+    private int initialAccess() {
+        if (evictionPolicy.tracksRecency()) {
+            return recencyClock();
+        }
+        return evictionPolicy.tracksFrequency() ? (minuteClock() << 8) | LFU_INITIAL : 0;
+    }
+
+    /**
+     * Records a read or write of the entry for the eviction policy.
+     */
+    private void touch(Stripe.Entry entry) {
+        if (evictionPolicy.tracksRecency()) {
+            entry.access = recencyClock();
+        } else if (evictionPolicy.tracksFrequency()) {
+            int counter = decayedFrequency(entry.access);
+            int odds = Math.max(0, counter - LFU_INITIAL) * LFU_LOG_FACTOR + 1;
+            if (counter < 255 && ThreadLocalRandom.current().nextInt(odds) == 0) {
+                counter++;
+            }
+            entry.access = (minuteClock() << 8) | counter;
+        }
+    }
+
+    private static int decayedFrequency(int access) {
+        int idleMinutes = (minuteClock() - (access >>> 8)) & 0xFFFFFF;
+        return Math.max(0, (access & 0xFF) - idleMinutes);
+    }
+
+    private static int recencyClock() {
+        return (int) (System.nanoTime() / RECENCY_UNIT_NANOS);
+    }
+
+    private static int minuteClock() {
+        return (int) (System.nanoTime() / MINUTE_NANOS) & 0xFFFFFF;
+    }
+
+    /**
+     * One tick of the expiry sweep: a slice of the keys with an expiry from each stripe, round robin, until
+     * the tick's budget of keys is spent or every stripe has had its turn.
+     */
+    private void sweepExpired() {
+        long now = System.currentTimeMillis();
+        int budget = sweepKeys;
+        for (int i = 0; i < stripes.length && budget > 0; i++) {
+            Stripe stripe = stripes[sweepStripe];
+            sweepStripe = (sweepStripe + 1) & (stripes.length - 1);
+            stripe.lock.lock();
+            try {
+                budget -= stripe.sweep(now, Math.min(budget, SWEEP_SLICE), expired -> release(expired, expiredKeys));
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    private Stripe stripeOf(int hash) {
+        return stripes[stripeShift == 0 ? 0 : hash >>> stripeShift];
+    }
+
+    /**
+     * Locks the stripes of the keys, each once and in index order.
+     */
+    private Stripe[] lockAll(byte[][] keys) {
+        int[] indexes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            indexes[i] = stripeShift == 0 ? 0 : hash(keys[i]) >>> stripeShift;
+        }
+        indexes = Arrays.stream(indexes).sorted().distinct().toArray();
+        Stripe[] locked = new Stripe[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            locked[i] = stripes[indexes[i]];
+            locked[i].lock.lock();
+        }
+        return locked;
+    }
+
+    private static void unlockAll(Stripe[] locked) {
+        for (int i = locked.length - 1; i >= 0; i--) {
+            locked[i].lock.unlock();
+        }
+    }
+
+    /**
+     * 32-bit FNV-1a, with its high half folded into the low one so bucket indexes see every byte.
+     */
+    static int hash(byte[] key) {
+        int hash = 0x811c9dc5;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,269 @@
+package io.mudis.mudisserver.kv;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * One lock's share of the key space: a chained hash table of byte array keys and values. Callers hold
+ * {@link #lock} around every method.
+ * <p>
+ * The table doubles once it is three quarters full, but not all at once: a table twice the size is
+ * allocated, and every operation afterwards moves a few of the old buckets into it, so no single operation
+ * pays for rehashing the whole stripe. Meanwhile a key is looked up in both tables, and new keys go to the
+ * new one.
+ * <p>
+ * Entries with an expiry are also kept in a dense array, each knowing its slot, so the expiry sweep and
+ * volatile eviction look at those entries only, however few of them there are among the rest. The stripe
+ * never expires anything by itself: {@link KeyValueStore} checks entries as it reads them and asks for a
+ * {@link #sweep} in the background.
+ */
+final class Stripe {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+    // Non-empty buckets moved per operation while resizing, and how many empty ones it may skip on the way
+    private static final int MOVE_STEP = 4;
+    private static final int EMPTY_VISITS = 40;
+    // Buckets a sample may visit per entry it asks for, so a sparse table cannot make it scan everything
+    private static final int SAMPLE_VISITS = 16;
+
+    final ReentrantLock lock = new ReentrantLock();
+    private Entry[] table = new Entry[INITIAL_CAPACITY];
+    // The table entries are moving to, or null, and how many buckets of the old one have moved
+    private Entry[] resized;
+    private int moved;
+    private int size;
+    // Entries with an expiry, in the first volatileKeys slots
+    private Entry[] expiring = new Entry[INITIAL_CAPACITY];
+    private int volatileKeys;
+    // Next slot of expiring the sweep looks at
+    private int sweepCursor;
+
+    static final class Entry {
+        final byte[] key;
+        final int hash;
+        byte[] value;
+        // Epoch milliseconds at which the entry expires, or 0 for never
+        long expiresAt;
+        // Recency or frequency for eviction, as encoded by KeyValueStore
+        int access;
+        // Slot in expiring, or -1 without an expiry
+        int slot = -1;
+        Entry next;
+
+        Entry(byte[] key, int hash, byte[] value, Entry next) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0 && expiresAt <= now;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the key's entry, expired or not, or null
+     */
+    Entry find(byte[] key, int hash) {
+        step();
+        if (resized != null) {
+            Entry entry = scan(resized[hash & (resized.length - 1)], key, hash);
+            if (entry != null || movedBucket(hash)) {
+                return entry;
+            }
+        }
+        return scan(table[hash & (table.length - 1)], key, hash);
+    }
+
+    /**
+     * Adds an entry for a key that is absent. The arrays are kept, not copied, and must not change afterwards.
+     */
+    Entry insert(byte[] key, int hash, byte[] value) {
+        Entry[] target = resized != null ? resized : table;
+        int index = hash & (target.length - 1);
+        Entry entry = new Entry(key, hash, value, target[index]);
+        target[index] = entry;
+        size++;
+        if (resized == null && size > table.length - (table.length >>> 2) && table.length < MAXIMUM_CAPACITY) {
+            resized = new Entry[table.length << 1];
+            moved = 0;
+        }
+        return entry;
+    }
+
+    /**
+     * Sets or, with 0, clears the entry's expiry.
+     */
+    void expireAt(Entry entry, long expiresAt) {
+        if (expiresAt != 0 && entry.slot < 0) {
+            if (volatileKeys == expiring.length) {
+                expiring = Arrays.copyOf(expiring, expiring.length << 1);
+            }
+            entry.slot = volatileKeys;
+            expiring[volatileKeys++] = entry;
+        } else if (expiresAt == 0 && entry.slot >= 0) {
+            vacate(entry);
+        }
+        entry.expiresAt = expiresAt;
+    }
+
+    /**
+     * Frees the entry's slot by moving the last expiring entry into it.
+     */
+    private void vacate(Entry entry) {
+        Entry last = expiring[--volatileKeys];
+        expiring[entry.slot] = last;
+        last.slot = entry.slot;
+        expiring[volatileKeys] = null;
+        entry.slot = -1;
+    }
+
+    /**
+     * @return the removed entry, or null if the key was absent
+     */
+    Entry remove(byte[] key, int hash) {
+        step();
+        Entry removed = null;
+        if (resized != null) {
+            removed = unlink(resized, key, hash);
+        }
+        if (removed == null && !movedBucket(hash)) {
+            removed = unlink(table, key, hash);
+        }
+        if (removed != null) {
+            forget(removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Fills {@code sample} with entries picked at random among those with an expiry if {@code volatileOnly},
+     * or else from a random run of buckets.
+     *
+     * @return how many it found, which may be fewer than asked for
+     */
+    int sample(Entry[] sample, boolean volatileOnly) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (volatileOnly) {
+            int found = Math.min(sample.length, volatileKeys);
+            for (int i = 0; i < found; i++) {
+                sample[i] = expiring[random.nextInt(volatileKeys)];
+            }
+            return found;
+        }
+        if (size == 0) {
+            return 0;
+        }
+        // Both tables hold entries while resizing, so the run may start in either
+        int span = table.length + (resized != null ? resized.length : 0);
+        int index = random.nextInt(span);
+        int found = 0;
+        for (int visits = sample.length * SAMPLE_VISITS; visits > 0 && found < sample.length; visits--) {
+            Entry entry = index < table.length ? table[index] : resized[index - table.length];
+            for (; entry != null && found < sample.length; entry = entry.next) {
+                sample[found++] = entry;
+            }
+            index = index + 1 == span ? 0 : index + 1;
+        }
+        return found;
+    }
+
+    /**
+     * Looks at the next few entries with an expiry, removing those that have expired and passing each to
+     * {@code expired}.
+     *
+     * @return how many entries it looked at
+     */
+    int sweep(long now, int maxEntries, Consumer<Entry> expired) {
+        int checks = Math.min(maxEntries, volatileKeys);
+        for (int i = 0; i < checks && volatileKeys > 0; i++) {
+            if (sweepCursor >= volatileKeys) {
+                sweepCursor = 0;
+            }
+            Entry entry = expiring[sweepCursor];
+            if (entry.isExpired(now)) {
+                // The last entry moves into this slot, so the cursor stays to look at it next
+                remove(entry.key, entry.hash);
+                expired.accept(entry);
+            } else {
+                sweepCursor++;
+            }
+        }
+        return checks;
+    }
+
+    private void forget(Entry removed) {
+        size--;
+        if (removed.slot >= 0) {
+            vacate(removed);
+        }
+    }
+
+    private boolean movedBucket(int hash) {
+        return resized != null && (hash & (table.length - 1)) < moved;
+    }
+
+    private static Entry scan(Entry entry, byte[] key, int hash) {
+        while (entry != null && (entry.hash != hash || !Arrays.equals(entry.key, key))) {
+            entry = entry.next;
+        }
+        return entry;
+    }
+
+    private static Entry unlink(Entry[] buckets, byte[] key, int hash) {
+        int index = hash & (buckets.length - 1);
+        Entry previous = null;
+        for (Entry entry = buckets[index]; entry != null; previous = entry, entry = entry.next) {
+            if (entry.hash == hash && Arrays.equals(entry.key, key)) {
+                if (previous == null) {
+                    buckets[index] = entry.next;
+                } else {
+                    previous.next = entry.next;
+                }
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the next few buckets of a resize in progress, and swaps the tables once all have moved.
+     */
+    private void step() {
+        if (resized == null) {
+            return;
+        }
+        int mask = resized.length - 1;
+        int filled = 0;
+        int empty = 0;
+        while (moved < table.length && filled < MOVE_STEP && empty < EMPTY_VISITS) {
+            Entry entry = table[moved];
+            if (entry == null) {
+                empty++;
+            } else {
+                filled++;
+                while (entry != null) {
+                    Entry next = entry.next;
+                    int index = entry.hash & mask;
+                    entry.next = resized[index];
+                    resized[index] = entry;
+                    entry = next;
+                }
+                table[moved] = null;
+            }
+            moved++;
+        }
+        if (moved == table.length) {
+            table = resized;
+            resized = null;
+            moved = 0;
+        }
+    }
+}
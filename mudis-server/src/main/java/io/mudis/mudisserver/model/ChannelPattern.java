@@ -0,0 +1,42 @@
+package io.mudis.mudisserver.model;
+
+/**
+ * Syntax of PSUBSCRIBE patterns. Channel names are read as segments separated by dots; in a pattern,
+ * {@code *} stands for exactly one segment and a trailing {@code **} for one or more, so
+ * {@code orders.*.eu} matches {@code orders.42.eu} and {@code orders.**} matches {@code orders.42.eu}.
+ * Wildcards always stand for whole segments.
+ */
+public final class ChannelPattern {
+    public static final char SEPARATOR = '.';
+    public static final String ONE = "*";
+    public static final String REST = "**";
+
+    private ChannelPattern() {
+    }
+
+    /**
+     * Returns the pattern if it is well-formed and has at least one wildcard.
+     */
+    public static String validate(String pattern) {
+        String[] segments = pattern.split("\\.", -1);
+        boolean wildcard = false;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.isEmpty()) {
+                throw new IllegalArgumentException("Empty segment in pattern: " + pattern);
+            }
+            if (segment.equals(REST) && i != segments.length - 1) {
+                throw new IllegalArgumentException(REST + " must be the last segment: " + pattern);
+            }
+            if (segment.equals(ONE) || segment.equals(REST)) {
+                wildcard = true;
+            } else if (segment.indexOf('*') >= 0) {
+                throw new IllegalArgumentException("Wildcards must be whole segments: " + pattern);
+            }
+        }
+        if (!wildcard) {
+            throw new IllegalArgumentException("Pattern has no wildcard, use SUBSCRIBE: " + pattern);
+        }
+        return pattern;
+    }
+}
@@ -0,0 +1,31 @@
+package io.mudis.mudisserver.model;
+
+import java.util.List;
+
+/**
+ * Consumer group a subscription joins, set with the SUBSCRIBE option {@code GROUP <name> [ROUND_ROBIN|HASH]}.
+ * Each message of the channel then goes to exactly one member of the group instead of to every subscriber.
+ */
+public record ConsumerGroupSpec(String name, GroupBalance balance) {
+
+    /**
+     * Removes the GROUP option from the tokens, if there is one, and returns it; the remaining tokens are
+     * the subscription limits.
+     */
+    static ConsumerGroupSpec extract(List<String> tokens) {
+        for (int i = 0; i < tokens.size(); i++) {
+            if (!tokens.get(i).equalsIgnoreCase("GROUP")) {
+                continue;
+            }
+            if (i + 1 >= tokens.size()) {
+                throw new IllegalArgumentException("Missing value for option: GROUP");
+            }
+
+            String name = tokens.get(i + 1);
+            GroupBalance balance = i + 2 < tokens.size() ? GroupBalance.parse(tokens.get(i + 2)) : null;
+            tokens.subList(i, balance != null ? i + 3 : i + 2).clear();
+            return new ConsumerGroupSpec(name, balance != null ? balance : GroupBalance.ROUND_ROBIN);
+        }
+        return null;
+    }
+}
@@ -1,14 +1,51 @@
 package io.mudis.mudisserver.model;
 
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+
 public enum DataStructure {
-    SET,
-    QUEUE;
-
-    public static DataStructure from(String arg) {
-        return switch (arg) {
-            case "#{}" -> SET;
-            case "[]" -> QUEUE;
-            default -> throw new IllegalStateException("Unexpected value: " + arg);
-        };
+    SET("#{}"),
+    QUEUE("[]"),
+    // Not buffered: each message is pushed to the subscriber's connection as it is published
+    STREAM("()");
+
+    private static final DataStructure[] VALUES = values();
+
+    private final byte[] token;
+
+    DataStructure(String token) {
+        this.token = token.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The token a client subscribes with, e.g. "[]".
+     */
+    public String token() {
+        return new String(token, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Resolves the data structure whose token equals the given region, without decoding it to a String.
+     */
+    public static DataStructure from(ByteBuf buf, int index, int length) {
+        for (DataStructure ds : VALUES) {
+            if (ds.matches(buf, index, length)) {
+                return ds;
+            }
+        }
+        throw new IllegalStateException("Unexpected value: " + buf.toString(index, length, StandardCharsets.UTF_8));
+    }
+
+    private boolean matches(ByteBuf buf, int index, int length) {
+        if (length != token.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf.getByte(index + i) != token[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 }
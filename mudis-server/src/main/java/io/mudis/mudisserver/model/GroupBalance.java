@@ -0,0 +1,19 @@
+package io.mudis.mudisserver.model;
+
+/**
+ * How a consumer group picks the one member each message goes to.
+ */
+public enum GroupBalance {
+    // Members in turn, skipping any that cannot take the message right now
+    ROUND_ROBIN,
+    // The member chosen by the message's key, so messages with the same key keep going to the same member
+    HASH;
+
+    static GroupBalance parse(String token) {
+        try {
+            return valueOf(token.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package io.mudis.mudisserver.model;
+
+/**
+ * What a bounded subscription does with a new message once one of its limits is reached.
+ */
+public enum LimitPolicy {
+    // Evict buffered messages, oldest first, until the new one fits
+    DROP_OLDEST,
+    // Keep the buffer as is and discard the new message
+    DROP_NEWEST,
+    // Refuse the publish with an error reply
+    REJECT;
+
+    static LimitPolicy parse(String token) {
+        try {
+            return valueOf(token.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -1,72 +1,648 @@
 package io.mudis.mudisserver.model;
 
 import io.mudis.mudisshared.model.Operation;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.ByteProcessor;
+import io.netty.util.ReferenceCounted;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Decoded client request. Arguments are parsed straight out of the frame buffer with the same
+ * acceptance rules the previous regular expressions had:
+ * <ul>
+ *     <li>SHOW / UNSUBSCRIBE / DRAIN: {@code ^([^ ]+)$}, SHOW optionally followed by a cursor or NEW and a count</li>
+ *     <li>POP: a channel, optionally followed by a count</li>
+ *     <li>SUBSCRIBE / PSUBSCRIBE / PUBLISH: {@code ^([^ ]+)\s+(.*)$}</li>
+ *     <li>PUNSUBSCRIBE: {@code ^([^ ]+)$}</li>
+ *     <li>DSUBSCRIBE: a channel and a subscription name, optionally followed by an offset</li>
+ *     <li>ACK: a channel, a subscription name and an offset</li>
+ *     <li>DUNSUBSCRIBE: a channel and a subscription name</li>
+ *     <li>CLUSTER: no arguments, or PEER and the address of the node opening the connection</li>
+ *     <li>SYNC: the replication id a replica last followed, or ?, and the offset it has reached</li>
+ *     <li>REPLICAOF: the host:port of a leader, or NO ONE</li>
+ *     <li>GET / INCR: {@code ^([^ ]+)$}, a key</li>
+ *     <li>SET: a key and a non-empty value, split like PUBLISH, then optionally EX seconds or PX milliseconds</li>
+ *     <li>DEL / MGET: one or more keys; MSET: key value pairs, whitespace-free values</li>
+ * </ul>
+ * For SUBSCRIBE the rest is the data structure token, optionally followed by {@link SubscriptionLimits} options
+ * and a {@link ConsumerGroupSpec GROUP} option.
+ * PSUBSCRIBE takes the same arguments with a {@link ChannelPattern} in place of the channel.
+ * A PUBLISH message ending in {@code DELAY <ms>} or {@code AT <epoch-ms>} is scheduled rather than published
+ * at once; the option is not part of the message. Options are upper case, so a message ending in, say,
+ * {@code at 5} is published as it is, and only the last option is taken off, so {@code DELAY 0} after a
+ * message publishes it literally whatever it ends in. The same goes for the EX and PX options of SET.
+ */
 public sealed interface Message {
-    // Matches a single channel name (e.g., SHOW <channel>)
-    Pattern SHOW_CHANNEL_PATTERN = Pattern.compile("^([^ ]+)$");
-    // Matches subscribe with channel and data structure (e.g., SUBSCRIBE <channel> <data_structure>)
-    Pattern SUBSCRIBE_PATTERN = Pattern.compile("^([^ ]+)\\s+(.*)$");
-    // Matches publish with channel and message (e.g., PUBLISH <channel> <message>)
-    Pattern PUBLISH_PATTERN = Pattern.compile("^([^ ]+)\\s+(.*)$");
-    // Matches unsubscribe with a single channel (e.g., UNSUBSCRIBE <channel>)
-    Pattern UNSUBSCRIBE_PATTERN = Pattern.compile("^([^ ]+)$");
-
-    static Message of(Operation op, String args) {
+    // Bytes matched by \s (without UNICODE_CHARACTER_CLASS): space, \t, \n, \x0B, \f, \r
+    ByteProcessor FIND_WHITESPACE = value -> !isWhitespace(value);
+    ByteProcessor FIND_NON_WHITESPACE = Message::isWhitespace;
+    // Bytes that can start a character '.' refuses to match: \n, \r and the UTF-8 lead bytes of U+0085, U+2028, U+2029
+    ByteProcessor FIND_LINE_TERMINATOR_LEAD = value -> value != '\n' && value != '\r'
+            && value != (byte) 0xC2 && value != (byte) 0xE2;
+
+    static Message of(Operation op, int requestId, ByteBuf args) {
         return switch (op) {
-            case SHOW -> newShowMessage(args);
-            case SUBSCRIBE -> newSubscribeMessage(args);
-            case PUBLISH -> newPublishMessage(args);
-            case UNSUBSCRIBE -> newUnsubscribeMessage(args);
+            case SHOW -> newShowMessage(requestId, args);
+            case SUBSCRIBE -> newSubscribeMessage(requestId, args, false);
+            case PSUBSCRIBE -> newSubscribeMessage(requestId, args, true);
+            case PUBLISH -> newPublishMessage(requestId, args);
+            case UNSUBSCRIBE -> new Unsubscribe(requestId, readChannel(args));
+            case INFO -> new Info(checkNoArguments(requestId, args));
+            case SUBSCRIPTIONS -> new Subscriptions(checkNoArguments(requestId, args));
+            case SNAPSHOT -> new Snapshot(checkNoArguments(requestId, args));
+            case PUNSUBSCRIBE -> new PUnsubscribe(requestId, ChannelPattern.validate(readChannel(args)));
+            case POP -> newPopMessage(requestId, args);
+            case DRAIN -> new Pop(requestId, readChannel(args), Pop.ALL);
+            case DSUBSCRIBE -> newDSubscribeMessage(requestId, args);
+            case ACK -> newAckMessage(requestId, args);
+            case DUNSUBSCRIBE -> {
+                String[] tokens = splitTokens(args, 2, 2);
+                yield new DUnsubscribe(requestId, tokens[0], tokens[1]);
+            }
+            case CLUSTER -> newClusterMessage(requestId, args);
+            case SYNC -> {
+                String[] tokens = splitTokens(args, 2, 2);
+                yield new Sync(requestId, tokens[0].equals(Sync.NO_ID) ? null : tokens[0],
+                        parseNonNegative("offset", tokens[1]));
+            }
+            case REPLICAOF -> newReplicaOfMessage(requestId, args);
+            case GET -> new Get(requestId, readKey(args));
+            case SET -> newSetMessage(requestId, args);
+            case DEL -> new Del(requestId, readKeys(args));
+            case MGET -> new MGet(requestId, readKeys(args));
+            case MSET -> newMSetMessage(requestId, args);
+            case INCR -> new Incr(requestId, readKey(args));
         };
     }
 
-    private static Matcher getMatcher(Pattern pattern, String s) {
-        Matcher matcher = pattern.matcher(s);
-        if (!matcher.matches()) {
-            throw new IllegalStateException("Invalid input: " + s);
+    /**
+     * Id of the request this message was decoded from; replies echo it back.
+     */
+    int requestId();
+
+    private static IllegalStateException invalidInput(ByteBuf args) {
+        return new IllegalStateException("Invalid input: " + args.toString(StandardCharsets.UTF_8));
+    }
+
+    private static boolean isWhitespace(byte value) {
+        return value == ' ' || (value >= '\t' && value <= '\r');
+    }
+
+    /**
+     * Reads a whole-argument channel name (e.g., SHOW <channel>).
+     */
+    private static String readChannel(ByteBuf args) {
+        int start = args.readerIndex();
+        int end = args.writerIndex();
+        if (start == end || args.indexOf(start, end, (byte) ' ') >= 0) {
+            throw invalidInput(args);
+        }
+        return args.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds where the channel of a "<channel> <rest>" argument ends. The regex takes everything up to the
+     * first space; without one it backtracks to the last whitespace byte. A shorter channel never helps,
+     * because the remainder it leaves for (.*) only grows.
+     */
+    private static int channelEnd(ByteBuf args) {
+        int start = args.readerIndex();
+        int end = args.writerIndex();
+
+        int space = args.indexOf(start, end, (byte) ' ');
+        if (space >= 0) {
+            return space > start ? space : -1;
+        }
+
+        if (end - start < 2) {
+            return -1;
+        }
+        int last = args.forEachByteDesc(start + 1, end - start - 1, FIND_WHITESPACE);
+        return last > start ? last : -1;
+    }
+
+    /**
+     * Skips the whitespace run (\s+) that starts at the channel end.
+     */
+    private static int restStart(ByteBuf args, int channelEnd) {
+        int end = args.writerIndex();
+        int rest = args.forEachByte(channelEnd, end - channelEnd, FIND_NON_WHITESPACE);
+        return rest < 0 ? end : rest;
+    }
+
+    private static boolean containsLineTerminator(ByteBuf args, int from, int to) {
+        int i = from;
+        while (i < to) {
+            int lead = args.forEachByte(i, to - i, FIND_LINE_TERMINATOR_LEAD);
+            if (lead < 0) {
+                return false;
+            }
+
+            byte b = args.getByte(lead);
+            if (b == '\n' || b == '\r') {
+                return true;
+            }
+            if (b == (byte) 0xC2) {
+                // U+0085 is C2 85
+                if (lead + 1 < to && args.getByte(lead + 1) == (byte) 0x85) {
+                    return true;
+                }
+            } else if (lead + 2 < to && args.getByte(lead + 1) == (byte) 0x80) {
+                // U+2028 and U+2029 are E2 80 A8 and E2 80 A9
+                byte last = args.getByte(lead + 2);
+                if (last == (byte) 0xA8 || last == (byte) 0xA9) {
+                    return true;
+                }
+            }
+            i = lead + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Splits "<channel> <rest>" and returns the index the rest starts at, or -1 when the input does not match.
+     */
+    private static int splitChannel(ByteBuf args, int channelEnd) {
+        if (channelEnd < 0) {
+            return -1;
+        }
+        int rest = restStart(args, channelEnd);
+        return containsLineTerminator(args, rest, args.writerIndex()) ? -1 : rest;
+    }
+
+    private static Message newSubscribeMessage(int requestId, ByteBuf args, boolean pattern) {
+        int channelEnd = channelEnd(args);
+        int rest = splitChannel(args, channelEnd);
+        if (rest < 0) {
+            throw invalidInput(args);
+        }
+
+        int start = args.readerIndex();
+        String channel = args.toString(start, channelEnd - start, StandardCharsets.UTF_8);
+        int end = args.writerIndex();
+        int dsEnd = args.forEachByte(rest, end - rest, FIND_WHITESPACE);
+        if (dsEnd < 0) {
+            dsEnd = end;
+        }
+        DataStructure ds = DataStructure.from(args, rest, dsEnd - rest);
+        SubscriptionLimits limits = SubscriptionLimits.UNBOUNDED;
+        ConsumerGroupSpec group = null;
+        if (dsEnd != end) {
+            String options = args.toString(dsEnd, end - dsEnd, StandardCharsets.UTF_8).trim();
+            List<String> tokens = options.isEmpty() ? new ArrayList<>() : new ArrayList<>(List.of(options.split("\\s+")));
+            group = ConsumerGroupSpec.extract(tokens);
+            limits = SubscriptionLimits.parse(String.join(" ", tokens));
+        }
+        return pattern
+                ? new PSubscribe(requestId, ChannelPattern.validate(channel), ds, limits, group)
+                : new Subscribe(requestId, channel, ds, limits, group);
+    }
+
+    private static Message newPublishMessage(int requestId, ByteBuf args) {
+        int channelEnd = channelEnd(args);
+        int rest = splitChannel(args, channelEnd);
+        if (rest < 0) {
+            throw invalidInput(args);
+        }
+
+        int start = args.readerIndex();
+        int end = args.writerIndex();
+        long deliverAt = Publish.NOW;
+
+        // A trailing "DELAY <ms>" or "AT <epoch-ms>" after a non-empty message schedules it. Only the last
+        // option is taken off, so "DELAY 0" after a message ending in such words publishes them literally
+        int keywordSpace = trailingOption(args, rest, end);
+        if (keywordSpace >= 0) {
+            String keyword = optionKeyword(args, keywordSpace, end);
+            boolean delay = keyword.equals("DELAY");
+            if (delay || keyword.equals("AT")) {
+                long parsed = parseNonNegative(keyword, optionValue(args, end));
+                if (!delay && parsed < System.currentTimeMillis()) {
+                    throw new IllegalArgumentException("AT is in the past: " + parsed);
+                }
+                deliverAt = delay ? fromNow(parsed) : parsed;
+                end = args.forEachByteDesc(rest, keywordSpace - rest, FIND_NON_WHITESPACE) + 1;
+            }
+        }
+
+        String channel = args.toString(start, channelEnd - start, StandardCharsets.UTF_8);
+        ByteBuf payload = args.retainedSlice(rest, end - rest);
+        return new Publish(requestId, channel, payload, deliverAt);
+    }
+
+    /**
+     * Finds a trailing "<keyword> <digits>" option in {@code [rest, end)} that follows a non-empty value.
+     *
+     * @return the index of the whitespace before the keyword, or -1 if there is no such option
+     */
+    private static int trailingOption(ByteBuf args, int rest, int end) {
+        int valueSpace = args.forEachByteDesc(rest, end - rest, FIND_WHITESPACE);
+        if (valueSpace <= rest || !isDigits(args, valueSpace + 1, end)) {
+            return -1;
+        }
+        int keywordEnd = args.forEachByteDesc(rest, valueSpace - rest, FIND_NON_WHITESPACE) + 1;
+        int keywordSpace = args.forEachByteDesc(rest, keywordEnd - rest, FIND_WHITESPACE);
+        return keywordSpace > rest ? keywordSpace : -1;
+    }
+
+    private static String optionKeyword(ByteBuf args, int keywordSpace, int end) {
+        int keywordStart = keywordSpace + 1;
+        int keywordEnd = args.forEachByte(keywordStart, end - keywordStart, FIND_WHITESPACE);
+        return args.toString(keywordStart, keywordEnd - keywordStart, StandardCharsets.US_ASCII);
+    }
+
+    private static String optionValue(ByteBuf args, int end) {
+        int valueSpace = args.forEachByteDesc(args.readerIndex(), end - args.readerIndex(), FIND_WHITESPACE);
+        return args.toString(valueSpace + 1, end - valueSpace - 1, StandardCharsets.US_ASCII);
+    }
+
+    private static long fromNow(long millis) {
+        long now = System.currentTimeMillis();
+        return now + Math.min(millis, Long.MAX_VALUE - now);
+    }
+
+    private static boolean isDigits(ByteBuf args, int from, int to) {
+        return from < to && args.forEachByte(from, to - from, value -> value >= '0' && value <= '9') < 0;
+    }
+
+    private static Message newShowMessage(int requestId, ByteBuf args) {
+        int start = args.readerIndex();
+        int end = args.writerIndex();
+        if (args.indexOf(start, end, (byte) ' ') < 0) {
+            return new Show(requestId, readChannel(args), Show.ALL, false, 0);
+        }
+
+        String[] tokens = args.toString(StandardCharsets.UTF_8).split(" +");
+        if (tokens.length < 2 || tokens.length > 3 || tokens[0].isEmpty()) {
+            throw invalidInput(args);
+        }
+
+        boolean sinceLastRead = tokens[1].equalsIgnoreCase("NEW");
+        long cursor = sinceLastRead ? Show.ALL : parseNonNegative("cursor", tokens[1]);
+        int count = tokens.length == 3
+                ? (int) Math.min(Integer.MAX_VALUE, parseNonNegative("count", tokens[2]))
+                : sinceLastRead ? 0 : Show.DEFAULT_PAGE_SIZE;
+        return new Show(requestId, tokens[0], cursor, sinceLastRead, count);
+    }
+
+    private static Message newPopMessage(int requestId, ByteBuf args) {
+        int start = args.readerIndex();
+        int end = args.writerIndex();
+        if (args.indexOf(start, end, (byte) ' ') < 0) {
+            return new Pop(requestId, readChannel(args), 1);
+        }
+
+        String[] tokens = args.toString(StandardCharsets.UTF_8).split(" +");
+        if (tokens.length != 2 || tokens[0].isEmpty()) {
+            throw invalidInput(args);
+        }
+        long count = parseNonNegative("count", tokens[1]);
+        if (count == 0) {
+            throw new IllegalArgumentException("POP count must be positive");
+        }
+        return new Pop(requestId, tokens[0], (int) Math.min(Integer.MAX_VALUE, count));
+    }
+
+    private static Message newClusterMessage(int requestId, ByteBuf args) {
+        if (!args.isReadable()) {
+            return new Cluster(requestId, null);
+        }
+        String[] tokens = splitTokens(args, 2, 2);
+        if (!tokens[0].equalsIgnoreCase("PEER")) {
+            throw invalidInput(args);
+        }
+        return new Cluster(requestId, tokens[1]);
+    }
+
+    private static Message newReplicaOfMessage(int requestId, ByteBuf args) {
+        String[] tokens = splitTokens(args, 1, 2);
+        if (tokens.length == 2) {
+            if (!tokens[0].equalsIgnoreCase("NO") || !tokens[1].equalsIgnoreCase("ONE")) {
+                throw invalidInput(args);
+            }
+            return new ReplicaOf(requestId, null);
+        }
+        if (tokens[0].lastIndexOf(':') <= 0) {
+            throw new IllegalArgumentException("Leader must be host:port: " + tokens[0]);
+        }
+        return new ReplicaOf(requestId, tokens[0]);
+    }
+
+    /**
+     * Reads a whole-argument key, like {@link #readChannel}, as its bytes.
+     */
+    private static byte[] readKey(ByteBuf args) {
+        int start = args.readerIndex();
+        int end = args.writerIndex();
+        if (start == end || args.indexOf(start, end, (byte) ' ') >= 0) {
+            throw invalidInput(args);
+        }
+        return ByteBufUtil.getBytes(args);
+    }
+
+    private static byte[][] readKeys(ByteBuf args) {
+        String[] tokens = splitTokens(args, 1, Integer.MAX_VALUE);
+        byte[][] keys = new byte[tokens.length][];
+        for (int i = 0; i < tokens.length; i++) {
+            keys[i] = tokens[i].getBytes(StandardCharsets.UTF_8);
         }
-        return matcher;
+        return keys;
+    }
+
+    /**
+     * Splits "<key> <value>" as PUBLISH splits its channel and message. The value may hold spaces but no line
+     * terminator, and may not be empty, so MGET can answer one line per key with an empty line for a missing one.
+     * A trailing "EX <seconds>" or "PX <ms>" after the value sets the key's expiry.
+     */
+    private static Message newSetMessage(int requestId, ByteBuf args) {
+        int keyEnd = channelEnd(args);
+        int rest = splitChannel(args, keyEnd);
+        int end = args.writerIndex();
+        if (rest < 0 || rest == end) {
+            throw invalidInput(args);
+        }
+
+        long expiresAt = Set.NO_EXPIRY;
+        int keywordSpace = trailingOption(args, rest, end);
+        if (keywordSpace >= 0) {
+            String keyword = optionKeyword(args, keywordSpace, end);
+            boolean seconds = keyword.equals("EX");
+            if (seconds || keyword.equals("PX")) {
+                long parsed = parseNonNegative(keyword, optionValue(args, end));
+                if (parsed == 0) {
+                    throw new IllegalArgumentException(keyword + " must be positive");
+                }
+                long millis = !seconds ? parsed : parsed > Long.MAX_VALUE / 1000 ? Long.MAX_VALUE : parsed * 1000;
+                expiresAt = fromNow(millis);
+                end = args.forEachByteDesc(rest, keywordSpace - rest, FIND_NON_WHITESPACE) + 1;
+            }
+        }
+
+        int start = args.readerIndex();
+        return new Set(requestId, ByteBufUtil.getBytes(args, start, keyEnd - start),
+                ByteBufUtil.getBytes(args, rest, end - rest), expiresAt);
+    }
+
+    private static Message newMSetMessage(int requestId, ByteBuf args) {
+        String[] tokens = args.toString(StandardCharsets.UTF_8).split("\\s+");
+        if (tokens.length < 2 || tokens.length % 2 != 0 || tokens[0].isEmpty()) {
+            throw invalidInput(args);
+        }
+        byte[][] keys = new byte[tokens.length / 2][];
+        byte[][] values = new byte[tokens.length / 2][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = tokens[2 * i].getBytes(StandardCharsets.UTF_8);
+            values[i] = tokens[2 * i + 1].getBytes(StandardCharsets.UTF_8);
+        }
+        return new MSet(requestId, keys, values);
+    }
+
+    private static Message newDSubscribeMessage(int requestId, ByteBuf args) {
+        String[] tokens = splitTokens(args, 2, 3);
+        long from = tokens.length == 3 ? parseNonNegative("offset", tokens[2]) : DSubscribe.COMMITTED;
+        return new DSubscribe(requestId, tokens[0], tokens[1], from);
+    }
+
+    private static Message newAckMessage(int requestId, ByteBuf args) {
+        String[] tokens = splitTokens(args, 3, 3);
+        return new Ack(requestId, tokens[0], tokens[1], parseNonNegative("offset", tokens[2]));
+    }
+
+    /**
+     * Splits space-separated arguments, of which there must be between {@code min} and {@code max}.
+     */
+    private static String[] splitTokens(ByteBuf args, int min, int max) {
+        String[] tokens = args.toString(StandardCharsets.UTF_8).split(" +");
+        if (tokens.length < min || tokens.length > max || tokens[0].isEmpty()) {
+            throw invalidInput(args);
+        }
+        return tokens;
+    }
+
+    private static long parseNonNegative(String name, String value) {
+        try {
+            long parsed = Long.parseLong(value);
+            if (parsed < 0) {
+                throw new IllegalArgumentException("Negative " + name + ": " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value, e);
+        }
+    }
+
+    /**
+     * Returns the request id of a request that takes no arguments.
+     */
+    private static int checkNoArguments(int requestId, ByteBuf args) {
+        if (args.isReadable()) {
+            throw invalidInput(args);
+        }
+        return requestId;
+    }
+
+    /**
+     * SHOW request. Without a cursor it returns the whole buffer; {@code SHOW <channel> <cursor> [count]} returns
+     * one page and {@code SHOW <channel> NEW [count]} the messages added since the previous NEW read. A count of 0
+     * means no limit.
+     */
+    record Show(int requestId, String channel, long cursor, boolean sinceLastRead, int count) implements Message {
+        public static final long ALL = -1;
+        public static final int DEFAULT_PAGE_SIZE = 100;
+
+        /**
+         * Paged replies start with the cursor to continue from.
+         */
+        public boolean paged() {
+            return cursor != ALL || sinceLastRead;
+        }
+    }
+
+    /**
+     * POP / DRAIN request: removes up to {@code count} of the oldest buffered messages and returns them.
+     * {@code POP <channel>} takes one message; DRAIN takes all of them.
+     */
+    record Pop(int requestId, String channel, int count) implements Message {
+        public static final int ALL = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Subscription to a channel; with a {@code group}, a membership of that consumer group, otherwise null.
+     */
+    record Subscribe(int requestId, String channel, DataStructure ds, SubscriptionLimits limits,
+                     ConsumerGroupSpec group) implements Message {
+    }
+
+    /**
+     * Subscription to every channel matching a {@link ChannelPattern}.
+     */
+    record PSubscribe(int requestId, String pattern, DataStructure ds, SubscriptionLimits limits,
+                      ConsumerGroupSpec group) implements Message {
+    }
+
+    record PUnsubscribe(int requestId, String pattern) implements Message {
+    }
+
+    /**
+     * Publish request holding a retained slice of the inbound frame. It is released by the inbound
+     * handler once processed, so the payload is only copied when it gets stored. It is published at
+     * {@code deliverAt}, in epoch milliseconds, or at once if that has passed.
+     */
+    record Publish(int requestId, String channel, ByteBuf payload, long deliverAt) implements Message, ReferenceCounted {
+        public static final long NOW = 0;
+
+        public boolean isScheduled() {
+            return deliverAt > System.currentTimeMillis();
+        }
+
+        @Override
+        public int refCnt() {
+            return payload.refCnt();
+        }
+
+        @Override
+        public Publish retain() {
+            payload.retain();
+            return this;
+        }
+
+        @Override
+        public Publish retain(int increment) {
+            payload.retain(increment);
+            return this;
+        }
+
+        @Override
+        public Publish touch() {
+            payload.touch();
+            return this;
+        }
+
+        @Override
+        public Publish touch(Object hint) {
+            payload.touch(hint);
+            return this;
+        }
+
+        @Override
+        public boolean release() {
+            return payload.release();
+        }
+
+        @Override
+        public boolean release(int decrement) {
+            return payload.release(decrement);
+        }
+    }
+
+    record Unsubscribe(int requestId, String channel) implements Message {
+    }
+
+    /**
+     * Attaches to the durable subscription {@code name} on the channel, creating it if needed, and replays
+     * from {@code from}, or from its committed offset when none is given.
+     */
+    record DSubscribe(int requestId, String channel, String name, long from) implements Message {
+        public static final long COMMITTED = -1;
+    }
+
+    /**
+     * Commits a durable subscription's progress up to and including the offset.
+     */
+    record Ack(int requestId, String channel, String name, long offset) implements Message {
+    }
+
+    /**
+     * Deletes a durable subscription and its committed offset.
+     */
+    record DUnsubscribe(int requestId, String channel, String name) implements Message {
+    }
+
+    /**
+     * Server statistics request; it takes no arguments.
+     */
+    record Info(int requestId) implements Message {
+    }
+
+    /**
+     * Lists the channels the requesting connection is subscribed to; it takes no arguments.
+     */
+    record Subscriptions(int requestId) implements Message {
+    }
+
+    /**
+     * Saves a snapshot of every buffered subscription; it takes no arguments.
+     */
+    record Snapshot(int requestId) implements Message {
+    }
+
+    /**
+     * Asks for the cluster topology, or, with a {@code peer} address, marks the connection as one opened by
+     * that node, whose requests are always served locally.
+     */
+    record Cluster(int requestId, String peer) implements Message {
+    }
+
+    /**
+     * Opens a replication stream. A replica sends the replication id it followed and the offset it reached,
+     * to resume from there, or {@value NO_ID} and 0 to be sent the whole state.
+     */
+    record Sync(int requestId, String replicationId, long offset) implements Message {
+        public static final String NO_ID = "?";
     }
 
-    private static Message newShowMessage(String s) {
-        Matcher matcher = getMatcher(SHOW_CHANNEL_PATTERN, s);
-        String channel = matcher.group(1);
-        return new Show(channel);
+    /**
+     * Makes the server a replica of {@code leader}, or, with a null leader (REPLICAOF NO ONE), promotes it.
+     */
+    record ReplicaOf(int requestId, String leader) implements Message {
     }
 
-    private static Message newSubscribeMessage(String s) {
-        Matcher matcher = getMatcher(SUBSCRIBE_PATTERN, s);
-        String channel = matcher.group(1);
-        String ds = matcher.group(2);
-        return new Subscribe(channel, DataStructure.from(ds));
+    /**
+     * Reads a key's value.
+     */
+    record Get(int requestId, byte[] key) implements Message {
     }
 
-    private static Message newPublishMessage(String s) {
-        Matcher matcher = getMatcher(PUBLISH_PATTERN, s);
-        String channel = matcher.group(1);
-        String message = matcher.group(2);
-        return new Publish(channel, message);
+    /**
+     * Sets a key's value. Both are copies of the frame's bytes, which the store keeps as they are. The key
+     * expires at {@code expiresAt}, in epoch milliseconds, or never.
+     */
+    record Set(int requestId, byte[] key, byte[] value, long expiresAt) implements Message {
+        public static final long NO_EXPIRY = 0;
     }
 
-    private static Message newUnsubscribeMessage(String s) {
-        Matcher matcher = getMatcher(UNSUBSCRIBE_PATTERN, s);
-        String channel = matcher.group(1);
-        return new Unsubscribe(channel);
+    /**
+     * Deletes keys.
+     */
+    record Del(int requestId, byte[][] keys) implements Message {
     }
 
-    record Show(String channel) implements Message {
+    /**
+     * Reads several keys' values at once.
+     */
+    record MGet(int requestId, byte[][] keys) implements Message {
     }
 
-    record Subscribe(String channel, DataStructure ds) implements Message {
+    /**
+     * Sets several keys at once, {@code keys[i]} to {@code values[i]}.
+     */
+    record MSet(int requestId, byte[][] keys, byte[][] values) implements Message {
     }
 
-    record Publish(String channel, String message) implements Message {
+    /**
+     * Adds one to a key's integer value.
+     */
+    record Incr(int requestId, byte[] key) implements Message {
     }
 
-    record Unsubscribe(String channel) implements Message {
+    /**
+     * Well-framed request whose arguments could not be parsed. It is answered with an error
+     * instead of closing the connection, so other requests in flight are unaffected.
+     */
+    record Invalid(int requestId, String reason) implements Message {
     }
 }
@@ -0,0 +1,50 @@
+package io.mudis.mudisserver.model;
+
+import io.mudis.mudisshared.model.Status;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCounted;
+
+/**
+ * Reply whose body is already UTF-8 bytes, such as stored messages. The body is written to the socket
+ * as is instead of being encoded from a String; the reply owns one reference to it.
+ */
+public record PayloadReply(int requestId, Status status, ByteBuf body) implements ReferenceCounted {
+    @Override
+    public int refCnt() {
+        return body.refCnt();
+    }
+
+    @Override
+    public PayloadReply retain() {
+        body.retain();
+        return this;
+    }
+
+    @Override
+    public PayloadReply retain(int increment) {
+        body.retain(increment);
+        return this;
+    }
+
+    @Override
+    public PayloadReply touch() {
+        body.touch();
+        return this;
+    }
+
+    @Override
+    public PayloadReply touch(Object hint) {
+        body.touch(hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return body.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return body.release(decrement);
+    }
+}
@@ -0,0 +1,95 @@
+package io.mudis.mudisserver.model;
+
+/**
+ * Caps on what one subscription may buffer, set with SUBSCRIBE options:
+ * {@code SUBSCRIBE <channel> <ds> [MAXLEN <n> [policy]] [MAXBYTES <n> [policy]] [MAXAGE <ms>]}.
+ * A limit without an explicit policy uses {@link LimitPolicy#DROP_OLDEST}. MAXAGE takes no policy: messages
+ * older than it always expire.
+ */
+public record SubscriptionLimits(long maxMessages, LimitPolicy messagesPolicy, long maxBytes, LimitPolicy bytesPolicy,
+                                 long maxAgeMillis) {
+    public static final SubscriptionLimits UNBOUNDED = new SubscriptionLimits(
+            Long.MAX_VALUE, LimitPolicy.DROP_OLDEST, Long.MAX_VALUE, LimitPolicy.DROP_OLDEST, Long.MAX_VALUE);
+
+    public boolean expires() {
+        return maxAgeMillis != Long.MAX_VALUE;
+    }
+
+    /**
+     * These limits with a MAXAGE of {@code maxAgeMillis} if they have none, e.g. a server-wide default.
+     */
+    public SubscriptionLimits withDefaultMaxAge(long maxAgeMillis) {
+        if (expires() || maxAgeMillis <= 0) {
+            return this;
+        }
+        return new SubscriptionLimits(maxMessages, messagesPolicy, maxBytes, bytesPolicy, maxAgeMillis);
+    }
+
+    /**
+     * Whether every limit is enforced by evicting the oldest messages, so the limits only narrow which
+     * messages are visible and never refuse or skip a new one.
+     */
+    public boolean dropsOldestOnly() {
+        return messagesPolicy == LimitPolicy.DROP_OLDEST && bytesPolicy == LimitPolicy.DROP_OLDEST;
+    }
+
+    public static SubscriptionLimits parse(String options) {
+        String trimmed = options.trim();
+        if (trimmed.isEmpty()) {
+            return UNBOUNDED;
+        }
+
+        long maxMessages = UNBOUNDED.maxMessages;
+        long maxBytes = UNBOUNDED.maxBytes;
+        LimitPolicy messagesPolicy = LimitPolicy.DROP_OLDEST;
+        LimitPolicy bytesPolicy = LimitPolicy.DROP_OLDEST;
+        long maxAgeMillis = UNBOUNDED.maxAgeMillis;
+
+        String[] tokens = trimmed.split("\\s+");
+        int i = 0;
+        while (i < tokens.length) {
+            String option = tokens[i++].toUpperCase();
+            if (i >= tokens.length) {
+                throw new IllegalArgumentException("Missing value for option: " + option);
+            }
+
+            long limit = parseLimit(option, tokens[i++]);
+            if (option.equals("MAXAGE")) {
+                maxAgeMillis = limit;
+                continue;
+            }
+            LimitPolicy policy = i < tokens.length ? LimitPolicy.parse(tokens[i]) : null;
+            if (policy != null) {
+                i++;
+            } else {
+                policy = LimitPolicy.DROP_OLDEST;
+            }
+
+            switch (option) {
+                case "MAXLEN" -> {
+                    maxMessages = limit;
+                    messagesPolicy = policy;
+                }
+                case "MAXBYTES" -> {
+                    maxBytes = limit;
+                    bytesPolicy = policy;
+                }
+                default -> throw new IllegalArgumentException("Unknown subscribe option: " + option);
+            }
+        }
+
+        return new SubscriptionLimits(maxMessages, messagesPolicy, maxBytes, bytesPolicy, maxAgeMillis);
+    }
+
+    private static long parseLimit(String option, String value) {
+        try {
+            long limit = Long.parseLong(value);
+            if (limit <= 0) {
+                throw new IllegalArgumentException(option + " must be positive: " + value);
+            }
+            return limit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + option + " value: " + value, e);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package io.mudis.mudisserver.persistence;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Durable history of one channel: every message published to it, in order, numbered by offset from 0. The
+ * log is a directory of {@link LogSegment}s; only the newest one is mapped and appended to, and a new one is
+ * started when the next record does not fit.
+ * <p>
+ * The log also holds the channel's {@link DurableSubscription}s, whose committed offsets are files in the
+ * same directory, and wakes the attached ones after each append.
+ */
+final class ChannelLog implements Forceable {
+    private final String channel;
+    private final Path directory;
+    private final int segmentBytes;
+    // Whether a filled segment is forced before moving on, as force() only covers the newest one
+    private final boolean forceOnRoll;
+    // Base offsets of the full segments, oldest first, and their total size
+    private final List<Long> sealed = new ArrayList<>();
+    private long sealedBytes;
+    private volatile LogSegment active;
+    private final Map<String, DurableSubscription> subscriptions = new ConcurrentHashMap<>();
+
+    private ChannelLog(String channel, Path directory, int segmentBytes, boolean forceOnRoll) {
+        this.channel = channel;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.forceOnRoll = forceOnRoll;
+    }
+
+    static ChannelLog create(String channel, Path directory, int segmentBytes, boolean forceOnRoll)
+            throws IOException {
+        Files.createDirectories(directory);
+        ChannelLog log = new ChannelLog(channel, directory, segmentBytes, forceOnRoll);
+        log.active = LogSegment.create(directory, 0, segmentBytes);
+        return log;
+    }
+
+    /**
+     * Opens the log found in the directory, continuing after the last intact record of its newest segment.
+     */
+    static ChannelLog recover(String channel, Path directory, int segmentBytes, boolean forceOnRoll)
+            throws IOException {
+        List<Path> files;
+        try (Stream<Path> entries = Files.list(directory)) {
+            files = entries.toList();
+        }
+        List<Long> bases = files.stream().map(LogSegment::baseOffsetOf).filter(base -> base >= 0).sorted().toList();
+
+        ChannelLog log;
+        if (bases.isEmpty()) {
+            log = create(channel, directory, segmentBytes, forceOnRoll);
+        } else {
+            log = new ChannelLog(channel, directory, segmentBytes, forceOnRoll);
+            for (long base : bases.subList(0, bases.size() - 1)) {
+                log.sealed.add(base);
+                log.sealedBytes += Files.size(LogSegment.pathOf(directory, base));
+            }
+            log.active = LogSegment.recover(directory, bases.getLast(), segmentBytes);
+        }
+
+        for (Path file : files) {
+            String name = SubscriptionOffset.nameOf(file);
+            if (name != null) {
+                log.subscriptions.put(name, new DurableSubscription(log, name, SubscriptionOffset.open(file, 0)));
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Appends the payload and returns its offset. The record is in the page cache when this returns; it
+     * reaches the device when the log is {@link #force() forced}, or whenever the OS writes it back.
+     */
+    synchronized long append(ByteBuf payload) throws IOException {
+        LogSegment segment = active;
+        int length = payload.readableBytes();
+        if (!segment.fits(length)) {
+            if (forceOnRoll) {
+                segment.force();
+            }
+            sealed.add(segment.baseOffset());
+            sealedBytes += segment.capacity();
+            segment = LogSegment.create(directory, segment.nextOffset(),
+                    Math.max(segmentBytes, LogSegment.HEADER_BYTES + length));
+            active = segment;
+        }
+
+        long offset = segment.nextOffset();
+        segment.append(payload);
+        return offset;
+    }
+
+    /**
+     * Wakes the attached durable subscriptions to push what was appended.
+     *
+     * @return how many are attached
+     */
+    int wakeSubscriptions() {
+        if (subscriptions.isEmpty()) {
+            return 0;
+        }
+        int attached = 0;
+        for (DurableSubscription subscription : subscriptions.values()) {
+            if (subscription.isAttached()) {
+                subscription.wake();
+                attached++;
+            }
+        }
+        return attached;
+    }
+
+    /**
+     * Returns the segment holding the offset: the newest one itself, or a full one mapped read-only.
+     *
+     * @throws IOException if the offset is no longer in the log, or its segment could not be mapped
+     */
+    LogSegment segmentFor(long offset) throws IOException {
+        long base;
+        long nextBase;
+        synchronized (this) {
+            LogSegment segment = active;
+            if (offset >= segment.baseOffset()) {
+                return segment;
+            }
+            int index = Collections.binarySearch(sealed, offset);
+            index = index >= 0 ? index : -index - 2;
+            if (index < 0) {
+                throw new IOException("Offset " + offset + " is no longer in the log of channel: " + channel);
+            }
+            base = sealed.get(index);
+            nextBase = index + 1 < sealed.size() ? sealed.get(index + 1) : segment.baseOffset();
+        }
+        return LogSegment.openSealed(directory, base, nextBase);
+    }
+
+    /**
+     * Returns the durable subscription of that name, creating it to resume from the offset if there is none.
+     */
+    DurableSubscription subscription(String name, long initial) throws IOException {
+        DurableSubscription subscription = subscriptions.get(name);
+        if (subscription != null) {
+            return subscription;
+        }
+        synchronized (subscriptions) {
+            subscription = subscriptions.get(name);
+            if (subscription == null) {
+                subscription = new DurableSubscription(this, name,
+                        SubscriptionOffset.open(SubscriptionOffset.pathOf(directory, name), initial));
+                subscriptions.put(name, subscription);
+            }
+            return subscription;
+        }
+    }
+
+    DurableSubscription existingSubscription(String name) {
+        return subscriptions.get(name);
+    }
+
+    /**
+     * Removes the durable subscription and its offset file.
+     */
+    boolean removeSubscription(String name) throws IOException {
+        DurableSubscription subscription = subscriptions.remove(name);
+        if (subscription == null) {
+            return false;
+        }
+        subscription.committed().delete();
+        return true;
+    }
+
+    Map<String, DurableSubscription> subscriptions() {
+        return subscriptions;
+    }
+
+    @Override
+    public void force() {
+        active.force();
+    }
+
+    boolean isDirty() {
+        return active.isDirty();
+    }
+
+    String channel() {
+        return channel;
+    }
+
+    synchronized long nextOffset() {
+        return active.nextOffset();
+    }
+
+    synchronized long firstOffset() {
+        return sealed.isEmpty() ? active.baseOffset() : sealed.getFirst();
+    }
+
+    /**
+     * Size of the full segments plus the bytes written to the newest one.
+     */
+    synchronized long sizeInBytes() {
+        return sealedBytes + active.written();
+    }
+
+    @Override
+    public String toString() {
+        return "log of channel " + channel;
+    }
+}
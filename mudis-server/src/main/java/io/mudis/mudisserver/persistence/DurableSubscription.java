@@ -0,0 +1,179 @@
+package io.mudis.mudisserver.persistence;
+
+import io.mudis.mudisserver.model.PayloadReply;
+import io.mudis.mudisshared.model.Reply;
+import io.mudis.mudisshared.model.Status;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A named subscription to a channel's log that outlives the connections reading it. It keeps the offset to
+ * resume from on disk; while a connection is attached, every message from the attach offset on is pushed to
+ * it as "<offset> <message>", and the client moves the committed offset forward with ACK.
+ * <p>
+ * Messages are read from the log rather than queued: the connection's event loop reads and writes a batch
+ * at a time while the socket is writable, then waits for the next append or for the socket to drain. A slow
+ * or absent consumer therefore only falls behind in the log, which costs no memory.
+ */
+final class DurableSubscription {
+    private static final Logger Log = LoggerFactory.getLogger(DurableSubscription.class);
+    // Records written per turn of the event loop, so a long replay does not hold it up
+    private static final int BATCH = 256;
+
+    private final ChannelLog log;
+    private final String name;
+    private final SubscriptionOffset committed;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable drainTask = this::drain;
+    // Attached connection, the request id its messages are pushed under, and where it is reading
+    private volatile ChannelHandlerContext ctx;
+    private int requestId;
+    private LogReader reader;
+
+    DurableSubscription(ChannelLog log, String name, SubscriptionOffset committed) {
+        this.log = log;
+        this.name = name;
+        this.committed = committed;
+    }
+
+    String name() {
+        return name;
+    }
+
+    ChannelLog log() {
+        return log;
+    }
+
+    SubscriptionOffset committed() {
+        return committed;
+    }
+
+    synchronized long committedOffset() {
+        return committed.get();
+    }
+
+    /**
+     * Attaches the connection, replacing any other, and starts pushing from the offset.
+     *
+     * @return the connection it replaced, if any
+     */
+    synchronized ChannelHandlerContext attach(ChannelHandlerContext ctx, int requestId, long from) throws IOException {
+        ChannelHandlerContext previous = this.ctx;
+        if (previous != null && previous != ctx) {
+            previous.writeAndFlush(Reply.warn(this.requestId,
+                    "Durable subscription " + name + " taken over by another connection"));
+        }
+        this.reader = new LogReader(log, from);
+        this.requestId = requestId;
+        this.ctx = ctx;
+        // Not wake(): a drain still pending on the replaced connection's event loop would swallow it
+        drainScheduled.set(true);
+        ctx.executor().execute(drainTask);
+        return previous == ctx ? null : previous;
+    }
+
+    /**
+     * Detaches the connection if it is the attached one; the committed offset stays where it is.
+     */
+    synchronized boolean detach(ChannelHandlerContext ctx) {
+        if (this.ctx != ctx) {
+            return false;
+        }
+        this.ctx = null;
+        this.reader = null;
+        return true;
+    }
+
+    boolean isAttached() {
+        return ctx != null;
+    }
+
+    /**
+     * Detaches whichever connection is attached.
+     *
+     * @return the connection, if there was one
+     */
+    synchronized ChannelHandlerContext detach() {
+        ChannelHandlerContext previous = ctx;
+        ctx = null;
+        reader = null;
+        return previous;
+    }
+
+    /**
+     * Moves the committed offset past the acknowledged one. Acknowledgements are cumulative and never move
+     * it back; replaying older messages is done by attaching from an earlier offset instead.
+     *
+     * @return whether the committed offset moved
+     */
+    synchronized boolean acknowledge(long offset) {
+        if (offset + 1 <= committed.get()) {
+            return false;
+        }
+        committed.set(offset + 1);
+        return true;
+    }
+
+    /**
+     * Schedules a drain on the attached connection's event loop, unless one is already pending.
+     */
+    void wake() {
+        ChannelHandlerContext target = ctx;
+        if (target != null && drainScheduled.compareAndSet(false, true)) {
+            target.executor().execute(drainTask);
+        }
+    }
+
+    /**
+     * Pushes up to a batch of messages and flushes once. Runs on the connection's event loop; it goes on
+     * by scheduling itself again while there is more to send, and otherwise waits to be woken.
+     */
+    private synchronized void drain() {
+        drainScheduled.set(false);
+        ChannelHandlerContext target = ctx;
+        if (target == null || !target.executor().inEventLoop()) {
+            // Detached, or taken over by a connection on another event loop, which has its own drain queued
+            return;
+        }
+        if (!target.channel().isActive()) {
+            return;
+        }
+
+        int sent = 0;
+        try {
+            while (sent < BATCH && target.channel().isWritable()) {
+                long offset = reader.offset();
+                ByteBuf payload = reader.next();
+                if (payload == null) {
+                    break;
+                }
+                ByteBuf prefix = Unpooled.copiedBuffer(offset + " ", StandardCharsets.US_ASCII);
+                target.write(new PayloadReply(requestId, Status.PUSH, Unpooled.wrappedBuffer(prefix, payload)),
+                        target.voidPromise());
+                sent++;
+            }
+        } catch (IOException e) {
+            Log.error("Error reading log of channel {} for durable subscription {}", log.channel(), name, e);
+            target.write(Reply.error(requestId, "Durable subscription " + name + " failed: " + e.getMessage()));
+            ctx = null;
+            reader = null;
+        }
+        target.flush();
+
+        if (sent == BATCH) {
+            wake();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return log.channel() + " " + name;
+    }
+}
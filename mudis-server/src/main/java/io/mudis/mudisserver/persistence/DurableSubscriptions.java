@@ -0,0 +1,174 @@
+package io.mudis.mudisserver.persistence;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named subscriptions that survive disconnects and restarts: DSUBSCRIBE attaches a connection to one,
+ * creating it if needed, ACK commits its progress and DUNSUBSCRIBE deletes it. They read from the
+ * channel's {@link ChannelLog}, so they need persistence to be enabled.
+ * <p>
+ * Each connection remembers the subscriptions it is attached to, so a disconnect or a writable socket
+ * only touches those.
+ */
+public enum DurableSubscriptions {
+    INSTANCE();
+
+    private static final AttributeKey<Set<DurableSubscription>> ATTACHED = AttributeKey.valueOf("mudis.durable");
+
+    private final PersistenceLog persistenceLog = PersistenceLog.INSTANCE;
+
+    /**
+     * Where an attach starts and where the subscription's committed offset is.
+     */
+    public record Attachment(long from, long committed) {
+    }
+
+    /**
+     * Called once the offsets of an attach are known and before the first message is pushed, to reply.
+     */
+    @FunctionalInterface
+    public interface AttachListener {
+        void attaching(long from, long committed);
+    }
+
+    /**
+     * One line of a subscription listing.
+     */
+    public record Summary(String channel, String name, long committed) {
+    }
+
+    /**
+     * Attaches the connection to the subscription, taking it over from any other connection, and pushes from
+     * {@code from}, or from the committed offset if it is negative. A new subscription starts at the end of
+     * the log unless an offset is given. Offsets are clamped to the messages still in the log.
+     */
+    public Attachment attach(String channel, String name, long from, ChannelHandlerContext ctx, int requestId,
+                             AttachListener listener) throws IOException {
+        requireEnabled();
+        ChannelLog log = persistenceLog.logFor(channel);
+        long end = log.nextOffset();
+        DurableSubscription subscription = log.subscription(name, from < 0 ? end : from);
+
+        long start = Math.min(Math.max(from < 0 ? subscription.committedOffset() : from, log.firstOffset()), end);
+        long committed = subscription.committedOffset();
+        listener.attaching(start, committed);
+        ChannelHandlerContext previous = subscription.attach(ctx, requestId, start);
+        if (previous != null) {
+            attached(previous.channel()).remove(subscription);
+        }
+        attached(ctx.channel()).add(subscription);
+        return new Attachment(start, committed);
+    }
+
+    /**
+     * Commits every message up to and including the offset.
+     *
+     * @return whether the committed offset moved; it does not for an offset already acknowledged
+     * @throws IllegalArgumentException if there is no such subscription or the offset was never published
+     */
+    public boolean acknowledge(String channel, String name, long offset) {
+        requireEnabled();
+        DurableSubscription subscription = find(channel, name);
+        if (offset >= subscription.log().nextOffset()) {
+            throw new IllegalArgumentException("Offset " + offset + " has not been published to channel: " + channel);
+        }
+        if (!subscription.acknowledge(offset)) {
+            return false;
+        }
+        persistenceLog.written(subscription.committed());
+        return true;
+    }
+
+    /**
+     * Deletes the subscription, detaching whichever connection is reading it.
+     *
+     * @throws IllegalArgumentException if there is no such subscription
+     */
+    public void delete(String channel, String name) throws IOException {
+        requireEnabled();
+        DurableSubscription subscription = find(channel, name);
+        subscription.log().removeSubscription(name);
+        ChannelHandlerContext ctx = subscription.detach();
+        if (ctx != null) {
+            attached(ctx.channel()).remove(subscription);
+        }
+    }
+
+    /**
+     * Detaches the connection from every subscription it reads; their committed offsets stay.
+     */
+    public void detachAll(ChannelHandlerContext ctx) {
+        Set<DurableSubscription> subscriptions = ctx.channel().attr(ATTACHED).getAndSet(null);
+        if (subscriptions != null) {
+            subscriptions.forEach(subscription -> subscription.detach(ctx));
+        }
+    }
+
+    /**
+     * Resumes pushing to a connection whose socket became writable again.
+     */
+    public void resume(Channel channel) {
+        Set<DurableSubscription> subscriptions = channel.attr(ATTACHED).get();
+        if (subscriptions != null) {
+            subscriptions.forEach(DurableSubscription::wake);
+        }
+    }
+
+    /**
+     * Lists the subscriptions the connection is attached to.
+     */
+    public List<Summary> attached(ChannelHandlerContext ctx) {
+        Set<DurableSubscription> subscriptions = ctx.channel().attr(ATTACHED).get();
+        List<Summary> summaries = new ArrayList<>();
+        if (subscriptions != null) {
+            for (DurableSubscription subscription : subscriptions) {
+                summaries.add(summary(subscription));
+            }
+        }
+        return summaries;
+    }
+
+    public int count() {
+        int count = 0;
+        for (ChannelLog log : persistenceLog.logs()) {
+            count += log.subscriptions().size();
+        }
+        return count;
+    }
+
+    private static Summary summary(DurableSubscription subscription) {
+        return new Summary(subscription.log().channel(), subscription.name(), subscription.committedOffset());
+    }
+
+    private DurableSubscription find(String channel, String name) {
+        ChannelLog log = persistenceLog.existingLog(channel);
+        DurableSubscription subscription = log == null ? null : log.existingSubscription(name);
+        if (subscription == null) {
+            throw new IllegalArgumentException("No durable subscription " + name + " on channel: " + channel);
+        }
+        return subscription;
+    }
+
+    private void requireEnabled() {
+        if (!persistenceLog.isEnabled()) {
+            throw new IllegalStateException("Durable subscriptions need mudis.persistence.enabled=true");
+        }
+    }
+
+    private static Set<DurableSubscription> attached(Channel channel) {
+        Set<DurableSubscription> subscriptions = channel.attr(ATTACHED).get();
+        if (subscriptions == null) {
+            channel.attr(ATTACHED).setIfAbsent(ConcurrentHashMap.newKeySet());
+            subscriptions = channel.attr(ATTACHED).get();
+        }
+        return subscriptions;
+    }
+}
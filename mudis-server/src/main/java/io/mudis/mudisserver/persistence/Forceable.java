@@ -0,0 +1,13 @@
+package io.mudis.mudisserver.persistence;
+
+/**
+ * A mapped file whose writes {@link PersistenceLog} forces to the device as its {@link FsyncPolicy} requires.
+ */
+interface Forceable {
+    /**
+     * Writes everything written so far to the device.
+     *
+     * @throws java.io.UncheckedIOException if it could not be written
+     */
+    void force();
+}
@@ -0,0 +1,13 @@
+package io.mudis.mudisserver.persistence;
+
+/**
+ * When appended records are forced from the page cache to the device.
+ */
+public enum FsyncPolicy {
+    // Before the PUBLISH reply is sent; one force covers every append of an event loop's read batch
+    ALWAYS,
+    // Every mudis.persistence.fsync.ms from a background thread; a crash loses at most that window
+    INTERVAL,
+    // Whenever the OS writes the pages back; survives a process crash but not a power loss
+    OS
+}
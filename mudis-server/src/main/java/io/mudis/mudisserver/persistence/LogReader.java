@@ -0,0 +1,56 @@
+package io.mudis.mudisserver.persistence;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * Sequential reader of a {@link ChannelLog}, starting at any offset still in the log. It follows the log as
+ * it grows and moves on to the next segment once it has read a full one.
+ * <p>
+ * Not thread-safe; each reader belongs to one {@link DurableSubscription}.
+ */
+final class LogReader {
+    private final ChannelLog log;
+    private LogSegment segment;
+    private int position;
+    private long offset;
+
+    LogReader(ChannelLog log, long offset) throws IOException {
+        this.log = log;
+        this.segment = log.segmentFor(offset);
+        this.position = segment.positionOf(offset);
+        this.offset = offset;
+    }
+
+    /**
+     * Offset of the record {@link #next()} returns.
+     */
+    long offset() {
+        return offset;
+    }
+
+    /**
+     * Returns the payload of the next record, sharing the segment's mapping, or null once the reader has
+     * caught up with the log.
+     */
+    ByteBuf next() throws IOException {
+        if (position >= segment.written()) {
+            // The segment is either full, in which case the log has moved on, or still being appended to
+            LogSegment following = log.segmentFor(offset);
+            if (following == segment) {
+                return null;
+            }
+            segment = following;
+            position = 0;
+            if (position >= segment.written()) {
+                return null;
+            }
+        }
+
+        ByteBuf payload = segment.payloadAt(position);
+        position += LogSegment.HEADER_BYTES + payload.readableBytes();
+        offset++;
+        return payload;
+    }
+}
@@ -0,0 +1,204 @@
+package io.mudis.mudisserver.persistence;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * One file of a {@link ChannelLog}, named after the offset of its first record and mapped into memory at its
+ * full size up front, so an append is a copy into the mapping and never a system call.
+ * <p>
+ * A record is {@code [int checksum][int length][payload]}, the checksum being the CRC32C of the length and
+ * payload. The unwritten rest of the file reads as zeros, which never pass the checksum, so the end of the
+ * log is the first record that does not; a record torn by a crash is found the same way.
+ * <p>
+ * Readers only look below {@link #written()}, which is published after each record is complete, so they
+ * can share the mapping of the segment being appended to without taking the log's lock.
+ */
+final class LogSegment {
+    static final int HEADER_BYTES = 8;
+    private static final String SUFFIX = ".log";
+
+    private final long baseOffset;
+    private final MappedByteBuffer map;
+    // Reused to frame appends; only touched by the appending thread, which holds the log's lock
+    private final ByteBuffer view;
+    private final CRC32C crc = new CRC32C();
+    private final Object forceLock = new Object();
+    private volatile int written;
+    private volatile int forced;
+    private int records;
+
+    private LogSegment(long baseOffset, MappedByteBuffer map, int written, int records) {
+        this.baseOffset = baseOffset;
+        this.map = map;
+        this.view = map.duplicate();
+        this.written = written;
+        this.forced = written;
+        this.records = records;
+    }
+
+    static LogSegment create(Path directory, long baseOffset, int size) throws IOException {
+        return new LogSegment(baseOffset, map(pathOf(directory, baseOffset), size), 0, 0);
+    }
+
+    /**
+     * Maps an existing segment and finds its end by checking records from the start. Anything after the last
+     * valid record is cut off, so a partial write cannot be mistaken for data once it is overwritten.
+     */
+    static LogSegment recover(Path directory, long baseOffset, int size) throws IOException {
+        Path path = pathOf(directory, baseOffset);
+        MappedByteBuffer map = map(path, size);
+        CRC32C crc = new CRC32C();
+        int position = 0;
+        int records = 0;
+        while (position + HEADER_BYTES <= map.capacity()) {
+            int length = map.getInt(position + 4);
+            if (length < 0 || length > map.capacity() - position - HEADER_BYTES) {
+                break;
+            }
+            crc.reset();
+            crc.update(map.slice(position + 4, length + 4));
+            if ((int) crc.getValue() != map.getInt(position)) {
+                break;
+            }
+            position += HEADER_BYTES + length;
+            records++;
+        }
+
+        // Pages reach the disk in any order, so a torn record may have left bytes anywhere after the end:
+        // zero them all by truncating, then map again at full size
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            file.truncate(position);
+        }
+        return new LogSegment(baseOffset, map(path, size), position, records);
+    }
+
+    /**
+     * Maps a full segment read-only for replay. Its record count is known from the next segment's base
+     * offset, which also gives its end without checking any checksum.
+     */
+    static LogSegment openSealed(Path directory, long baseOffset, long nextBaseOffset) throws IOException {
+        MappedByteBuffer map;
+        try (FileChannel file = FileChannel.open(pathOf(directory, baseOffset), StandardOpenOption.READ)) {
+            map = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+        }
+        int records = (int) (nextBaseOffset - baseOffset);
+        LogSegment segment = new LogSegment(baseOffset, map, map.capacity(), records);
+        segment.written = segment.positionOf(nextBaseOffset);
+        return segment;
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the file is closed
+            return file.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, file.size()));
+        }
+    }
+
+    static Path pathOf(Path directory, long baseOffset) {
+        return directory.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+    }
+
+    /**
+     * Returns the base offset encoded in a segment file name, or -1 if it is not one.
+     */
+    static long baseOffsetOf(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    boolean fits(int length) {
+        return map.capacity() - written >= HEADER_BYTES + length;
+    }
+
+    /**
+     * Copies the payload straight from its buffer into the mapping.
+     */
+    void append(ByteBuf payload) {
+        int position = written;
+        int length = payload.readableBytes();
+        int end = position + HEADER_BYTES + length;
+
+        map.putInt(position + 4, length);
+        view.limit(end).position(position + HEADER_BYTES);
+        payload.getBytes(payload.readerIndex(), view);
+
+        crc.reset();
+        view.limit(end).position(position + 4);
+        crc.update(view);
+        map.putInt(position, (int) crc.getValue());
+
+        records++;
+        written = end;
+    }
+
+    /**
+     * Returns the position of the record at the offset, found by skipping the records before it.
+     */
+    int positionOf(long offset) {
+        int end = written;
+        int position = 0;
+        for (long skipped = baseOffset; skipped < offset && position < end; skipped++) {
+            position += HEADER_BYTES + map.getInt(position + 4);
+        }
+        return position;
+    }
+
+    /**
+     * Returns the payload of the record at the position, sharing the mapping. The position must be below
+     * {@link #written()}.
+     */
+    ByteBuf payloadAt(int position) {
+        int length = map.getInt(position + 4);
+        return Unpooled.wrappedBuffer(map.slice(position + HEADER_BYTES, length));
+    }
+
+    /**
+     * Writes everything appended so far to the device, unless an earlier call already did.
+     */
+    void force() {
+        synchronized (forceLock) {
+            int end = written;
+            if (end > forced) {
+                map.force(forced, end - forced);
+                forced = end;
+            }
+        }
+    }
+
+    boolean isDirty() {
+        return written > forced;
+    }
+
+    long baseOffset() {
+        return baseOffset;
+    }
+
+    long nextOffset() {
+        return baseOffset + records;
+    }
+
+    int capacity() {
+        return map.capacity();
+    }
+
+    int written() {
+        return written;
+    }
+}
@@ -0,0 +1,271 @@
+package io.mudis.mudisserver.persistence;
+
+import io.mudis.mudisserver.utils.ConfigProperties;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Optional durability: with {@code mudis.persistence.enabled=true} every PUBLISH is appended to its
+ * channel's {@link ChannelLog} under {@code mudis.persistence.dir} before it is acknowledged, and
+ * {@link #open()} finds the logs again after a restart.
+ * <p>
+ * Appends only copy into memory-mapped segments; when they reach the device is set by the
+ * {@link FsyncPolicy}. Forces are grouped: under ALWAYS an event loop forces the logs it appended to once
+ * per read batch, just before flushing the replies, and under INTERVAL a background thread forces the logs
+ * written since its last pass.
+ */
+public enum PersistenceLog {
+    INSTANCE();
+
+    private static final Logger Log = LoggerFactory.getLogger(PersistenceLog.class);
+
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+    private final Map<String, ChannelLog> logs = new ConcurrentHashMap<>();
+    // Logs and offsets written since the flusher's last pass (INTERVAL)
+    private final Set<Forceable> dirty = ConcurrentHashMap.newKeySet();
+    // Logs and offsets the current thread wrote since it last synced (ALWAYS)
+    private final FastThreadLocal<Set<Forceable>> appended = new FastThreadLocal<>() {
+        @Override
+        protected Set<Forceable> initialValue() {
+            return new HashSet<>();
+        }
+    };
+    private ScheduledExecutorService flusher;
+
+    PersistenceLog() {
+        this.enabled = Boolean.parseBoolean(ConfigProperties.get("mudis.persistence.enabled", "false").trim());
+        this.directory = Path.of(ConfigProperties.get("mudis.persistence.dir", "data").trim());
+        this.segmentBytes = ConfigProperties.getInt("mudis.persistence.segment.bytes", 16 * 1024 * 1024);
+        this.fsyncPolicy = FsyncPolicy.valueOf(ConfigProperties.get("mudis.persistence.fsync", "INTERVAL").trim());
+        this.fsyncIntervalMillis = ConfigProperties.getLong("mudis.persistence.fsync.ms", 100);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public FsyncPolicy fsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * Recovers every channel log in the directory and starts the flusher. Must be called before the server
+     * accepts connections.
+     */
+    public void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Files.createDirectories(directory);
+        List<Path> channelDirectories;
+        try (Stream<Path> entries = Files.list(directory)) {
+            channelDirectories = entries.filter(Files::isDirectory).toList();
+        }
+        long messages = 0;
+        int subscriptions = 0;
+        for (Path channelDirectory : channelDirectories) {
+            String channel = decode(channelDirectory.getFileName().toString());
+            ChannelLog log = ChannelLog.recover(channel, channelDirectory, segmentBytes, forceOnRoll());
+            logs.put(channel, log);
+            messages += log.nextOffset() - log.firstOffset();
+            subscriptions += log.subscriptions().size();
+        }
+        Log.info("Recovered {} channel log(s) with {} message(s) and {} durable subscription(s) from {} in {} ms",
+                logs.size(), messages, subscriptions, directory.toAbsolutePath(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("mudis-fsync").daemon().factory());
+            flusher.scheduleWithFixedDelay(this::forceDirty, fsyncIntervalMillis, fsyncIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        Log.info("Persisting published messages, fsync policy: {}", fsyncPolicy);
+    }
+
+    /**
+     * Appends the payload to the channel's log, creating it on first use, and wakes the durable subscriptions
+     * reading it.
+     *
+     * @return how many durable subscriptions are attached to the channel
+     */
+    public int append(String channel, ByteBuf payload) throws IOException {
+        ChannelLog log = logFor(channel);
+        log.append(payload);
+        written(log);
+        return log.wakeSubscriptions();
+    }
+
+    /**
+     * Returns the channel's log, creating it on first use.
+     */
+    ChannelLog logFor(String channel) throws IOException {
+        ChannelLog log = logs.get(channel);
+        if (log == null) {
+            try {
+                log = logs.computeIfAbsent(channel, this::createLog);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        return log;
+    }
+
+    ChannelLog existingLog(String channel) {
+        return logs.get(channel);
+    }
+
+    Iterable<ChannelLog> logs() {
+        return logs.values();
+    }
+
+    /**
+     * Schedules a force of a file just written to, as the fsync policy requires.
+     */
+    void written(Forceable file) {
+        switch (fsyncPolicy) {
+            case ALWAYS -> appended.get().add(file);
+            case INTERVAL -> dirty.add(file);
+            case OS -> {
+            }
+        }
+    }
+
+    private ChannelLog createLog(String channel) {
+        try {
+            return ChannelLog.create(channel, directory.resolve(encode(channel)), segmentBytes, forceOnRoll());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean forceOnRoll() {
+        return fsyncPolicy != FsyncPolicy.OS;
+    }
+
+    /**
+     * Under ALWAYS, forces the logs and offsets the calling thread wrote since its last call. Event loops call
+     * this right before flushing replies, so no PUBLISH or ACK is acknowledged before it is on the device.
+     *
+     * @throws UncheckedIOException if a log could not be forced; it is retried by the next call
+     */
+    public void syncAppended() {
+        if (fsyncPolicy != FsyncPolicy.ALWAYS || !enabled) {
+            return;
+        }
+        Set<Forceable> pending = appended.get();
+        Iterator<Forceable> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            iterator.next().force();
+            iterator.remove();
+        }
+    }
+
+    private void forceDirty() {
+        for (Forceable file : dirty) {
+            dirty.remove(file);
+            try {
+                file.force();
+            } catch (UncheckedIOException e) {
+                dirty.add(file);
+                Log.error("Error forcing {}", file, e);
+            }
+        }
+    }
+
+    public int channelCount() {
+        return logs.size();
+    }
+
+    public long sizeInBytes() {
+        long size = 0;
+        for (ChannelLog log : logs.values()) {
+            size += log.sizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Stops the flusher and forces every log, whatever the policy.
+     */
+    public void close() {
+        if (!enabled) {
+            return;
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        for (ChannelLog log : logs.values()) {
+            try {
+                log.force();
+                for (DurableSubscription subscription : log.subscriptions().values()) {
+                    subscription.committed().force();
+                }
+            } catch (UncheckedIOException e) {
+                Log.error("Error forcing {}", log, e);
+            }
+        }
+        Log.info("Closed {} channel log(s)", logs.size());
+    }
+
+    /**
+     * Directory name of a channel: letters other than lowercase ones, and anything that is not a digit,
+     * '-', '_' or a '.' after the first character, are written as %XX of their UTF-8 bytes. Names therefore
+     * stay readable, and distinct on case-insensitive file systems.
+     */
+    static String encode(String channel) {
+        StringBuilder name = new StringBuilder(channel.length());
+        byte[] bytes = channel.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xFF;
+            boolean plain = (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '-' || b == '_'
+                    || (b == '.' && i > 0);
+            if (plain) {
+                name.append((char) b);
+            } else {
+                name.append('%').append(Character.toUpperCase(Character.forDigit(b >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+            }
+        }
+        return name.toString();
+    }
+
+    static String decode(String name) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '%' && i + 2 < name.length()) {
+                bytes.write(Integer.parseInt(name, i + 1, i + 3, 16));
+                i += 2;
+            } else {
+                bytes.write(c);
+            }
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+}
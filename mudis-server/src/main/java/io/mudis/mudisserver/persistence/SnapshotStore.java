@@ -0,0 +1,247 @@
+package io.mudis.mudisserver.persistence;
+
+import io.mudis.mudisserver.model.DataStructure;
+import io.mudis.mudisserver.model.LimitPolicy;
+import io.mudis.mudisserver.model.SubscriptionLimits;
+import io.mudis.mudisserver.pubsub.PublisherRegistrar;
+import io.mudis.mudisserver.pubsub.SubscriptionState;
+import io.mudis.mudisserver.utils.ConfigProperties;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshots of every buffered subscription, written by SNAPSHOT and every
+ * {@code mudis.snapshot.interval.s}, and loaded at startup from {@code mudis.snapshot.file}.
+ * <p>
+ * Saving runs on its own thread and visits one channel at a time: the channel's subscriptions are captured
+ * as references to their messages, which are immutable, then written out and released. Event loops keep
+ * publishing meanwhile; they only wait while a subscription's references are copied, and the snapshot holds
+ * on to no more than one channel's messages. Each channel is therefore saved as of the moment it is visited.
+ * <p>
+ * The file is written next to the old one and renamed over it once complete and forced, so a crash never
+ * leaves a partial snapshot. Loading maps it read-only, checks its checksum, and copies each message straight
+ * out of the mapping into {@code MessageStorage}.
+ */
+public enum SnapshotStore {
+    INSTANCE();
+
+    private static final Logger Log = LoggerFactory.getLogger(SnapshotStore.class);
+    // "MSNP"
+    private static final int MAGIC = 0x4D534E50;
+    // Version 1 had no MAXAGE, which is read as none
+    private static final int VERSION = 2;
+    private static final byte END = 0;
+    private static final byte CHANNEL = 1;
+    private static final byte PATTERN = 2;
+    private static final DataStructure[] DATA_STRUCTURES = DataStructure.values();
+    private static final LimitPolicy[] LIMIT_POLICIES = LimitPolicy.values();
+
+    private final Path file;
+    private final long intervalSeconds;
+    // Runs every save, so they never overlap
+    private final ScheduledExecutorService saver;
+
+    SnapshotStore() {
+        this.file = Path.of(ConfigProperties.get("mudis.snapshot.file", "dump.msnap").trim());
+        this.intervalSeconds = ConfigProperties.getLong("mudis.snapshot.interval.s", 0);
+        this.saver = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("mudis-snapshot").daemon().factory());
+    }
+
+    /**
+     * Outcome of a save or load.
+     */
+    public record Result(int names, int subscriptions, long messages, long bytes, long millis) {
+        @Override
+        public String toString() {
+            return String.format("%d channel(s) and pattern(s), %d subscription(s), %d message(s), %d bytes in %d ms",
+                    names, subscriptions, messages, bytes, millis);
+        }
+    }
+
+    /**
+     * Queues a save behind any other in progress.
+     */
+    public CompletableFuture<Result> saveAsync() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return save();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, saver);
+    }
+
+    private void savePeriodically() {
+        try {
+            Log.info("Background snapshot saved: {}", save());
+        } catch (IOException | RuntimeException e) {
+            Log.error("Error saving background snapshot", e);
+        }
+    }
+
+    private Result save() throws IOException {
+        long start = System.nanoTime();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long[] counts = new long[3];
+
+        CRC32C crc = new CRC32C();
+        try (FileOutputStream stream = new FileOutputStream(temporary.toFile())) {
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(stream, 1 << 16), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+
+            PublisherRegistrar.INSTANCE.captureSubscriptions((pattern, name, subscriptions) -> {
+                out.writeByte(pattern ? PATTERN : CHANNEL);
+                writeBytes(out, name.getBytes(StandardCharsets.UTF_8));
+                out.writeInt(subscriptions.size());
+                for (SubscriptionState state : subscriptions) {
+                    writeSubscription(out, state, counts);
+                }
+                counts[0]++;
+                counts[1] += subscriptions.size();
+            });
+
+            out.writeByte(END);
+            out.flush();
+            // The checksum covers everything before it
+            new DataOutputStream(stream).writeLong(crc.getValue());
+            stream.getChannel().force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return new Result((int) counts[0], (int) counts[1], counts[2], Files.size(file),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private static void writeSubscription(DataOutputStream out, SubscriptionState state, long[] counts) throws IOException {
+        SubscriptionLimits limits = state.limits();
+        out.writeByte(state.ds().ordinal());
+        out.writeLong(limits.maxMessages());
+        out.writeByte(limits.messagesPolicy().ordinal());
+        out.writeLong(limits.maxBytes());
+        out.writeByte(limits.bytesPolicy().ordinal());
+        out.writeLong(limits.maxAgeMillis());
+        out.writeInt(state.messages().size());
+        for (ByteBuf message : state.messages()) {
+            out.writeInt(message.readableBytes());
+            message.getBytes(message.readerIndex(), out, message.readableBytes());
+        }
+        counts[2] += state.messages().size();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Loads the snapshot file, if there is one, and starts the background snapshots. Must be called before
+     * the server accepts connections.
+     */
+    public void open() throws IOException {
+        if (Files.exists(file)) {
+            load();
+        }
+        if (intervalSeconds > 0) {
+            saver.scheduleWithFixedDelay(this::savePeriodically, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public void close() {
+        saver.shutdown();
+    }
+
+    /**
+     * Restores the subscriptions in the snapshot file for clients to claim by subscribing again.
+     */
+    private void load() throws IOException {
+        long start = System.nanoTime();
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot larger than 2 GiB: " + file);
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int end = map.capacity() - Long.BYTES;
+        CRC32C crc = new CRC32C();
+        crc.update(map.slice(0, Math.max(end, 0)));
+        if (end < 16 || map.getInt(0) != MAGIC || map.getLong(end) != crc.getValue()) {
+            throw new IOException("Snapshot is corrupt: " + file);
+        }
+        int version = map.getInt(4);
+        if (version != VERSION && version != 1) {
+            throw new IOException("Unsupported snapshot version " + version + ": " + file);
+        }
+
+        map.position(16);
+        int names = 0;
+        int subscriptions = 0;
+        long messages = 0;
+        byte kind;
+        while ((kind = map.get()) != END) {
+            String name = readString(map);
+            int count = map.getInt();
+            for (int i = 0; i < count; i++) {
+                messages += readSubscription(map, version, kind == PATTERN, name);
+            }
+            names++;
+            subscriptions += count;
+        }
+
+        Result result = new Result(names, subscriptions, messages, map.capacity(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        Log.info("Loaded snapshot {}: {}", file.toAbsolutePath(), result);
+    }
+
+    private static int readSubscription(MappedByteBuffer map, int version, boolean pattern, String name) {
+        DataStructure ds = DATA_STRUCTURES[map.get()];
+        long maxMessages = map.getLong();
+        LimitPolicy messagesPolicy = LIMIT_POLICIES[map.get()];
+        long maxBytes = map.getLong();
+        LimitPolicy bytesPolicy = LIMIT_POLICIES[map.get()];
+        long maxAgeMillis = version == 1 ? Long.MAX_VALUE : map.getLong();
+        int count = map.getInt();
+
+        List<ByteBuf> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = map.getInt();
+            messages.add(Unpooled.wrappedBuffer(map.slice(map.position(), length)));
+            map.position(map.position() + length);
+        }
+        return PublisherRegistrar.INSTANCE.restore(pattern, name, ds,
+                new SubscriptionLimits(maxMessages, messagesPolicy, maxBytes, bytesPolicy, maxAgeMillis), messages);
+    }
+
+    private static String readString(MappedByteBuffer map) {
+        byte[] bytes = new byte[map.getInt()];
+        map.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
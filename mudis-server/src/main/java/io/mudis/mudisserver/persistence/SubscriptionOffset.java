@@ -0,0 +1,75 @@
+package io.mudis.mudisserver.persistence;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The committed offset of a {@link DurableSubscription}: the offset it resumes from, one past its last
+ * acknowledged message. It is a single long in a file of its own next to the channel's segments, mapped
+ * so that an acknowledgement is a store into memory like an append.
+ */
+final class SubscriptionOffset implements Forceable {
+    static final String SUFFIX = ".offset";
+
+    private final Path path;
+    private final MappedByteBuffer map;
+
+    private SubscriptionOffset(Path path, MappedByteBuffer map) {
+        this.path = path;
+        this.map = map;
+    }
+
+    /**
+     * Opens the file, creating it with the given offset if it does not exist yet.
+     */
+    static SubscriptionOffset open(Path path, long initial) throws IOException {
+        boolean exists = Files.exists(path);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            SubscriptionOffset offset = new SubscriptionOffset(path,
+                    file.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES));
+            if (!exists) {
+                offset.set(initial);
+            }
+            return offset;
+        }
+    }
+
+    static Path pathOf(Path directory, String name) {
+        return directory.resolve(PersistenceLog.encode(name) + SUFFIX);
+    }
+
+    /**
+     * Returns the subscription name encoded in an offset file name, or null if it is not one.
+     */
+    static String nameOf(Path file) {
+        String name = file.getFileName().toString();
+        return name.endsWith(SUFFIX) ? PersistenceLog.decode(name.substring(0, name.length() - SUFFIX.length())) : null;
+    }
+
+    long get() {
+        return map.getLong(0);
+    }
+
+    void set(long offset) {
+        map.putLong(0, offset);
+    }
+
+    @Override
+    public void force() {
+        map.force();
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public String toString() {
+        return "offset " + path;
+    }
+}
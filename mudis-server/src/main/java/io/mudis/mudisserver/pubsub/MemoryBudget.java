@@ -0,0 +1,48 @@
+package io.mudis.mudisserver.pubsub;
+
+import io.mudis.mudisserver.utils.ConfigProperties;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide cap on bytes buffered by subscribers across all publishers.
+ * Configured with {@code mudis.memory.budget} (bytes, 0 = unlimited).
+ */
+public enum MemoryBudget {
+    INSTANCE();
+
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+
+    MemoryBudget() {
+        long configured = ConfigProperties.getLong("mudis.memory.budget", 0);
+        this.limit = configured > 0 ? configured : Long.MAX_VALUE;
+    }
+
+    public boolean tryReserve(long bytes) {
+        long current;
+        do {
+            current = used.get();
+            if (current + bytes > limit) {
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    public void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    public boolean canFit(long bytes) {
+        return used.get() + bytes <= limit;
+    }
+
+    public long used() {
+        return used.get();
+    }
+
+    public long limit() {
+        return limit;
+    }
+}
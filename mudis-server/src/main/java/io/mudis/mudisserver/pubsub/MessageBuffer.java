@@ -0,0 +1,228 @@
+package io.mudis.mudisserver.pubsub;
+
+import io.mudis.mudisserver.model.DataStructure;
+import io.mudis.mudisserver.model.LimitPolicy;
+import io.mudis.mudisserver.model.SubscriptionLimits;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages buffered for one QUEUE or SET subscription, kept within its {@link SubscriptionLimits}
+ * and charged against the server-wide {@link MemoryBudget}. Sizes are UTF-8 payload bytes.
+ * Messages are held in {@link MessageStorage} and released when evicted or when the buffer closes.
+ * <p>
+ * Every message gets a position, counting from 0 for the first one stored, so readers can page
+ * through the buffer and resume where they stopped even as old messages are evicted.
+ * <p>
+ * Under a MAXAGE limit, arrivals are recorded in {@link TimeBuckets} and expired messages are evicted
+ * whole buckets at a time: lazily whenever the buffer is used, and by the registrar's periodic sweep.
+ */
+class MessageBuffer {
+    private final MessageRing messages;
+    private final boolean distinct;
+    private final SubscriptionLimits limits;
+    private final MemoryBudget budget = MemoryBudget.INSTANCE;
+    private final MessageStorage storage = MessageStorage.INSTANCE;
+    // Arrival times, or null without a MAXAGE limit
+    private final TimeBuckets arrivals;
+    private long bytes;
+    // Position of the oldest buffered message
+    private long firstPosition;
+    private boolean closed;
+
+    MessageBuffer(DataStructure ds, SubscriptionLimits limits) {
+        this.messages = switch (ds) {
+            case QUEUE -> new MessageRing();
+            case SET -> new MessageSet();
+            case STREAM -> throw new IllegalArgumentException("Streams are not buffered");
+        };
+        this.distinct = ds == DataStructure.SET;
+        this.limits = limits;
+        this.arrivals = limits.expires() ? new TimeBuckets() : null;
+    }
+
+    static long sizeOf(ByteBuf message) {
+        return message.readableBytes();
+    }
+
+    /**
+     * Stores a delivery item, evicting the oldest ones where a DROP_OLDEST limit allows it.
+     *
+     * @return false if the message was discarded
+     */
+    synchronized boolean add(ByteBuf message) {
+        if (closed) {
+            return false;
+        }
+        expireNow();
+        if (distinct && messages.contains(message)) {
+            return true;
+        }
+
+        long size = sizeOf(message);
+        if (size > limits.maxBytes()) {
+            return false;
+        }
+        while (messages.size() >= limits.maxMessages()) {
+            if (limits.messagesPolicy() != LimitPolicy.DROP_OLDEST) {
+                return false;
+            }
+            evictOldest();
+        }
+        while (bytes + size > limits.maxBytes()) {
+            if (limits.bytesPolicy() != LimitPolicy.DROP_OLDEST) {
+                return false;
+            }
+            evictOldest();
+        }
+        // Publishes are refused once the budget is spent; this only loses the race with a concurrent publish
+        if (!budget.tryReserve(size)) {
+            return false;
+        }
+
+        messages.addLast(storage.share(message));
+        bytes += size;
+        if (arrivals != null) {
+            arrivals.mark(endPosition() - 1, System.currentTimeMillis());
+        }
+        return true;
+    }
+
+    /**
+     * Returns why a message of the given size would be refused under a REJECT limit or the memory
+     * budget, or null if it can be published. Messages still in flight to this buffer are not counted.
+     */
+    synchronized String rejectionFor(long size) {
+        if (closed) {
+            return null;
+        }
+        expireNow();
+        if (limits.messagesPolicy() == LimitPolicy.REJECT && messages.size() >= limits.maxMessages()) {
+            return "subscriber reached MAXLEN " + limits.maxMessages();
+        }
+        if (limits.bytesPolicy() == LimitPolicy.REJECT && bytes + size > limits.maxBytes()) {
+            return "subscriber reached MAXBYTES " + limits.maxBytes();
+        }
+        if (!budget.canFit(size)) {
+            return Publisher.BUDGET_EXHAUSTED;
+        }
+        return null;
+    }
+
+    /**
+     * Drops every message and returns their bytes to the budget; later adds are ignored.
+     *
+     * @return false if the buffer was already closed
+     */
+    synchronized boolean close() {
+        if (closed) {
+            return false;
+        }
+        closed = true;
+        messages.forEach(storage::release);
+        firstPosition += messages.size();
+        messages.clear();
+        budget.release(bytes);
+        bytes = 0;
+        if (arrivals != null) {
+            arrivals.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Whether the buffer has a MAXAGE limit, without taking its lock.
+     */
+    boolean expires() {
+        return arrivals != null;
+    }
+
+    /**
+     * Evicts the messages that have outlived the MAXAGE limit as of {@code now}, if there is one. Without
+     * one it returns at once, without taking the lock.
+     *
+     * @return how many were evicted
+     */
+    int expire(long now) {
+        if (arrivals == null) {
+            return 0;
+        }
+        synchronized (this) {
+            if (closed) {
+                return 0;
+            }
+            long expiredBefore = Math.min(arrivals.firstAfter(now - limits.maxAgeMillis()), endPosition());
+            int expired = 0;
+            while (firstPosition < expiredBefore) {
+                evictOldest();
+                expired++;
+            }
+            arrivals.dropBefore(firstPosition);
+            return expired;
+        }
+    }
+
+    private void expireNow() {
+        if (arrivals != null) {
+            expire(System.currentTimeMillis());
+        }
+    }
+
+    private void evictOldest() {
+        ByteBuf oldest = messages.removeFirst();
+        firstPosition++;
+        long size = sizeOf(oldest);
+        storage.release(oldest);
+        bytes -= size;
+        budget.release(size);
+    }
+
+    synchronized long firstPosition() {
+        expireNow();
+        return firstPosition;
+    }
+
+    synchronized long endPosition() {
+        return firstPosition + messages.size();
+    }
+
+    /**
+     * Reads messages from position {@code from} (or the oldest one kept, if that was evicted) up to
+     * {@code to}, stopping after {@code maxCount} messages or once {@code maxBytes} have been read.
+     */
+    synchronized Page read(long from, long to, int maxCount, long maxBytes) {
+        expireNow();
+        long position = Math.max(from, firstPosition);
+        long end = Math.min(to, endPosition());
+        if (closed || position >= end) {
+            return new Page(List.of(), Math.max(position, to));
+        }
+
+        List<ByteBuf> page = new ArrayList<>((int) Math.min(maxCount, end - position));
+        long read = 0;
+        while (position < end && page.size() < maxCount && read < maxBytes) {
+            ByteBuf message = messages.get((int) (position - firstPosition));
+            page.add(message.retainedDuplicate());
+            read += message.readableBytes();
+            position++;
+        }
+        return new Page(page, position);
+    }
+
+    /**
+     * Removes up to {@code maxCount} of the oldest messages, returning their bytes to the budget. The
+     * messages are returned as retained duplicates that the caller must release.
+     */
+    synchronized List<ByteBuf> take(int maxCount) {
+        expireNow();
+        int count = Math.min(maxCount, messages.size());
+        List<ByteBuf> taken = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            taken.add(messages.getFirst().retainedDuplicate());
+            evictOldest();
+        }
+        return taken;
+    }
+}
@@ -0,0 +1,276 @@
+package io.mudis.mudisserver.pubsub;
+
+import io.mudis.mudisserver.model.SubscriptionLimits;
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only log of a channel's messages, shared by all of its QUEUE subscribers.
+ * <p>
+ * Every message is stored once, in fixed-size segments addressed by an absolute index. A subscriber only
+ * holds a {@link Cursor} marking where its queue starts, so memory is O(messages + subscribers). A segment
+ * is dropped, releasing its messages from {@link MessageStorage} and returning their bytes to the
+ * {@link MemoryBudget}, once every cursor has moved past it.
+ * <p>
+ * DROP_OLDEST limits are applied lazily: a cursor's window is narrowed to the newest messages that fit
+ * when it is read or the log is reclaimed, which is the same window eager eviction would have left. The one
+ * difference is a single message larger than MAXBYTES, which empties the window instead of being skipped.
+ * MAXAGE limits narrow the window the same way, to the messages the log's {@link TimeBuckets} say are
+ * young enough, so expired segments are dropped whole by the next reclaim.
+ */
+class MessageLog {
+    private static final int SEGMENT_SHIFT = 8;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private final Set<Cursor> cursors = ConcurrentHashMap.newKeySet();
+    private final MemoryBudget budget = MemoryBudget.INSTANCE;
+    private final MessageStorage storage = MessageStorage.INSTANCE;
+    // Arrival times, recorded while any cursor has a MAXAGE limit
+    private final TimeBuckets arrivals = new TimeBuckets();
+    private int expiringCursors;
+    // Index the next message is appended at, and the bytes appended before it
+    private long nextIndex;
+    private long totalBytes;
+
+    boolean hasCursors() {
+        return !cursors.isEmpty();
+    }
+
+    /**
+     * Opens a cursor at the end of the log, so it only sees messages appended from now on.
+     */
+    synchronized Cursor openCursor(SubscriptionLimits limits) {
+        Cursor cursor = new Cursor(nextIndex, limits);
+        cursors.add(cursor);
+        if (limits.expires()) {
+            expiringCursors++;
+        }
+        return cursor;
+    }
+
+    synchronized void closeCursor(Cursor cursor) {
+        if (cursors.remove(cursor)) {
+            if (cursor.limits.expires() && --expiringCursors == 0) {
+                arrivals.clear();
+            }
+            reclaim();
+        }
+    }
+
+    /**
+     * @return whether {@link #append} would find room for a payload of this size, reclaiming passed segments
+     * if that is what it takes, but reserving nothing
+     */
+    synchronized boolean canAppend(long size) {
+        if (budget.canFit(size)) {
+            return true;
+        }
+        reclaim();
+        return budget.canFit(size);
+    }
+
+    /**
+     * Appends a copy of the payload if the memory budget can hold it.
+     *
+     * @return false if the budget is exhausted even after reclaiming passed segments
+     */
+    synchronized boolean append(ByteBuf payload, long size) {
+        if (!budget.tryReserve(size)) {
+            reclaim();
+            if (!budget.tryReserve(size)) {
+                return false;
+            }
+        }
+
+        int offset = (int) (nextIndex & SEGMENT_MASK);
+        Segment segment = segments.isEmpty() ? null : segments.getLast();
+        if (segment == null || segment.base != nextIndex - offset) {
+            segment = new Segment(nextIndex - offset);
+            segments.add(segment);
+        }
+
+        segment.messages[offset] = storage.copy(payload);
+        segment.startBytes[offset] = totalBytes;
+        segment.bytes += size;
+        if (expiringCursors > 0) {
+            arrivals.mark(nextIndex, System.currentTimeMillis());
+        }
+        nextIndex++;
+        totalBytes += size;
+
+        if (offset == SEGMENT_MASK) {
+            reclaim();
+        }
+        return true;
+    }
+
+    synchronized boolean expires() {
+        return expiringCursors > 0;
+    }
+
+    /**
+     * Moves every cursor past the messages its limits have evicted, expired ones included, and drops the
+     * segments they have all passed.
+     */
+    synchronized void expire() {
+        reclaim();
+    }
+
+    /**
+     * Log index of the oldest message in the cursor's window.
+     */
+    synchronized long firstPosition(Cursor cursor) {
+        return cursors.contains(cursor) ? advance(cursor) : nextIndex;
+    }
+
+    synchronized long endPosition() {
+        return nextIndex;
+    }
+
+    /**
+     * Reads the cursor's messages from log index {@code from} (or the oldest one still in its window) up to
+     * {@code to}, stopping after {@code maxCount} messages or once {@code maxBytes} have been read.
+     */
+    synchronized Page read(Cursor cursor, long from, long to, int maxCount, long maxBytes) {
+        long index = cursors.contains(cursor) ? Math.max(from, advance(cursor)) : nextIndex;
+        long end = Math.min(to, nextIndex);
+        if (index >= end) {
+            return new Page(List.of(), Math.max(index, to));
+        }
+
+        List<ByteBuf> page = new ArrayList<>((int) Math.min(maxCount, end - index));
+        long read = 0;
+        while (index < end && page.size() < maxCount && read < maxBytes) {
+            ByteBuf message = segmentOf(index).messages[(int) (index & SEGMENT_MASK)];
+            page.add(message.retainedDuplicate());
+            read += message.readableBytes();
+            index++;
+        }
+        return new Page(page, index);
+    }
+
+    /**
+     * Moves the cursor past up to {@code maxCount} of its oldest messages and returns them as retained
+     * duplicates that the caller must release. Segments no cursor needs any more are dropped right away.
+     */
+    synchronized List<ByteBuf> take(Cursor cursor, int maxCount) {
+        if (!cursors.contains(cursor)) {
+            return List.of();
+        }
+
+        long start = advance(cursor);
+        long end = start + Math.min(maxCount, nextIndex - start);
+        List<ByteBuf> taken = new ArrayList<>((int) (end - start));
+        for (long index = start; index < end; index++) {
+            taken.add(segmentOf(index).messages[(int) (index & SEGMENT_MASK)].retainedDuplicate());
+        }
+        cursor.start = end;
+        reclaim();
+        return taken;
+    }
+
+    /**
+     * Moves the cursor forward past messages its DROP_OLDEST and MAXAGE limits have evicted and returns
+     * its start.
+     */
+    private long advance(Cursor cursor) {
+        SubscriptionLimits limits = cursor.limits;
+        long start = cursor.start;
+
+        if (limits.expires()) {
+            long cutoff = System.currentTimeMillis() - limits.maxAgeMillis();
+            start = Math.max(start, Math.min(arrivals.firstAfter(cutoff), nextIndex));
+        }
+        if (nextIndex - start > limits.maxMessages()) {
+            start = nextIndex - limits.maxMessages();
+        }
+        if (limits.maxBytes() != Long.MAX_VALUE) {
+            // Window bytes shrink as start grows, so the first start that fits can be binary searched
+            long low = start;
+            long high = nextIndex;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (totalBytes - startBytes(mid) <= limits.maxBytes()) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            start = low;
+        }
+
+        cursor.start = start;
+        return start;
+    }
+
+    /**
+     * Drops the segments every cursor has moved past.
+     */
+    private void reclaim() {
+        long min = nextIndex;
+        for (Cursor cursor : cursors) {
+            min = Math.min(min, advance(cursor));
+        }
+        arrivals.dropBefore(min);
+
+        int passed = 0;
+        long released = 0;
+        for (Segment segment : segments) {
+            long end = Math.min(segment.base + SEGMENT_SIZE, nextIndex);
+            if (end > min) {
+                break;
+            }
+            for (int i = 0; i < SEGMENT_SIZE; i++) {
+                if (segment.messages[i] != null) {
+                    storage.release(segment.messages[i]);
+                }
+            }
+            released += segment.bytes;
+            passed++;
+        }
+
+        if (passed > 0) {
+            segments.subList(0, passed).clear();
+            budget.release(released);
+        }
+    }
+
+    private long startBytes(long index) {
+        return index == nextIndex ? totalBytes : segmentOf(index).startBytes[(int) (index & SEGMENT_MASK)];
+    }
+
+    private Segment segmentOf(long index) {
+        long first = segments.getFirst().base >>> SEGMENT_SHIFT;
+        return segments.get((int) ((index >>> SEGMENT_SHIFT) - first));
+    }
+
+    private static final class Segment {
+        private final long base;
+        private final ByteBuf[] messages = new ByteBuf[SEGMENT_SIZE];
+        private final long[] startBytes = new long[SEGMENT_SIZE];
+        private long bytes;
+
+        private Segment(long base) {
+            this.base = base;
+        }
+    }
+
+    /**
+     * Read position of one QUEUE subscriber: its queue is the log from {@code start} to the end.
+     */
+    static final class Cursor {
+        private final SubscriptionLimits limits;
+        private long start;
+
+        private Cursor(long start, SubscriptionLimits limits) {
+            this.start = start;
+            this.limits = limits;
+        }
+    }
+}
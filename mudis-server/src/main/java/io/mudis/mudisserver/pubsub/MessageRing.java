@@ -0,0 +1,143 @@
+package io.mudis.mudisserver.pubsub;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SequencedCollection;
+
+/**
+ * Growable ring of messages in insertion order, with indexed access for paged reads.
+ * Only the oldest message can be removed. Not thread-safe: {@link MessageBuffer} guards it.
+ */
+class MessageRing extends AbstractCollection<ByteBuf> implements SequencedCollection<ByteBuf> {
+    private static final int INITIAL_CAPACITY = 16;
+
+    protected ByteBuf[] ring = new ByteBuf[INITIAL_CAPACITY];
+    protected int head;
+    protected int size;
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean add(ByteBuf message) {
+        if (size == ring.length) {
+            grow();
+        }
+        ring[position(size)] = message;
+        size++;
+        return true;
+    }
+
+    @Override
+    public void addLast(ByteBuf message) {
+        add(message);
+    }
+
+    /**
+     * Returns the message {@code offset} places after the oldest one.
+     */
+    ByteBuf get(int offset) {
+        if (offset < 0 || offset >= size) {
+            throw new IndexOutOfBoundsException(offset);
+        }
+        return ring[position(offset)];
+    }
+
+    @Override
+    public ByteBuf getFirst() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return ring[head];
+    }
+
+    @Override
+    public ByteBuf removeFirst() {
+        ByteBuf first = getFirst();
+        ring[head] = null;
+        head = (head + 1) & (ring.length - 1);
+        size--;
+        return first;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            ring[position(i)] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    @Override
+    public Iterator<ByteBuf> iterator() {
+        return new RingIterator(false);
+    }
+
+    @Override
+    public SequencedCollection<ByteBuf> reversed() {
+        return new Reversed();
+    }
+
+    protected int position(int offset) {
+        return (head + offset) & (ring.length - 1);
+    }
+
+    /**
+     * Doubles the ring, moving the oldest message to position 0.
+     */
+    protected void grow() {
+        ByteBuf[] grown = new ByteBuf[ring.length * 2];
+        for (int i = 0; i < size; i++) {
+            grown[i] = ring[position(i)];
+        }
+        ring = grown;
+        head = 0;
+    }
+
+    private class RingIterator implements Iterator<ByteBuf> {
+        private final boolean descending;
+        private int next;
+
+        RingIterator(boolean descending) {
+            this.descending = descending;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public ByteBuf next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int offset = descending ? size - 1 - next : next;
+            next++;
+            return ring[position(offset)];
+        }
+    }
+
+    private class Reversed extends AbstractCollection<ByteBuf> implements SequencedCollection<ByteBuf> {
+        @Override
+        public Iterator<ByteBuf> iterator() {
+            return new RingIterator(true);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public SequencedCollection<ByteBuf> reversed() {
+            return MessageRing.this;
+        }
+    }
+}
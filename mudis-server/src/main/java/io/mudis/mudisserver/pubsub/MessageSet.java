@@ -0,0 +1,172 @@
+package io.mudis.mudisserver.pubsub;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.util.Arrays;
+
+/**
+ * Insertion-ordered set of messages for SET subscriptions, built on primitive arrays instead of
+ * {@code LinkedHashSet} entries.
+ * <p>
+ * Messages sit in a {@link MessageRing} in insertion order next to their 64-bit fingerprints. An open-addressing
+ * table (linear probing, at most half full) maps fingerprints to ring positions, so each entry costs a reference
+ * and three {@code long}s rather than a map entry object. Each slot packs the upper half of the fingerprint
+ * with the ring position, so probing rarely leaves the table, and bytes are only compared when the tags match.
+ * Removal is limited to the oldest message, which is all eviction needs, and uses backward-shift deletion so
+ * no tombstones build up.
+ * <p>
+ * Not thread-safe: {@link MessageBuffer} guards it.
+ */
+class MessageSet extends MessageRing {
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long PRIME = 0xC2B2AE3D27D4EB4FL;
+    private static final long TAG_MASK = 0xFFFFFFFF00000000L;
+
+    private long[] fingerprints = new long[ring.length];
+    // Upper fingerprint half and ring position + 1 of the entry in each slot, 0 when empty
+    private long[] slots = new long[ring.length * 2];
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof ByteBuf message && find(message, fingerprint(message)) >= 0;
+    }
+
+    @Override
+    public boolean add(ByteBuf message) {
+        long fingerprint = fingerprint(message);
+        if (find(message, fingerprint) >= 0) {
+            return false;
+        }
+
+        super.add(message);
+        int position = position(size - 1);
+        fingerprints[position] = fingerprint;
+        insertSlot(fingerprint, position);
+        return true;
+    }
+
+    @Override
+    public ByteBuf removeFirst() {
+        if (size > 0) {
+            removeSlot(fingerprints[head], head);
+        }
+        return super.removeFirst();
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        Arrays.fill(slots, 0);
+    }
+
+    /**
+     * Returns the ring position of an equal message, or -1.
+     */
+    private int find(ByteBuf message, long fingerprint) {
+        int mask = slots.length - 1;
+        long tag = tag(fingerprint);
+        for (int slot = home(fingerprint, mask); slots[slot] != 0; slot = (slot + 1) & mask) {
+            if ((slots[slot] & TAG_MASK) != tag) {
+                continue;
+            }
+            int position = slotPosition(slots[slot]);
+            ByteBuf candidate = ring[position];
+            if (candidate == message || ByteBufUtil.equals(candidate, message)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private void insertSlot(long fingerprint, int position) {
+        int mask = slots.length - 1;
+        int slot = home(fingerprint, mask);
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = tag(fingerprint) | (position + 1);
+    }
+
+    private void removeSlot(long fingerprint, int position) {
+        int mask = slots.length - 1;
+        int hole = home(fingerprint, mask);
+        while (slotPosition(slots[hole]) != position) {
+            hole = (hole + 1) & mask;
+        }
+
+        // Shift later entries of the probe run back into the hole unless that would move them before their home
+        for (int slot = (hole + 1) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int home = home(fingerprints[slotPosition(slots[slot])], mask);
+            boolean movable = hole <= slot
+                    ? home <= hole || home > slot
+                    : home <= hole && home > slot;
+            if (movable) {
+                slots[hole] = slots[slot];
+                hole = slot;
+            }
+        }
+        slots[hole] = 0;
+    }
+
+    @Override
+    protected void grow() {
+        long[] grownFingerprints = new long[ring.length * 2];
+        for (int i = 0; i < size; i++) {
+            grownFingerprints[i] = fingerprints[position(i)];
+        }
+        super.grow();
+
+        fingerprints = grownFingerprints;
+        slots = new long[ring.length * 2];
+        for (int i = 0; i < size; i++) {
+            insertSlot(fingerprints[i], i);
+        }
+    }
+
+    private static int home(long fingerprint, int mask) {
+        return (int) fingerprint & mask;
+    }
+
+    private static long tag(long fingerprint) {
+        return fingerprint & TAG_MASK;
+    }
+
+    private static int slotPosition(long slot) {
+        return (int) slot - 1;
+    }
+
+    /**
+     * 64-bit hash of the readable bytes, read eight at a time.
+     */
+    static long fingerprint(ByteBuf message) {
+        int index = message.readerIndex();
+        int end = message.writerIndex();
+        long hash = SEED ^ (end - index);
+
+        for (; index + Long.BYTES <= end; index += Long.BYTES) {
+            long word = message.getLongLE(index);
+            hash = Long.rotateLeft(hash ^ word * PRIME, 31) * SEED;
+        }
+        long tail = 0;
+        int shift = 0;
+        if (index + Integer.BYTES <= end) {
+            tail = message.getIntLE(index) & 0xFFFFFFFFL;
+            index += Integer.BYTES;
+            shift = 32;
+        }
+        for (; index < end; index++, shift += 8) {
+            tail |= (message.getByte(index) & 0xFFL) << shift;
+        }
+        return mix(hash ^ mix(tail));
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,138 @@
+package io.mudis.mudisserver.pubsub;
+
+import io.mudis.mudisserver.utils.ConfigProperties;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.buffer.UnpooledHeapByteBuf;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds buffered messages as raw UTF-8, either in heap arrays or, with {@code mudis.storage.offheap=true},
+ * in pooled direct memory that the garbage collector never scans.
+ * <p>
+ * Stored buffers are reference-counted. A message is copied into storage once, and whoever holds it, a
+ * subscriber buffer, the channel log, a delivery in flight or a write to a socket, holds a reference or a
+ * retained duplicate; the last one to let go frees the copy, returning direct memory to the pool at once.
+ * Storage has an allocator of its own, so its direct memory is told apart from the network buffers.
+ */
+public enum MessageStorage {
+    INSTANCE();
+
+    private final boolean offHeap;
+    private final PooledByteBufAllocator allocator = new PooledByteBufAllocator(true);
+    private final AtomicLong storedMessages = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    MessageStorage() {
+        this.offHeap = Boolean.parseBoolean(ConfigProperties.get("mudis.storage.offheap", "false").trim());
+    }
+
+    /**
+     * Copies a payload the caller does not own (e.g., a slice of an inbound frame) into storage. The copy
+     * starts with one reference, the caller's.
+     */
+    ByteBuf copy(ByteBuf payload) {
+        int size = payload.readableBytes();
+        if (!offHeap) {
+            return new StoredHeapBuf(ByteBufUtil.getBytes(payload));
+        }
+        ByteBuf pooled = allocator.directBuffer(size, size).writeBytes(payload, payload.readerIndex(), size);
+        return new StoredDirectBuf(pooled);
+    }
+
+    /**
+     * Shares a stored message with another holder: a retained duplicate of the same bytes.
+     */
+    ByteBuf share(ByteBuf stored) {
+        return stored.retainedDuplicate();
+    }
+
+    void release(ByteBuf stored) {
+        stored.release();
+    }
+
+    private void stored(int size) {
+        storedMessages.incrementAndGet();
+        storedBytes.addAndGet(size);
+    }
+
+    private void freed(int size) {
+        storedMessages.decrementAndGet();
+        storedBytes.addAndGet(-size);
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Messages in storage, each counted once however many subscribers share it.
+     */
+    public long storedMessages() {
+        return storedMessages.get();
+    }
+
+    public long storedBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * Direct memory the storage pool holds, in whole chunks, whether or not they are full.
+     */
+    public long usedDirectMemory() {
+        return allocator.metric().usedDirectMemory();
+    }
+
+    /**
+     * Direct memory the default allocator holds for network buffers.
+     */
+    public long networkDirectMemory() {
+        return ByteBufAllocator.DEFAULT instanceof ByteBufAllocatorMetricProvider provider
+                ? provider.metric().usedDirectMemory()
+                : 0;
+    }
+
+    /**
+     * Heap copy that is counted out of storage once its last reference is released.
+     */
+    private static final class StoredHeapBuf extends UnpooledHeapByteBuf {
+        StoredHeapBuf(byte[] bytes) {
+            super(UnpooledByteBufAllocator.DEFAULT, bytes, bytes.length);
+            INSTANCE.stored(bytes.length);
+        }
+
+        @Override
+        protected void deallocate() {
+            INSTANCE.freed(capacity());
+            super.deallocate();
+        }
+    }
+
+    /**
+     * View of a pooled direct buffer that gives it back to the pool once its last reference is released.
+     * Duplicates of it share its count, so whichever holder lets go last frees it.
+     */
+    private static final class StoredDirectBuf extends UnpooledDirectByteBuf {
+        private final ByteBuf pooled;
+
+        StoredDirectBuf(ByteBuf pooled) {
+            super(pooled.alloc(), pooled.nioBuffer(0, pooled.writerIndex()), pooled.writerIndex());
+            this.pooled = pooled;
+            INSTANCE.stored(pooled.writerIndex());
+        }
+
+        @Override
+        protected void deallocate() {
+            INSTANCE.freed(pooled.writerIndex());
+            // The view only drops its reference to the memory; the pool owns it
+            super.deallocate();
+            pooled.release();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package io.mudis.mudisserver.pubsub;
+
+/**
+ * What a publish does when a subscriber's delivery buffer is full.
+ */
+public enum OverflowPolicy {
+    // Skip the full subscriber; everyone else still gets the message
+    DROP,
+    // Refuse the publish with an error reply before it reaches anyone
+    REJECT,
+    // Close the full subscriber's connection
+    DISCONNECT
+}
@@ -0,0 +1,12 @@
+package io.mudis.mudisserver.pubsub;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.List;
+
+/**
+ * Slice of a subscription's buffered messages. The messages are retained duplicates the reader must
+ * release, and {@code next} is the position to continue reading from.
+ */
+public record Page(List<ByteBuf> messages, long next) {
+}
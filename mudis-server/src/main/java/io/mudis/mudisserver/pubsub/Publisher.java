@@ -1,49 +1,269 @@
 package io.mudis.mudisserver.pubsub;
 
+import io.mudis.mudisserver.model.ConsumerGroupSpec;
 import io.mudis.mudisserver.model.DataStructure;
+import io.mudis.mudisserver.model.GroupBalance;
+import io.mudis.mudisserver.model.SubscriptionLimits;
+import io.mudis.mudisserver.model.PayloadReply;
+import io.mudis.mudisshared.model.Status;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Flow;
 import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Publisher that manages its own subscribers and their data structures.
  * Each publisher instance maintains its own set of subscriber contexts.
+ * <p>
+ * Publishing never blocks the calling I/O thread: each subscriber has a bounded buffer drained on the
+ * delivery executor, and a full buffer is handled by the {@link OverflowPolicy} instead of waiting for room.
+ * Messages travel as UTF-8 bytes and are kept in {@link MessageStorage}; they are never decoded to Strings.
+ * <p>
+ * A {@link ConsumerGroup} takes part in the fan-out as a single subscriber and passes each message on to one
+ * of its members, so the members of a group share the channel's messages instead of each getting all of them.
  */
-public class Publisher extends SubmissionPublisher<String> {
+public class Publisher extends SubmissionPublisher<ByteBuf> {
     private static final Logger Log = LoggerFactory.getLogger(Publisher.class);
+    // Stream subscribers of a connection, resumed when its socket becomes writable again
+    private static final AttributeKey<Set<StreamSubscriber>> STREAMS = AttributeKey.valueOf("mudis.streams");
+    public static final String BUDGET_EXHAUSTED = "server memory budget exhausted";
+
     private final Set<ChannelHandlerContext> subscribers = ConcurrentHashMap.newKeySet();
-    private final Map<ChannelHandlerContext, DataStructureSubscriber> subscriberMap = new ConcurrentHashMap<>();
+    private final Map<ChannelHandlerContext, ChannelSubscriber> subscriberMap = new ConcurrentHashMap<>();
+    private final OverflowPolicy overflowPolicy;
+    // QUEUE subscribers whose limits only evict read from this log instead of a collection of their own
+    private final MessageLog log = new MessageLog();
+    private final AtomicInteger bufferedSubscribers = new AtomicInteger();
+    private final Map<String, ConsumerGroup> groups = new ConcurrentHashMap<>();
+    // Inboxes of the subscribers fed through the SubmissionPublisher, and how many of them buffer what they
+    // take; changed and offered to under deliveryLock, so every offer is retained for exactly those it reaches
+    private final Object deliveryLock = new Object();
+    private final List<Inbox> inboxes = new ArrayList<>();
+    private int bufferingInboxes;
+    // Told whenever the last subscriber leaves, so the owner can reclaim the channel
+    private final Consumer<Publisher> onIdle;
+
+    public Publisher(Executor deliveryExecutor, int bufferSize, OverflowPolicy overflowPolicy,
+                     Consumer<Publisher> onIdle) {
+        super(deliveryExecutor, bufferSize);
+        this.overflowPolicy = overflowPolicy;
+        this.onIdle = onIdle;
+    }
+
+    /**
+     * Offers the message to every subscriber without blocking. The payload may be a slice of the inbound
+     * frame: it is copied into {@link MessageStorage} once if any subscriber buffers it, and otherwise
+     * retained and pushed as it is.
+     */
+    public PublishResult publish(ByteBuf payload) {
+        int subscriberCount = getSubscriberCount();
+
+        long size = MessageBuffer.sizeOf(payload);
+        String rejection = rejection(size);
+        if (rejection != null) {
+            return new PublishResult(subscriberCount, 0, rejection);
+        }
+        if (log.hasCursors() && !log.append(payload, size)) {
+            return new PublishResult(subscriberCount, 0, BUDGET_EXHAUSTED);
+        }
+
+        synchronized (deliveryLock) {
+            if (inboxes.isEmpty()) {
+                return new PublishResult(subscriberCount, 0, null);
+            }
+            // Only buffered messages outlive the frame for long, so pushes alone need no copy
+            ByteBuf item = bufferingInboxes > 0 ? MessageStorage.INSTANCE.copy(payload) : payload.retainedSlice();
+            int lag;
+            try {
+                for (Inbox inbox : inboxes) {
+                    inbox.add(item);
+                }
+                lag = offer(item, this::onOverflow);
+            } finally {
+                item.release();
+            }
+            return new PublishResult(subscriberCount, lag < 0 ? -lag : 0, null);
+        }
+    }
+
+    /**
+     * Runs the checks {@link #publish} refuses a message on, without changing anything, so a caller can
+     * persist the message before fanning it out and still reject it first. The memory budget is shared, so
+     * publish can still refuse what this let through if other channels filled it up in between.
+     *
+     * @return why publish would refuse the message, or null if it would not
+     */
+    public String wouldReject(ByteBuf payload) {
+        long size = MessageBuffer.sizeOf(payload);
+        String rejection = rejection(size);
+        if (rejection == null && log.hasCursors() && !log.canAppend(size)) {
+            return BUDGET_EXHAUSTED;
+        }
+        return rejection;
+    }
+
+    private String rejection(long size) {
+        // Lag is an estimate, so a subscriber can still fill up concurrently; offer() then drops for it
+        if (overflowPolicy == OverflowPolicy.REJECT && estimateMaximumLag() >= getMaxBufferCapacity()) {
+            return "a subscriber's delivery buffer is full";
+        }
+        return bufferRejection(size);
+    }
+
+    private boolean hasBufferedSubscribers() {
+        return bufferedSubscribers.get() > 0;
+    }
+
+    private String bufferRejection(long size) {
+        if (!hasBufferedSubscribers()) {
+            return null;
+        }
+        for (ChannelSubscriber subscriber : subscriberMap.values()) {
+            if (subscriber instanceof DataStructureSubscriber buffered) {
+                String rejection = buffered.buffer.rejectionFor(size);
+                if (rejection != null) {
+                    return rejection;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean onOverflow(Flow.Subscriber<? super ByteBuf> subscriber, ByteBuf message) {
+        Inbox inbox = switch (subscriber) {
+            case DeliverySubscriber delivery -> delivery.inbox;
+            case ConsumerGroup group -> group.inbox;
+            default -> null;
+        };
+        if (inbox != null) {
+            inbox.dropLast(message);
+        }
+        if (overflowPolicy == OverflowPolicy.DISCONNECT
+                && subscriber instanceof DeliverySubscriber channelSubscriber
+                && channelSubscriber.ctx.channel().isActive()) {
+            Log.warn("Disconnecting slow subscriber: {}", channelSubscriber.ctx.channel());
+            channelSubscriber.ctx.close();
+        }
+        return false;
+    }
+
+    /**
+     * Subscribes the context. For {@link DataStructure#STREAM} every message is pushed to the connection
+     * in a frame carrying {@code subscriptionId}, the id of the SUBSCRIBE request. Buffered data structures
+     * are kept within {@code limits}.
+     */
+    public void subscribe(DataStructure ds, SubscriptionLimits limits, ChannelHandlerContext ctx, int subscriptionId) {
+        subscribe(ds, limits, ctx, subscriptionId, List.of());
+    }
+
+    /**
+     * Subscribes the context with {@code restored} messages, e.g. from a snapshot, already buffered ahead of
+     * anything published from now on. The restored messages are only read.
+     */
+    public void subscribe(DataStructure ds, SubscriptionLimits limits, ChannelHandlerContext ctx, int subscriptionId,
+                          List<ByteBuf> restored) {
+        // Replacing a subscription never leaves the channel idle
+        ChannelSubscriber replaced = subscriberMap.remove(ctx);
+        if (replaced != null) {
+            replaced.cancel();
+        }
 
-    public void subscribe(DataStructure ds, ChannelHandlerContext ctx) {
-        var subscriber = new DataStructureSubscriber(ds, ctx);
+        ChannelSubscriber subscriber = switch (ds) {
+            case STREAM -> new StreamSubscriber(ctx, subscriptionId);
+            // The shared log only has what is published from now on, so a restored queue keeps its own buffer
+            case QUEUE -> limits.dropsOldestOnly() && restored.isEmpty()
+                    ? new LogSubscriber(limits, ctx)
+                    : new DataStructureSubscriber(ds, limits, ctx);
+            case SET -> new DataStructureSubscriber(ds, limits, ctx);
+        };
+        if (subscriber instanceof DataStructureSubscriber buffered) {
+            // Restored messages may be slices of a larger buffer, so each gets a storage copy of its own
+            for (ByteBuf message : restored) {
+                ByteBuf copy = MessageStorage.INSTANCE.copy(message);
+                buffered.buffer.add(copy);
+                copy.release();
+            }
+        }
 
         subscribers.add(ctx);
         subscriberMap.put(ctx, subscriber);
-        super.subscribe(subscriber);
+        if (subscriber instanceof DeliverySubscriber delivery) {
+            delivery.inbox.open(delivery);
+        }
 
         Log.info("Client subscribed with data structure: {} (total: {})", ds, subscribers.size());
     }
 
+    /**
+     * Subscribes the context as a member of the consumer group, creating the group on its first member.
+     * The member buffers within {@code limits} like any subscription, or, for {@link DataStructure#STREAM},
+     * has its messages pushed under {@code subscriptionId}.
+     *
+     * @throws IllegalArgumentException if the group exists and balances differently
+     */
+    public void subscribe(DataStructure ds, SubscriptionLimits limits, ConsumerGroupSpec group,
+                          ChannelHandlerContext ctx, int subscriptionId) {
+        ConsumerGroup existing = groups.get(group.name());
+        if (existing != null && existing.balance != group.balance()) {
+            throw new IllegalArgumentException("Group " + group.name() + " balances by " + existing.balance);
+        }
+
+        ChannelSubscriber replaced = subscriberMap.remove(ctx);
+        if (replaced != null) {
+            replaced.cancel();
+        }
+
+        GroupMember member;
+        while (true) {
+            ConsumerGroup target = groups.computeIfAbsent(group.name(), name -> new ConsumerGroup(name, group.balance()));
+            member = ds == DataStructure.STREAM
+                    ? new StreamGroupMember(target, ctx, subscriptionId)
+                    : new BufferedGroupMember(target, ds, limits, ctx);
+            if (target.join(member)) {
+                break;
+            }
+            // The group lost its last member and closed in the meantime
+            member.release();
+            groups.remove(group.name(), target);
+        }
+
+        subscribers.add(ctx);
+        subscriberMap.put(ctx, member);
+        Log.info("Client joined group {} with data structure: {} (total: {})", group.name(), ds, subscribers.size());
+    }
+
     public void unsubscribe(ChannelHandlerContext ctx) {
-        DataStructureSubscriber subscriber = subscriberMap.remove(ctx);
+        ChannelSubscriber subscriber = subscriberMap.remove(ctx);
 
         if (subscriber != null) {
             subscribers.remove(ctx);
-            if (subscriber.subscription != null) {
-                subscriber.subscription.cancel();
-            }
+            subscriber.cancel();
             Log.info("Client unsubscribed (remaining: {})", subscribers.size());
+            checkIdle();
         } else {
             Log.warn("Attempted to unsubscribe non-existent subscriber");
         }
     }
 
+    private void checkIdle() {
+        if (subscribers.isEmpty()) {
+            onIdle.accept(this);
+        }
+    }
+
     public int getSubscriberCount() {
         return subscribers.size();
     }
@@ -52,67 +272,910 @@ public class Publisher extends SubmissionPublisher<String> {
         return subscribers.contains(ctx);
     }
 
-    public DataStructureSubscriber getSubscriber(ChannelHandlerContext ctx) {
+    public ChannelSubscriber getSubscriber(ChannelHandlerContext ctx) {
         return subscriberMap.get(ctx);
     }
 
+    /**
+     * Whether any subscription has a MAXAGE limit, so that {@link #expire} has something to do.
+     */
+    public boolean expires() {
+        for (ChannelSubscriber subscriber : subscriberMap.values()) {
+            if (subscriber.expires()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evicts the messages every subscription's MAXAGE limit has expired. Run periodically by the registrar
+     * on the channels that {@link #expires()}, so they are freed even on channels nobody reads.
+     *
+     * @return how many buffered messages were evicted; those left behind in the shared log are not counted
+     */
+    public int expire(long now) {
+        if (log.expires()) {
+            log.expire();
+        }
+        int expired = 0;
+        for (ChannelSubscriber subscriber : subscriberMap.values()) {
+            expired += subscriber.expire(now);
+        }
+        return expired;
+    }
+
+    /**
+     * Captures every buffered subscription, its messages as retained duplicates the caller must release.
+     * Only the references are copied, each subscription under its own lock. Streams hold nothing and are
+     * left out.
+     */
+    public List<SubscriptionState> captureSubscriptions() {
+        List<SubscriptionState> states = new ArrayList<>();
+        for (ChannelSubscriber subscriber : subscriberMap.values()) {
+            SubscriptionState state = subscriber.capture();
+            if (state != null) {
+                states.add(state);
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Captures every buffered subscription like {@link #captureSubscriptions()}, keyed by the connection
+     * holding it.
+     */
+    public Map<ChannelHandlerContext, SubscriptionState> captureSubscriptionsByConnection() {
+        Map<ChannelHandlerContext, SubscriptionState> states = new LinkedHashMap<>();
+        subscriberMap.forEach((ctx, subscriber) -> {
+            SubscriptionState state = subscriber.capture();
+            if (state != null) {
+                states.put(ctx, state);
+            }
+        });
+        return states;
+    }
+
+    /**
+     * Outcome of a publish: how many subscribers it was offered to, how many of them were full, and
+     * why it was refused outright, if it was (an {@link OverflowPolicy#REJECT} or REJECT limit, or the memory budget).
+     */
+    public record PublishResult(int subscribers, int dropped, String rejection) {
+        public static final PublishResult NONE = new PublishResult(0, 0, null);
+
+        public boolean rejected() {
+            return rejection != null;
+        }
+    }
+
+    /**
+     * Resumes delivery to the stream subscribers of a connection whose socket became writable again.
+     */
+    public static void resumeStreams(Channel channel) {
+        Set<StreamSubscriber> streams = channel.attr(STREAMS).get();
+        if (streams != null) {
+            streams.forEach(StreamSubscriber::resume);
+        }
+    }
+
+    /**
+     * Subscription that keeps its messages for SHOW and POP, as a QUEUE or SET, rather than pushing them.
+     */
+    public interface BufferedSubscriber {
+        /**
+         * Position of the oldest buffered message.
+         */
+        long firstPosition();
+
+        /**
+         * Position just past the newest buffered message.
+         */
+        long endPosition();
+
+        /**
+         * Reads buffered messages between two positions for SHOW; see {@link MessageBuffer#read}.
+         */
+        Page read(long from, long to, int maxCount, long maxBytes);
+
+        /**
+         * Removes up to {@code maxCount} of the oldest buffered messages for POP; see {@link MessageBuffer#take}.
+         */
+        List<ByteBuf> take(int maxCount);
+
+        /**
+         * Where SHOW NEW resumes.
+         */
+        long lastRead();
+
+        void markRead(long position);
+    }
+
+    /**
+     * What one subscriber fed through the {@link SubmissionPublisher} has been offered and not yet taken, in
+     * order, each holding a reference of its own. The publisher lets go of its reference right after the
+     * offer, so an item is freed once every subscriber has taken it, overflowed on it or been cancelled with
+     * it still queued, whichever comes last.
+     */
+    final class Inbox {
+        private final Deque<ByteBuf> items = new ConcurrentLinkedDeque<>();
+        private final boolean buffers;
+        // Guarded by deliveryLock
+        private boolean open;
+        private boolean closed;
+
+        Inbox(boolean buffers) {
+            this.buffers = buffers;
+        }
+
+        /**
+         * Starts taking items and subscribes the subscriber, so it is offered exactly what it has a
+         * reference for.
+         */
+        void open(Flow.Subscriber<ByteBuf> subscriber) {
+            synchronized (deliveryLock) {
+                if (closed) {
+                    return;
+                }
+                open = true;
+                inboxes.add(this);
+                if (buffers) {
+                    bufferingInboxes++;
+                }
+                Publisher.super.subscribe(subscriber);
+            }
+        }
+
+        private void add(ByteBuf item) {
+            items.addLast(item.retain());
+        }
+
+        /**
+         * Gives back the item just offered if the subscriber's buffer had no room for it. Runs inside the
+         * offer; the subscriber takes from the other end, and its full buffer keeps older items in between.
+         */
+        private void dropLast(ByteBuf item) {
+            ByteBuf last = items.pollLast();
+            if (last == item) {
+                last.release();
+            } else if (last != null) {
+                items.addLast(last);
+            }
+        }
+
+        /**
+         * Takes over the reference the item was offered with, to be released once it is handled.
+         *
+         * @return false if the subscriber was cancelled and its references already released
+         */
+        boolean claim(ByteBuf item) {
+            return items.pollFirst() == item;
+        }
+
+        void close() {
+            synchronized (deliveryLock) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (open && inboxes.remove(this) && buffers) {
+                    bufferingInboxes--;
+                }
+            }
+            ByteBuf item;
+            while ((item = items.pollFirst()) != null) {
+                item.release();
+            }
+        }
+    }
+
+    /**
+     * Subscriber bound to one client connection.
+     */
+    public abstract class ChannelSubscriber {
+        protected final ChannelHandlerContext ctx;
+        // Where SHOW NEW resumes on a BufferedSubscriber; only touched from the connection's event loop
+        private long lastRead;
+
+        ChannelSubscriber(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        void cancel() {
+            release();
+        }
+
+        public abstract DataStructure dataStructure();
+
+        /**
+         * Captures the subscription for a snapshot; see {@link #captureSubscriptions()}.
+         */
+        SubscriptionState capture() {
+            return null;
+        }
+
+        /**
+         * Whether the subscription has a MAXAGE limit.
+         */
+        boolean expires() {
+            return false;
+        }
+
+        /**
+         * Evicts the buffered messages a MAXAGE limit has expired; see {@link MessageBuffer#expire}.
+         */
+        int expire(long now) {
+            return 0;
+        }
+
+        public long lastRead() {
+            return lastRead;
+        }
+
+        public void markRead(long position) {
+            lastRead = position;
+        }
+
+        /**
+         * Frees whatever the subscriber holds once it stops receiving messages.
+         */
+        void release() {
+        }
+    }
+
+    /**
+     * Subscriber fed through this publisher's {@link SubmissionPublisher} buffer on the delivery executor.
+     */
+    public abstract class DeliverySubscriber extends ChannelSubscriber implements Flow.Subscriber<ByteBuf> {
+        protected Flow.Subscription subscription;
+        final Inbox inbox;
+
+        DeliverySubscriber(ChannelHandlerContext ctx, boolean buffers) {
+            super(ctx);
+            this.inbox = new Inbox(buffers);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public final void onNext(ByteBuf message) {
+            if (!inbox.claim(message)) {
+                return;
+            }
+            try {
+                deliver(message);
+            } finally {
+                message.release();
+            }
+        }
+
+        /**
+         * Handles a message, taking a reference of its own if it keeps it. Runs on the delivery executor.
+         */
+        abstract void deliver(ByteBuf message);
+
+        @Override
+        void cancel() {
+            inbox.close();
+            if (subscription != null) {
+                subscription.cancel();
+            }
+            super.cancel();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            inbox.close();
+            release();
+            if (subscriberMap.remove(ctx, this)) {
+                subscribers.remove(ctx);
+                checkIdle();
+            }
+            Log.error("Subscriber error", throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            inbox.close();
+            release();
+            if (subscriberMap.remove(ctx, this)) {
+                subscribers.remove(ctx);
+                checkIdle();
+            }
+            Log.info("Subscription completed");
+        }
+    }
+
+    /**
+     * QUEUE subscriber reading the channel's shared {@link MessageLog} through a cursor. Messages are
+     * appended once by the publishing thread, so nothing is delivered to it individually.
+     */
+    public class LogSubscriber extends ChannelSubscriber implements BufferedSubscriber {
+        private final SubscriptionLimits limits;
+        private final MessageLog.Cursor cursor;
+
+        LogSubscriber(SubscriptionLimits limits, ChannelHandlerContext ctx) {
+            super(ctx);
+            this.limits = limits;
+            this.cursor = log.openCursor(limits);
+        }
+
+        @Override
+        boolean expires() {
+            return limits.expires();
+        }
+
+        @Override
+        SubscriptionState capture() {
+            Page page = log.read(cursor, 0, Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+            return new SubscriptionState(DataStructure.QUEUE, limits, page.messages());
+        }
+
+        @Override
+        void release() {
+            log.closeCursor(cursor);
+        }
+
+        @Override
+        public DataStructure dataStructure() {
+            return DataStructure.QUEUE;
+        }
+
+        @Override
+        public long firstPosition() {
+            return log.firstPosition(cursor);
+        }
+
+        @Override
+        public long endPosition() {
+            return log.endPosition();
+        }
+
+        @Override
+        public Page read(long from, long to, int maxCount, long maxBytes) {
+            return log.read(cursor, from, to, maxCount, maxBytes);
+        }
+
+        @Override
+        public List<ByteBuf> take(int maxCount) {
+            return log.take(cursor, maxCount);
+        }
+    }
+
     /**
      * Subscriber implementation that handles different data structure types.
      */
-    public class DataStructureSubscriber implements Flow.Subscriber<String> {
-        private final ChannelHandlerContext ctx;
+    public class DataStructureSubscriber extends DeliverySubscriber implements BufferedSubscriber {
         private final DataStructure dataStructure;
-        private final Collection<String> collection;
-        private Flow.Subscription subscription;
+        private final SubscriptionLimits limits;
+        private final MessageBuffer buffer;
 
-        DataStructureSubscriber(DataStructure dataStructure, ChannelHandlerContext ctx) {
-            this.ctx = ctx;
+        DataStructureSubscriber(DataStructure dataStructure, SubscriptionLimits limits, ChannelHandlerContext ctx) {
+            super(ctx, true);
             this.dataStructure = dataStructure;
-            this.collection = createCollection(dataStructure);
+            this.limits = limits;
+            this.buffer = new MessageBuffer(dataStructure, limits);
+            bufferedSubscribers.incrementAndGet();
+        }
+
+        @Override
+        SubscriptionState capture() {
+            Page page = buffer.read(0, Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+            return new SubscriptionState(dataStructure, limits, page.messages());
+        }
+
+        @Override
+        boolean expires() {
+            return buffer.expires();
         }
 
-        private Collection<String> createCollection(DataStructure ds) {
-            return switch (ds) {
-                case QUEUE -> new ConcurrentLinkedQueue<>();
-                case SET -> Collections.synchronizedSet(new LinkedHashSet<>());
-            };
+        @Override
+        int expire(long now) {
+            return buffer.expire(now);
         }
 
         @Override
         public void onSubscribe(Flow.Subscription subscription) {
-            subscription.request(1);
-            this.subscription = subscription;
+            super.onSubscribe(subscription);
             Log.debug("Subscription established for {}", dataStructure);
         }
 
         @Override
-        public void onNext(String message) {
+        void deliver(ByteBuf message) {
             try {
-                collection.add(message);
+                if (!buffer.add(message)) {
+                    Log.debug("Message dropped by {} limits", dataStructure);
+                }
                 subscription.request(1);
             } catch (Exception e) {
-                Log.error("Error processing message: {}", message, e);
+                Log.error("Error processing message of {} bytes", message.readableBytes(), e);
                 onError(e);
             }
         }
 
+        @Override
+        void release() {
+            if (buffer.close()) {
+                bufferedSubscribers.decrementAndGet();
+            }
+        }
+
+        @Override
+        public DataStructure dataStructure() {
+            return dataStructure;
+        }
+
+        @Override
+        public long firstPosition() {
+            return buffer.firstPosition();
+        }
+
+        @Override
+        public long endPosition() {
+            return buffer.endPosition();
+        }
+
+        @Override
+        public Page read(long from, long to, int maxCount, long maxBytes) {
+            return buffer.read(from, to, maxCount, maxBytes);
+        }
+
+        @Override
+        public List<ByteBuf> take(int maxCount) {
+            return buffer.take(maxCount);
+        }
+    }
+
+    /**
+     * Pushes each message to the connection as it arrives instead of buffering it.
+     * <p>
+     * Messages are handed to the connection's event loop, which writes everything queued and flushes once
+     * per tick. Demand is only renewed while the socket is writable and the hand-off queue is short; otherwise
+     * the next {@code request(1)} is held back until {@link #resume()}, so a slow consumer is throttled by its
+     * publisher buffer instead of growing the outbound buffer without limit.
+     */
+    public class StreamSubscriber extends DeliverySubscriber {
+        private static final int MAX_QUEUED = 1024;
+
+        private final int subscriptionId;
+        private final Queue<ByteBuf> queued = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queuedCount = new AtomicInteger();
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        private final AtomicBoolean paused = new AtomicBoolean();
+        private final Runnable drainTask = this::drain;
+
+        StreamSubscriber(ChannelHandlerContext ctx, int subscriptionId) {
+            super(ctx, false);
+            this.subscriptionId = subscriptionId;
+        }
+
+        @Override
+        public DataStructure dataStructure() {
+            return DataStructure.STREAM;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            Channel channel = ctx.channel();
+            channel.attr(STREAMS).setIfAbsent(ConcurrentHashMap.newKeySet());
+            channel.attr(STREAMS).get().add(this);
+            super.onSubscribe(subscription);
+            Log.debug("Stream subscription established");
+        }
+
+        @Override
+        void cancel() {
+            Set<StreamSubscriber> streams = ctx.channel().attr(STREAMS).get();
+            if (streams != null) {
+                streams.remove(this);
+            }
+            super.cancel();
+        }
+
+        @Override
+        void deliver(ByteBuf message) {
+            if (!ctx.channel().isActive()) {
+                return;
+            }
+
+            queued.offer(message.retainedDuplicate());
+            queuedCount.incrementAndGet();
+            if (drainScheduled.compareAndSet(false, true)) {
+                ctx.executor().execute(drainTask);
+            }
+
+            if (canAcceptMore()) {
+                subscription.request(1);
+                return;
+            }
+
+            paused.set(true);
+            // Room may have opened up before the flag was set, in which case no one else would resume
+            if (canAcceptMore()) {
+                resume();
+            }
+        }
+
+        void resume() {
+            if (canAcceptMore() && paused.compareAndSet(true, false)) {
+                subscription.request(1);
+            }
+        }
+
+        private boolean canAcceptMore() {
+            return ctx.channel().isWritable() && queuedCount.get() < MAX_QUEUED;
+        }
+
+        /**
+         * Writes every queued message and flushes once. Runs on the connection's event loop.
+         */
+        private void drain() {
+            drainScheduled.set(false);
+
+            ByteBuf message;
+            while ((message = queued.poll()) != null) {
+                queuedCount.decrementAndGet();
+                ctx.write(new PayloadReply(subscriptionId, Status.PUSH, message), ctx.voidPromise());
+            }
+            ctx.flush();
+
+            resume();
+        }
+
+        @Override
+        public String toString() {
+            return "stream";
+        }
+    }
+
+    /**
+     * Consumer group of this channel: one subscriber to the channel's messages handing each to exactly one
+     * member. ROUND_ROBIN goes through the members in turn and skips those that cannot take a message
+     * (a full REJECT or DROP_NEWEST buffer, an unwritable stream), so a slow member gets less. HASH picks a
+     * member by rendezvous hashing of the message key, its first word, so a key stays with one member and a
+     * member joining or leaving only moves the keys it gains or loses.
+     * <p>
+     * Messages count as consumed once a member has taken them off its buffer (POP, DRAIN) or had them
+     * pushed. Those still buffered when a member leaves are handed to the remaining members.
+     */
+    public class ConsumerGroup implements Flow.Subscriber<ByteBuf> {
+        private final String name;
+        private final GroupBalance balance;
+        // Replaced on every change, under the group's lock, so deliveries read it without locking
+        private volatile GroupMember[] members = new GroupMember[0];
+        private boolean closed;
+        private Flow.Subscription subscription;
+        private final Inbox inbox = new Inbox(true);
+        // Where the next round-robin turn starts. A leaving member hands its messages over on its own event
+        // loop while the delivery thread goes on, so a turn only moves on if no other delivery moved it first
+        private final AtomicInteger next = new AtomicInteger();
+
+        ConsumerGroup(String name, GroupBalance balance) {
+            this.name = name;
+            this.balance = balance;
+            inbox.open(this);
+        }
+
+        public String name() {
+            return name;
+        }
+
+        synchronized boolean join(GroupMember member) {
+            if (closed) {
+                return false;
+            }
+            GroupMember[] current = members;
+            GroupMember[] joined = Arrays.copyOf(current, current.length + 1);
+            joined[current.length] = member;
+            members = joined;
+            return true;
+        }
+
+        /**
+         * Removes the member; the last one to leave closes the group.
+         */
+        synchronized void leave(GroupMember member) {
+            GroupMember[] current = members;
+            int index = Arrays.asList(current).indexOf(member);
+            if (index < 0) {
+                return;
+            }
+            GroupMember[] left = new GroupMember[current.length - 1];
+            System.arraycopy(current, 0, left, 0, index);
+            System.arraycopy(current, index + 1, left, index, left.length - index);
+            members = left;
+
+            if (left.length == 0) {
+                closed = true;
+                groups.remove(name, this);
+                inbox.close();
+                if (subscription != null) {
+                    subscription.cancel();
+                }
+            }
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            synchronized (this) {
+                this.subscription = subscription;
+                if (closed) {
+                    subscription.cancel();
+                    return;
+                }
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(ByteBuf message) {
+            if (!inbox.claim(message)) {
+                return;
+            }
+            try {
+                if (!deliver(message)) {
+                    Log.debug("Message dropped by every member of group {}", name);
+                }
+            } finally {
+                message.release();
+                subscription.request(1);
+            }
+        }
+
+        /**
+         * Hands the message to one member.
+         *
+         * @return false if no member took it
+         */
+        boolean deliver(ByteBuf message) {
+            GroupMember[] current = members;
+            int count = current.length;
+            if (count == 0) {
+                return false;
+            }
+            if (balance == GroupBalance.HASH) {
+                return rendezvous(current, keyHash(message)).offer(message);
+            }
+
+            int turn = next.get();
+            int start = turn < count ? turn : 0;
+            for (int i = 0; i < count; i++) {
+                int index = (start + i) % count;
+                if (current[index].offer(message)) {
+                    next.compareAndSet(turn, index + 1);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * FNV-1a hash of the message's first word, or of the whole message if it has a single one.
+         */
+        private static int keyHash(ByteBuf message) {
+            int start = message.readerIndex();
+            int end = message.indexOf(start, message.writerIndex(), (byte) ' ');
+            if (end < 0) {
+                end = message.writerIndex();
+            }
+            int hash = 0x811C9DC5;
+            for (int i = start; i < end; i++) {
+                hash = (hash ^ (message.getByte(i) & 0xFF)) * 0x01000193;
+            }
+            return hash;
+        }
+
+        private static GroupMember rendezvous(GroupMember[] members, int keyHash) {
+            GroupMember chosen = null;
+            int best = 0;
+            for (GroupMember member : members) {
+                int weight = mix(keyHash ^ member.hashSeed);
+                if (chosen == null || Integer.compareUnsigned(weight, best) > 0) {
+                    chosen = member;
+                    best = weight;
+                }
+            }
+            return chosen;
+        }
+
+        private static int mix(int value) {
+            // Murmur3 finalizer, so weights of nearby inputs are unrelated
+            value ^= value >>> 16;
+            value *= 0x85EBCA6B;
+            value ^= value >>> 13;
+            value *= 0xC2B2AE35;
+            value ^= value >>> 16;
+            return value;
+        }
+
         @Override
         public void onError(Throwable throwable) {
-            subscribers.remove(ctx);
-            subscriberMap.remove(ctx);
-            Log.error("Subscriber error", throwable);
+            inbox.close();
+            Log.error("Consumer group {} error", name, throwable);
         }
 
         @Override
         public void onComplete() {
-            subscribers.remove(ctx);
-            subscriberMap.remove(ctx);
-            Log.info("Subscription completed");
+            inbox.close();
+            Log.debug("Consumer group {} completed", name);
         }
+    }
 
+    /**
+     * Member of a {@link ConsumerGroup}: a subscription of its own, buffered or pushed, that only receives the
+     * messages the group hands it.
+     */
+    public abstract class GroupMember extends ChannelSubscriber {
+        protected final ConsumerGroup group;
+        private final DataStructure dataStructure;
+        // Identifies the connection in rendezvous hashing, so a member that rejoins gets its keys back
+        private final int hashSeed;
+
+        GroupMember(ConsumerGroup group, DataStructure dataStructure, ChannelHandlerContext ctx) {
+            super(ctx);
+            this.group = group;
+            this.dataStructure = dataStructure;
+            this.hashSeed = ctx.channel().id().asLongText().hashCode();
+        }
+
+        public String groupName() {
+            return group.name();
+        }
+
+        /**
+         * Takes the message if there is room for it.
+         */
+        abstract boolean offer(ByteBuf message);
+
+        /**
+         * Leaves the group, handing anything not yet consumed to the remaining members.
+         */
         @Override
-        public String toString() {
-            return this.collection.toString();
+        void cancel() {
+            group.leave(this);
+            handOver();
+            super.cancel();
+        }
+
+        void handOver() {
+        }
+
+        @Override
+        public DataStructure dataStructure() {
+            return dataStructure;
+        }
+    }
+
+    /**
+     * QUEUE or SET member of a {@link ConsumerGroup}, with its own bounded buffer.
+     */
+    public class BufferedGroupMember extends GroupMember implements BufferedSubscriber {
+        private final MessageBuffer buffer;
+
+        BufferedGroupMember(ConsumerGroup group, DataStructure dataStructure, SubscriptionLimits limits,
+                            ChannelHandlerContext ctx) {
+            super(group, dataStructure, ctx);
+            this.buffer = new MessageBuffer(dataStructure, limits);
+        }
+
+        @Override
+        boolean offer(ByteBuf message) {
+            return buffer.add(message);
+        }
+
+        @Override
+        void handOver() {
+            for (ByteBuf message : buffer.take(Integer.MAX_VALUE)) {
+                group.deliver(message);
+                message.release();
+            }
+        }
+
+        @Override
+        void release() {
+            buffer.close();
+        }
+
+        @Override
+        boolean expires() {
+            return buffer.expires();
+        }
+
+        @Override
+        int expire(long now) {
+            return buffer.expire(now);
+        }
+
+        @Override
+        public long firstPosition() {
+            return buffer.firstPosition();
+        }
+
+        @Override
+        public long endPosition() {
+            return buffer.endPosition();
+        }
+
+        @Override
+        public Page read(long from, long to, int maxCount, long maxBytes) {
+            return buffer.read(from, to, maxCount, maxBytes);
+        }
+
+        @Override
+        public List<ByteBuf> take(int maxCount) {
+            return buffer.take(maxCount);
+        }
+    }
+
+    /**
+     * STREAM member of a {@link ConsumerGroup}: the messages it takes are pushed to the connection.
+     * <p>
+     * Like {@link StreamSubscriber}, it hands them to the connection's event loop, which writes everything
+     * queued and flushes once per tick. It takes nothing while the socket is unwritable or the hand-off queue
+     * is long, so the group passes those messages to other members instead.
+     */
+    public class StreamGroupMember extends GroupMember {
+        private static final int MAX_QUEUED = 1024;
+
+        private final int subscriptionId;
+        private final Queue<ByteBuf> queued = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queuedCount = new AtomicInteger();
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        private final Runnable drainTask = this::drain;
+
+        StreamGroupMember(ConsumerGroup group, ChannelHandlerContext ctx, int subscriptionId) {
+            super(group, DataStructure.STREAM, ctx);
+            this.subscriptionId = subscriptionId;
+        }
+
+        @Override
+        boolean offer(ByteBuf message) {
+            Channel channel = ctx.channel();
+            if (!channel.isActive() || !channel.isWritable() || queuedCount.get() >= MAX_QUEUED) {
+                return false;
+            }
+            queued.offer(message.retainedDuplicate());
+            queuedCount.incrementAndGet();
+            if (drainScheduled.compareAndSet(false, true)) {
+                ctx.executor().execute(drainTask);
+            }
+            return true;
+        }
+
+        /**
+         * Writes every queued message and flushes once. Runs on the connection's event loop.
+         */
+        private void drain() {
+            drainScheduled.set(false);
+
+            ByteBuf message;
+            while ((message = queued.poll()) != null) {
+                queuedCount.decrementAndGet();
+                ctx.write(new PayloadReply(subscriptionId, Status.PUSH, message), ctx.voidPromise());
+            }
+            ctx.flush();
+        }
+
+        @Override
+        void handOver() {
+            ByteBuf message;
+            while ((message = queued.poll()) != null) {
+                queuedCount.decrementAndGet();
+                group.deliver(message);
+                message.release();
+            }
+        }
+
+        @Override
+        void release() {
+            ByteBuf message;
+            while ((message = queued.poll()) != null) {
+                queuedCount.decrementAndGet();
+                message.release();
+            }
         }
     }
 }
@@ -1,18 +1,65 @@
 package io.mudis.mudisserver.pubsub;
 
+import io.mudis.mudisserver.model.ChannelPattern;
+import io.mudis.mudisserver.model.ConsumerGroupSpec;
+import io.mudis.mudisserver.model.DataStructure;
+import io.mudis.mudisserver.model.SubscriptionLimits;
+import io.mudis.mudisserver.utils.ConfigProperties;
+import io.mudis.mudisshared.protocol.Protocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Registry for managing publisher instances per channel.
  * Each publisher manages its own subscribers.
+ * <p>
+ * A channel lives as long as it has subscribers. Subscribing and removing an idle channel both run inside
+ * {@link ConcurrentHashMap#compute} on the channel's entry, so a SUBSCRIBE either lands on a publisher that
+ * stays registered or creates a new one; it can never attach to a publisher that is being removed. When the
+ * last subscriber leaves, the channel is removed right away or, with {@code mudis.channel.grace.ms}, when
+ * that delay has passed if it has no subscribers then. Nothing scans the registry.
+ * <p>
+ * Pattern subscriptions get one publisher per {@link ChannelPattern}, with the same lifecycle, indexed in a
+ * {@link SegmentTrie} so a publish finds the patterns matching its channel without looking at the others.
+ * <p>
+ * Every connection also carries an index of the publishers it subscribed to, so disconnect cleanup and
+ * listing a connection's subscriptions cost time proportional to its own subscriptions, not to the
+ * number of channels.
+ * <p>
+ * After {@link #shardOver(EventLoopGroup)}, each channel is owned by one event loop chosen by its name.
+ * Callers run channel operations on {@link #ownerOf(String) the owner}, and the channel's publisher delivers
+ * on it too, so a channel's state is only ever touched by that one thread. Patterns are owned the same way.
+ * <p>
+ * Messages that outlive a MAXAGE limit, or {@code mudis.retention.max.age.ms} for subscriptions without one,
+ * are swept every {@code mudis.retention.bucket.ms} so they are freed even where nobody reads.
+ * <p>
+ * Subscriptions restored from a snapshot belong to no connection. Each is kept until a SUBSCRIBE (or
+ * PSUBSCRIBE) to the same name with the same data structure claims it, and starts with its messages.
  */
 public enum PublisherRegistrar {
     INSTANCE();
@@ -20,81 +67,630 @@ public enum PublisherRegistrar {
     private static final Logger Log = LoggerFactory.getLogger(PublisherRegistrar.class);
 
     private final ScheduledExecutorService executor;
-    private final Map<String, Publisher> publishers = new ConcurrentHashMap<>();
+    private final ExecutorService deliveryExecutor;
+    private final int deliveryBufferSize;
+    private final OverflowPolicy overflowPolicy;
+    private final long gracePeriodMillis;
+    private final long defaultMaxAgeMillis;
+    private final Namespace channels = new Namespace("channel", "mudis.subscriptions", null);
+    private final SegmentTrie<Publisher> patternIndex = new SegmentTrie<>();
+    private final Namespace patterns = new Namespace("pattern", "mudis.pattern-subscriptions", patternIndex);
+    // Event loops owning the channels, or null when any thread may operate on any channel
+    private volatile EventExecutor[] shards;
+    private volatile Consumer<String> channelRemovedListener = _ -> {
+    };
 
     PublisherRegistrar() {
+        int deliveryThreads = ConfigProperties.getInt("mudis.delivery.threads", 0);
+        this.deliveryExecutor = Executors.newFixedThreadPool(
+                deliveryThreads > 0 ? deliveryThreads : Runtime.getRuntime().availableProcessors(),
+                Thread.ofPlatform().name("mudis-delivery-", 0).daemon().factory()
+        );
+        this.deliveryBufferSize = ConfigProperties.getInt("mudis.delivery.buffer", 1024);
+        this.overflowPolicy = OverflowPolicy.valueOf(ConfigProperties.get("mudis.delivery.overflow", "DROP").trim());
+
+        this.gracePeriodMillis = ConfigProperties.getLong("mudis.channel.grace.ms", 0);
+
+        this.defaultMaxAgeMillis = ConfigProperties.getLong("mudis.retention.max.age.ms", 0);
+
         var threadFactory = Thread.ofVirtual().factory();
         this.executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
-        this.executor.scheduleAtFixedRate(
-                this::cleanupUnusedChannels,
-                0,
-                5,
-                TimeUnit.SECONDS
-        );
+        executor.scheduleWithFixedDelay(this::expire, TimeBuckets.BUCKET_MILLIS, TimeBuckets.BUCKET_MILLIS,
+                TimeUnit.MILLISECONDS);
     }
 
-    public Publisher getOrCreate(String channel) {
-        return publishers.computeIfAbsent(channel, _ -> {
-            Publisher publisher = new Publisher();
-            Log.info("Created publisher for channel: {}", channel);
-            return publisher;
-        });
+    /**
+     * Gives every channel an owning event loop of the group, hashed from its name. Must be called before the
+     * first subscription.
+     */
+    public void shardOver(EventLoopGroup group) {
+        List<EventExecutor> loops = new ArrayList<>();
+        group.forEach(loops::add);
+        this.shards = loops.toArray(EventExecutor[]::new);
+        Log.info("Sharding channels over {} event loop(s)", loops.size());
     }
 
-    public Publisher get(String channel) {
-        return publishers.get(channel);
+    /**
+     * Sets the listener told the name of each channel whose publisher is removed, on the thread removing it.
+     */
+    public void onChannelRemoved(Consumer<String> listener) {
+        this.channelRemovedListener = listener;
     }
 
-    public boolean remove(String channel) {
-        Publisher publisher = publishers.remove(channel);
-        if (publisher != null) {
-            publisher.close();
-            Log.info("Removed publisher for channel: {}", channel);
-            return true;
+    /**
+     * Returns the event loop owning the channel or pattern, or null if the server is not sharded.
+     */
+    public EventExecutor ownerOf(String channel) {
+        EventExecutor[] loops = shards;
+        if (loops == null) {
+            return null;
         }
-        return false;
+        int hash = channel.hashCode();
+        return loops[Math.floorMod(hash ^ (hash >>> 16), loops.length)];
     }
 
-    public void cleanupUnusedChannels() {
-        int removed = 0;
-        for (Map.Entry<String, Publisher> entry : publishers.entrySet()) {
-            if (entry.getValue().getSubscriberCount() == 0) {
-                if (remove(entry.getKey())) {
-                    removed++;
-                }
-            }
+    /**
+     * Returns every event loop owning channels, or an empty list if the server is not sharded.
+     */
+    public List<EventExecutor> owners() {
+        EventExecutor[] loops = shards;
+        return loops == null ? List.of() : List.of(loops);
+    }
+
+    /**
+     * Subscribes the context to the channel, creating its publisher if needed, and records the subscription
+     * in the connection's index. With a {@code group}, the subscription joins that consumer group.
+     */
+    public Publisher subscribe(String channel, DataStructure ds, SubscriptionLimits limits, ConsumerGroupSpec group,
+                               ChannelHandlerContext ctx, int subscriptionId) {
+        SubscriptionLimits effective = limits.withDefaultMaxAge(defaultMaxAgeMillis);
+        return channels.subscribe(channel, ds, effective, group, ctx, subscriptionId, null);
+    }
+
+    /**
+     * Subscribes the context to the channel or pattern with {@code messages} already buffered, as a replica
+     * mirroring a subscription of its leader does. The messages are copied like restored ones.
+     */
+    public Publisher subscribe(boolean pattern, String name, DataStructure ds, SubscriptionLimits limits,
+                               ChannelHandlerContext ctx, List<ByteBuf> messages) {
+        Namespace namespace = pattern ? patterns : channels;
+        SubscriptionState given = new SubscriptionState(ds, limits, namespace.store(name, messages));
+        return namespace.subscribe(name, ds, limits.withDefaultMaxAge(defaultMaxAgeMillis), null, ctx,
+                Protocol.NO_REQUEST_ID, given);
+    }
+
+    /**
+     * Subscribes the context to every channel matching the pattern through one publisher shared by all
+     * subscribers of that pattern.
+     */
+    public Publisher psubscribe(String pattern, DataStructure ds, SubscriptionLimits limits, ConsumerGroupSpec group,
+                                ChannelHandlerContext ctx, int subscriptionId) {
+        SubscriptionLimits effective = limits.withDefaultMaxAge(defaultMaxAgeMillis);
+        return patterns.subscribe(pattern, ds, effective, group, ctx, subscriptionId, null);
+    }
+
+    /**
+     * Unsubscribes the context from the channel and drops it from the connection's index.
+     */
+    public void unsubscribe(String channel, ChannelHandlerContext ctx) {
+        channels.unsubscribe(channel, ctx);
+    }
+
+    public void punsubscribe(String pattern, ChannelHandlerContext ctx) {
+        patterns.unsubscribe(pattern, ctx);
+    }
+
+    /**
+     * Returns the channels the context is subscribed to, in subscription order, with their subscribers.
+     * Entries whose subscription ended on its own (e.g., a delivery error) are pruned.
+     */
+    public Map<String, Publisher.ChannelSubscriber> subscriptions(ChannelHandlerContext ctx) {
+        return channels.subscriptions(ctx);
+    }
+
+    public Map<String, Publisher.ChannelSubscriber> patternSubscriptions(ChannelHandlerContext ctx) {
+        return patterns.subscriptions(ctx);
+    }
+
+    public Publisher get(String channel) {
+        return channels.publishers.get(channel);
+    }
+
+    public Publisher getPattern(String pattern) {
+        return patterns.publishers.get(pattern);
+    }
+
+    /**
+     * Publishes to the subscribers of every pattern matching the channel. They receive
+     * {@code <channel> <payload>}, so they can tell which channel a message was published on.
+     * <p>
+     * A pattern refusing the message counts as a dropped subscriber rather than failing the publish, which
+     * other subscribers may already have received. On a sharded server, patterns owned by another event loop
+     * are handed the message and counted as reached.
+     */
+    public Publisher.PublishResult publishToPatterns(String channel, ByteBuf payload) {
+        List<Map.Entry<String, Publisher>> matches = new ArrayList<>();
+        patternIndex.match(channel, (pattern, publisher) -> matches.add(Map.entry(pattern, publisher)));
+        if (matches.isEmpty()) {
+            return Publisher.PublishResult.NONE;
         }
-        if (removed > 0) {
-            Log.debug("Cleaned up {} inactive channel(s)", removed);
+
+        byte[] prefix = (channel + " ").getBytes(StandardCharsets.UTF_8);
+        byte[] message = new byte[prefix.length + payload.readableBytes()];
+        System.arraycopy(prefix, 0, message, 0, prefix.length);
+        payload.getBytes(payload.readerIndex(), message, prefix.length, payload.readableBytes());
+
+        int subscribers = 0;
+        int dropped = 0;
+        for (Map.Entry<String, Publisher> match : matches) {
+            Publisher publisher = match.getValue();
+            EventExecutor owner = ownerOf(match.getKey());
+            if (owner != null && !owner.inEventLoop()) {
+                owner.execute(() -> publisher.publish(Unpooled.wrappedBuffer(message)));
+                subscribers += publisher.getSubscriberCount();
+                continue;
+            }
+
+            Publisher.PublishResult result = publisher.publish(Unpooled.wrappedBuffer(message));
+            subscribers += result.subscribers();
+            dropped += result.rejected() ? result.subscribers() : result.dropped();
         }
+        return new Publisher.PublishResult(subscribers, dropped, null);
+    }
+
+    /**
+     * Visits every channel and pattern with its buffered subscriptions, restored ones not claimed yet
+     * included. A name's subscriptions are captured just before it is visited, as references to their
+     * messages, so publishers only wait for those pointer copies and never for the visitor. The references
+     * are released when the visitor returns.
+     */
+    public void captureSubscriptions(SubscriptionVisitor visitor) throws IOException {
+        channels.capture(visitor);
+        patterns.capture(visitor);
+    }
+
+    /**
+     * Keeps a subscription restored from a snapshot until it is claimed. The messages are copied into
+     * {@link MessageStorage} as long as the memory budget allows.
+     *
+     * @return how many messages were kept
+     */
+    public int restore(boolean pattern, String name, DataStructure ds, SubscriptionLimits limits,
+                       List<ByteBuf> messages) {
+        return (pattern ? patterns : channels).restore(name, ds, limits, messages);
+    }
+
+    @FunctionalInterface
+    public interface SubscriptionVisitor {
+        void visit(boolean pattern, String name, List<SubscriptionState> subscriptions) throws IOException;
+    }
+
+    /**
+     * Visits every buffered subscription with the connection holding it, or a null connection for restored
+     * subscriptions nobody has claimed yet, capturing them as {@link #captureSubscriptions} does.
+     */
+    public void captureConnections(ConnectionVisitor visitor) throws IOException {
+        channels.captureConnections(visitor);
+        patterns.captureConnections(visitor);
+    }
+
+    @FunctionalInterface
+    public interface ConnectionVisitor {
+        void visit(boolean pattern, String name, ChannelHandlerContext ctx, SubscriptionState subscription)
+                throws IOException;
     }
 
     /**
-     * Unsubscribe a context from all channels (used when client disconnects).
+     * Turns every buffered subscription of the context into a restored one, kept for the next SUBSCRIBE with
+     * the same data structure to claim, and drops the context's other subscriptions. On a sharded server each
+     * subscription is handed over on its owner.
+     */
+    public void detach(ChannelHandlerContext ctx) {
+        channels.detach(ctx);
+        patterns.detach(ctx);
+    }
+
+    /**
+     * Releases every restored subscription nobody has claimed.
+     */
+    public void discardRestored() {
+        channels.releaseRestored();
+        patterns.releaseRestored();
+    }
+
+    /**
+     * Unsubscribe a context from all channels and patterns (used when client disconnects). On a sharded
+     * server each unsubscription is handed to the channel's owner.
      */
     public void unsubscribeFromAll(ChannelHandlerContext ctx) {
-        publishers.forEach((channel, publisher) -> {
-            if (publisher.isSubscribed(ctx)) {
-                publisher.unsubscribe(ctx);
-                Log.debug("Unsubscribed context from channel: {}", channel);
-            }
-        });
+        channels.unsubscribeFromAll(ctx);
+        patterns.unsubscribeFromAll(ctx);
+    }
+
+    /**
+     * Sweeps the channels and patterns with a MAXAGE subscription, each on its owner if the server is sharded.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        try {
+            channels.expire(now);
+            patterns.expire(now);
+        } catch (RuntimeException e) {
+            // Thrown out of the task, it would cancel every later sweep
+            Log.error("Error expiring messages", e);
+        }
     }
 
     public void shutdown() {
-        Log.info("Shutting down PublishRegistrar with {} channel(s)", publishers.size());
-        publishers.values().forEach(publisher -> {
-            try {
-                publisher.close();
-            } catch (Exception e) {
-                Log.error("Error closing publisher", e);
-            }
-        });
-        publishers.clear();
+        Log.info("Shutting down PublishRegistrar with {} channel(s) and {} pattern(s)",
+                channels.publishers.size(), patterns.publishers.size());
+        channels.closeAll();
+        patterns.closeAll();
+        channels.releaseRestored();
+        patterns.releaseRestored();
 
         if (executor != null && !executor.isShutdown()) {
             executor.shutdown();
         }
+        deliveryExecutor.shutdown();
         Log.info("Shutdown complete");
     }
+
+    /**
+     * Publishers registered by name, either channels or patterns, with their lifecycle and the
+     * per-connection index of subscriptions to them.
+     */
+    private final class Namespace {
+        private final String kind;
+        // Name to publisher for each name a connection subscribed to. Written by the owners of those names,
+        // so it is synchronized, though only sharded servers have more than one writer
+        private final AttributeKey<Map<String, Publisher>> index;
+        // Also maps each registered name to its publisher, if the names are patterns
+        private final SegmentTrie<Publisher> trie;
+        private final Map<String, Publisher> publishers = new ConcurrentHashMap<>();
+        // The publishers with a MAXAGE subscription, the only ones the periodic sweep visits
+        private final Map<String, Publisher> expiring = new ConcurrentHashMap<>();
+        // Subscriptions restored from a snapshot that nobody has claimed yet, holding stored messages
+        private final Map<String, List<SubscriptionState>> restored = new ConcurrentHashMap<>();
+
+        private Namespace(String kind, String indexKey, SegmentTrie<Publisher> trie) {
+            this.kind = kind;
+            this.index = AttributeKey.valueOf(indexKey);
+            this.trie = trie;
+        }
+
+        /**
+         * Subscribes the context, starting with the {@code given} subscription's messages if there is one, or
+         * else with those of a restored subscription it claims.
+         */
+        private Publisher subscribe(String name, DataStructure ds, SubscriptionLimits limits, ConsumerGroupSpec group,
+                                    ChannelHandlerContext ctx, int subscriptionId, SubscriptionState given) {
+            Publisher publisher = publishers.compute(name, (_, existing) -> {
+                Publisher target = existing != null ? existing : create(name);
+                // Group members never claim restored subscriptions, which were not in a group
+                SubscriptionState claimed = given != null ? given : group == null ? claim(name, ds) : null;
+                if (group != null) {
+                    target.subscribe(ds, limits, group, ctx, subscriptionId);
+                } else if (claimed == null) {
+                    target.subscribe(ds, limits, ctx, subscriptionId);
+                } else {
+                    target.subscribe(ds, limits, ctx, subscriptionId, claimed.messages());
+                    release(claimed);
+                    Log.info("Restored {} message(s) to a subscription to {}: {}", claimed.messages().size(), kind, name);
+                }
+                return target;
+            });
+            indexOf(ctx).put(name, publisher);
+            if (limits.expires()) {
+                expiring.put(name, publisher);
+            }
+            // On a sharded server the connection may have closed, and been cleaned up, while this was queued
+            if (!ctx.channel().isActive()) {
+                unsubscribe(name, ctx);
+            }
+            return publisher;
+        }
+
+        private Publisher create(String name) {
+            EventExecutor owner = ownerOf(name);
+            Publisher publisher = new Publisher(owner != null ? owner : deliveryExecutor, deliveryBufferSize,
+                    overflowPolicy, idle -> onIdle(name, idle));
+            if (trie != null) {
+                trie.put(name, publisher);
+            }
+            Log.info("Created publisher for {}: {}", kind, name);
+            return publisher;
+        }
+
+        private void onIdle(String name, Publisher publisher) {
+            if (gracePeriodMillis > 0) {
+                EventExecutor owner = ownerOf(name);
+                ScheduledExecutorService scheduler = owner != null ? owner : executor;
+                scheduler.schedule(() -> removeIfIdle(name, publisher), gracePeriodMillis, TimeUnit.MILLISECONDS);
+            } else {
+                removeIfIdle(name, publisher);
+            }
+        }
+
+        /**
+         * Removes and closes the publisher if it is still registered for the name and has no subscribers.
+         */
+        private void removeIfIdle(String name, Publisher publisher) {
+            Publisher remaining = publishers.computeIfPresent(name, (_, current) -> {
+                if (current != publisher || publisher.getSubscriberCount() > 0) {
+                    return current;
+                }
+                if (trie != null) {
+                    trie.remove(name, publisher);
+                }
+                expiring.remove(name, publisher);
+                publisher.close();
+                Log.info("Removed publisher for {}: {}", kind, name);
+                return null;
+            });
+            if (remaining == null && trie == null) {
+                channelRemovedListener.accept(name);
+            }
+        }
+
+        private void unsubscribe(String name, ChannelHandlerContext ctx) {
+            Publisher publisher = indexOf(ctx).remove(name);
+            if (publisher == null) {
+                publisher = publishers.get(name);
+            }
+            if (publisher != null) {
+                publisher.unsubscribe(ctx);
+            }
+        }
+
+        private Map<String, Publisher.ChannelSubscriber> subscriptions(ChannelHandlerContext ctx) {
+            Map<String, Publisher.ChannelSubscriber> subscriptions = new LinkedHashMap<>();
+            Map<String, Publisher> names = indexOf(ctx);
+            synchronized (names) {
+                Iterator<Map.Entry<String, Publisher>> entries = names.entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<String, Publisher> entry = entries.next();
+                    Publisher.ChannelSubscriber subscriber = entry.getValue().getSubscriber(ctx);
+                    if (subscriber == null) {
+                        entries.remove();
+                    } else {
+                        subscriptions.put(entry.getKey(), subscriber);
+                    }
+                }
+            }
+            return subscriptions;
+        }
+
+        private Map<String, Publisher> indexOf(ChannelHandlerContext ctx) {
+            Attribute<Map<String, Publisher>> attribute = ctx.channel().attr(index);
+            Map<String, Publisher> names = attribute.get();
+            if (names == null) {
+                Map<String, Publisher> created = Collections.synchronizedMap(new LinkedHashMap<>());
+                names = attribute.setIfAbsent(created);
+                if (names == null) {
+                    names = created;
+                }
+            }
+            return names;
+        }
+
+        private void unsubscribeFromAll(ChannelHandlerContext ctx) {
+            Map<String, Publisher> names = ctx.channel().attr(index).getAndSet(null);
+            if (names == null) {
+                return;
+            }
+            synchronized (names) {
+                names.forEach((name, publisher) -> {
+                    EventExecutor owner = ownerOf(name);
+                    if (owner == null || owner.inEventLoop()) {
+                        unsubscribeIfSubscribed(name, publisher, ctx);
+                    } else {
+                        owner.execute(() -> unsubscribeIfSubscribed(name, publisher, ctx));
+                    }
+                });
+            }
+        }
+
+        private void unsubscribeIfSubscribed(String name, Publisher publisher, ChannelHandlerContext ctx) {
+            if (publisher.isSubscribed(ctx)) {
+                publisher.unsubscribe(ctx);
+                Log.debug("Unsubscribed context from {}: {}", kind, name);
+            }
+        }
+
+        /**
+         * Removes and returns the oldest restored subscription of the name with the data structure, if any.
+         */
+        private SubscriptionState claim(String name, DataStructure ds) {
+            if (restored.isEmpty()) {
+                return null;
+            }
+            SubscriptionState[] claimed = new SubscriptionState[1];
+            restored.computeIfPresent(name, (_, states) -> {
+                Iterator<SubscriptionState> iterator = states.iterator();
+                while (iterator.hasNext()) {
+                    SubscriptionState state = iterator.next();
+                    if (state.ds() == ds) {
+                        iterator.remove();
+                        claimed[0] = state;
+                        break;
+                    }
+                }
+                return states.isEmpty() ? null : states;
+            });
+            return claimed[0];
+        }
+
+        private int restore(String name, DataStructure ds, SubscriptionLimits limits, List<ByteBuf> messages) {
+            List<ByteBuf> stored = store(name, messages);
+            restored.computeIfAbsent(name, _ -> new ArrayList<>()).add(new SubscriptionState(ds, limits, stored));
+            return stored.size();
+        }
+
+        /**
+         * Copies the messages into {@link MessageStorage}, as many as the memory budget allows.
+         */
+        private List<ByteBuf> store(String name, List<ByteBuf> messages) {
+            MessageStorage storage = MessageStorage.INSTANCE;
+            List<ByteBuf> stored = new ArrayList<>(messages.size());
+            for (ByteBuf message : messages) {
+                if (!MemoryBudget.INSTANCE.tryReserve(MessageBuffer.sizeOf(message))) {
+                    Log.warn("Memory budget exhausted, restored {} of {} message(s) for {}: {}",
+                            stored.size(), messages.size(), kind, name);
+                    break;
+                }
+                stored.add(storage.copy(message));
+            }
+            return stored;
+        }
+
+        private void detach(ChannelHandlerContext ctx) {
+            Map<String, Publisher> names = ctx.channel().attr(index).getAndSet(null);
+            if (names == null) {
+                return;
+            }
+            synchronized (names) {
+                names.forEach((name, publisher) -> {
+                    EventExecutor owner = ownerOf(name);
+                    if (owner == null || owner.inEventLoop()) {
+                        detach(name, publisher, ctx);
+                    } else {
+                        owner.execute(() -> detach(name, publisher, ctx));
+                    }
+                });
+            }
+        }
+
+        private void detach(String name, Publisher publisher, ChannelHandlerContext ctx) {
+            Publisher.ChannelSubscriber subscriber = publisher.getSubscriber(ctx);
+            if (subscriber == null) {
+                return;
+            }
+            SubscriptionState state = subscriber.capture();
+            if (state != null) {
+                try {
+                    restore(name, state.ds(), state.limits(), state.messages());
+                } finally {
+                    state.messages().forEach(ReferenceCountUtil::release);
+                }
+            }
+            publisher.unsubscribe(ctx);
+        }
+
+        private void release(SubscriptionState state) {
+            for (ByteBuf message : state.messages()) {
+                MemoryBudget.INSTANCE.release(MessageBuffer.sizeOf(message));
+                MessageStorage.INSTANCE.release(message);
+            }
+        }
+
+        private void releaseRestored() {
+            // One name at a time, so a subscription claiming one concurrently gets it whole or not at all
+            for (String name : new ArrayList<>(restored.keySet())) {
+                List<SubscriptionState> states = restored.remove(name);
+                if (states != null) {
+                    states.forEach(this::release);
+                }
+            }
+        }
+
+        private void capture(SubscriptionVisitor visitor) throws IOException {
+            Set<String> names = new LinkedHashSet<>(publishers.keySet());
+            names.addAll(restored.keySet());
+            for (String name : names) {
+                List<SubscriptionState> states = new ArrayList<>();
+                Publisher publisher = publishers.get(name);
+                if (publisher != null) {
+                    states.addAll(publisher.captureSubscriptions());
+                }
+                restored.computeIfPresent(name, (_, parked) -> {
+                    for (SubscriptionState state : parked) {
+                        List<ByteBuf> messages = new ArrayList<>(state.messages().size());
+                        state.messages().forEach(message -> messages.add(message.retainedDuplicate()));
+                        states.add(new SubscriptionState(state.ds(), state.limits(), messages));
+                    }
+                    return parked;
+                });
+
+                try {
+                    if (!states.isEmpty()) {
+                        visitor.visit(trie != null, name, states);
+                    }
+                } finally {
+                    states.forEach(state -> state.messages().forEach(ReferenceCountUtil::release));
+                }
+            }
+        }
+
+        private void captureConnections(ConnectionVisitor visitor) throws IOException {
+            for (Map.Entry<String, Publisher> entry : publishers.entrySet()) {
+                Map<ChannelHandlerContext, SubscriptionState> states = entry.getValue().captureSubscriptionsByConnection();
+                try {
+                    for (Map.Entry<ChannelHandlerContext, SubscriptionState> state : states.entrySet()) {
+                        visitor.visit(trie != null, entry.getKey(), state.getKey(), state.getValue());
+                    }
+                } finally {
+                    states.values().forEach(state -> state.messages().forEach(ReferenceCountUtil::release));
+                }
+            }
+            for (String name : new ArrayList<>(restored.keySet())) {
+                List<SubscriptionState> states = new ArrayList<>();
+                restored.computeIfPresent(name, (_, parked) -> {
+                    for (SubscriptionState state : parked) {
+                        List<ByteBuf> messages = new ArrayList<>(state.messages().size());
+                        state.messages().forEach(message -> messages.add(message.retainedDuplicate()));
+                        states.add(new SubscriptionState(state.ds(), state.limits(), messages));
+                    }
+                    return parked;
+                });
+                try {
+                    for (SubscriptionState state : states) {
+                        visitor.visit(trie != null, name, null, state);
+                    }
+                } finally {
+                    states.forEach(state -> state.messages().forEach(ReferenceCountUtil::release));
+                }
+            }
+        }
+
+        private void expire(long now) {
+            expiring.forEach((name, publisher) -> {
+                EventExecutor owner = ownerOf(name);
+                if (owner == null) {
+                    expire(name, publisher, now);
+                } else {
+                    owner.execute(() -> expire(name, publisher, now));
+                }
+            });
+        }
+
+        private void expire(String name, Publisher publisher, long now) {
+            try {
+                int expired = publisher.expire(now);
+                if (expired > 0) {
+                    Log.debug("Expired {} buffered message(s) on {}: {}", expired, kind, name);
+                }
+                if (!publisher.expires()) {
+                    expiring.remove(name, publisher);
+                    // A MAXAGE subscription may have come in since the check, and must not be left out
+                    if (publisher.expires()) {
+                        expiring.putIfAbsent(name, publisher);
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.error("Error expiring messages on {}: {}", kind, name, e);
+            }
+        }
+
+        private void closeAll() {
+            publishers.values().forEach(publisher -> {
+                try {
+                    publisher.close();
+                } catch (Exception e) {
+                    Log.error("Error closing publisher", e);
+                }
+            });
+            publishers.clear();
+        }
+    }
 }
@@ -0,0 +1,114 @@
+package io.mudis.mudisserver.pubsub;
+
+import io.mudis.mudisserver.model.ChannelPattern;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Index of {@link ChannelPattern}s with one node per pattern segment.
+ * <p>
+ * Matching a channel walks its segments once and at each node follows at most the literal segment, {@code *}
+ * and {@code **}, so its cost depends on the name's length and on the number of matches, not on how many
+ * patterns are registered. Lookups are lock-free; changes are serialized, and a node left empty by a removal
+ * is unlinked, so a lookup still inside it merely finds nothing.
+ */
+final class SegmentTrie<V> {
+    private final Node<V> root = new Node<>(null, null);
+
+    synchronized void put(String pattern, V value) {
+        Node<V> node = root;
+        int start = 0;
+        while (start <= pattern.length()) {
+            int end = segmentEnd(pattern, start);
+            String segment = pattern.substring(start, end);
+            Node<V> parent = node;
+            node = parent.children.computeIfAbsent(segment, _ -> new Node<>(parent, segment));
+            start = end + 1;
+        }
+        node.pattern = pattern;
+        node.value = value;
+    }
+
+    /**
+     * Removes the pattern if it is still mapped to {@code value}.
+     */
+    synchronized void remove(String pattern, V value) {
+        Node<V> node = root;
+        int start = 0;
+        while (node != null && start <= pattern.length()) {
+            int end = segmentEnd(pattern, start);
+            node = node.children.get(pattern.substring(start, end));
+            start = end + 1;
+        }
+        if (node == null || node.value != value) {
+            return;
+        }
+
+        node.value = null;
+        node.pattern = null;
+        while (node.parent != null && node.value == null && node.children.isEmpty()) {
+            node.parent.children.remove(node.segment, node);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Calls {@code action} with every pattern matching the channel and its value.
+     */
+    void match(String channel, BiConsumer<String, V> action) {
+        match(root, channel, 0, action);
+    }
+
+    private static <V> void match(Node<V> node, String channel, int start, BiConsumer<String, V> action) {
+        if (start > channel.length()) {
+            node.accept(action);
+            return;
+        }
+
+        int end = segmentEnd(channel, start);
+        Node<V> rest = node.children.get(ChannelPattern.REST);
+        if (rest != null) {
+            rest.accept(action);
+        }
+        Node<V> one = node.children.get(ChannelPattern.ONE);
+        if (one != null) {
+            match(one, channel, end + 1, action);
+        }
+        String segment = channel.substring(start, end);
+        // A channel segment spelled like a wildcard is only matched by the wildcard itself, once
+        if (!segment.equals(ChannelPattern.ONE) && !segment.equals(ChannelPattern.REST)) {
+            Node<V> literal = node.children.get(segment);
+            if (literal != null) {
+                match(literal, channel, end + 1, action);
+            }
+        }
+    }
+
+    private static int segmentEnd(String name, int start) {
+        int end = name.indexOf(ChannelPattern.SEPARATOR, start);
+        return end < 0 ? name.length() : end;
+    }
+
+    private static final class Node<V> {
+        private final Node<V> parent;
+        private final String segment;
+        private final Map<String, Node<V>> children = new ConcurrentHashMap<>();
+        private volatile String pattern;
+        private volatile V value;
+
+        private Node(Node<V> parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+
+        private void accept(BiConsumer<String, V> action) {
+            V current = value;
+            String name = pattern;
+            if (current != null && name != null) {
+                action.accept(name, current);
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package io.mudis.mudisserver.pubsub;
+
+import io.mudis.mudisserver.model.DataStructure;
+import io.mudis.mudisserver.model.SubscriptionLimits;
+import io.netty.buffer.ByteBuf;
+
+import java.util.List;
+
+/**
+ * What a buffered subscription holds, apart from its connection: its data structure, its limits and its
+ * messages, oldest first. Snapshots save subscriptions in this form and restore them from it.
+ */
+public record SubscriptionState(DataStructure ds, SubscriptionLimits limits, List<ByteBuf> messages) {
+}
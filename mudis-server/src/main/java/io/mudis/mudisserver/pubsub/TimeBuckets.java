@@ -0,0 +1,87 @@
+package io.mudis.mudisserver.pubsub;
+
+import io.mudis.mudisserver.utils.ConfigProperties;
+
+/**
+ * Coarse arrival times of a sequence of messages, for expiring them by age. Instead of a timestamp per
+ * message it keeps one bucket per {@code mudis.retention.bucket.ms} that saw a message: when the bucket
+ * opened and the position of its first message. Positions and arrival times grow together, so everything
+ * before the first bucket that is still young enough has expired, and finding it never looks at a message.
+ * <p>
+ * A bucket expires as a whole, so a message may outlive its MAXAGE by up to one bucket. Not thread-safe;
+ * owners call it under their own lock.
+ */
+final class TimeBuckets {
+    static final long BUCKET_MILLIS = Math.max(1, ConfigProperties.getLong("mudis.retention.bucket.ms", 1000));
+
+    // Ring of buckets, oldest at head
+    private long[] opened = new long[8];
+    private long[] positions = new long[8];
+    private int head;
+    private int size;
+
+    /**
+     * Records that the message at {@code position} arrived at {@code now}.
+     */
+    void mark(long position, long now) {
+        if (size > 0 && now - opened[index(size - 1)] < BUCKET_MILLIS) {
+            return;
+        }
+        if (size == opened.length) {
+            grow();
+        }
+        int tail = index(size++);
+        opened[tail] = now;
+        positions[tail] = position;
+    }
+
+    /**
+     * Position of the oldest message that may have arrived after {@code cutoff}; every message before it
+     * arrived at or before the cutoff. {@link Long#MAX_VALUE} if all of them did.
+     */
+    long firstAfter(long cutoff) {
+        // Buckets are ordered by age, so the first one still young enough is binary searched
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (opened[index(mid)] + BUCKET_MILLIS <= cutoff) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low == size ? Long.MAX_VALUE : positions[index(low)];
+    }
+
+    /**
+     * Forgets the buckets whose messages all come before {@code position}, once they are gone. The newest
+     * bucket is always kept, since messages may still be added to it.
+     */
+    void dropBefore(long position) {
+        while (size > 1 && positions[index(1)] <= position) {
+            head = index(1);
+            size--;
+        }
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    private int index(int i) {
+        return (head + i) & (opened.length - 1);
+    }
+
+    private void grow() {
+        long[] grownOpened = new long[opened.length << 1];
+        long[] grownPositions = new long[positions.length << 1];
+        for (int i = 0; i < size; i++) {
+            grownOpened[i] = opened[index(i)];
+            grownPositions[i] = positions[index(i)];
+        }
+        opened = grownOpened;
+        positions = grownPositions;
+        head = 0;
+    }
+}
@@ -0,0 +1,113 @@
+package io.mudis.mudisserver.replication;
+
+import io.mudis.mudisserver.model.PayloadReply;
+import io.mudis.mudisshared.model.Reply;
+import io.mudis.mudisshared.model.Status;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams the backlog to one replica connected with SYNC. Each PUSH frame carries the offset of its first
+ * record followed by up to a batch of whole records, so the replica always knows where it is and can resume
+ * from there after a disconnect.
+ * <p>
+ * Like a durable subscription, the feed reads rather than queues: the connection's event loop sends batches
+ * while the socket is writable, then waits for the next record or for the socket to drain. A replica that
+ * falls so far behind that the backlog has overwritten its position is disconnected, and resyncs in full.
+ */
+final class ReplicaFeed {
+    private static final Logger Log = LoggerFactory.getLogger(ReplicaFeed.class);
+    // Frames written per turn of the event loop, so a replica catching up does not hold it up
+    private static final int BATCH = 16;
+
+    private final ChannelHandlerContext ctx;
+    private final int requestId;
+    private final ReplicationBacklog backlog;
+    private final int batchBytes;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable drainTask = this::drain;
+    // Where the replica is, once the full resync's state has been sent; only touched on the event loop
+    private volatile boolean started;
+    private long position;
+
+    ReplicaFeed(ChannelHandlerContext ctx, int requestId, ReplicationBacklog backlog, int batchBytes) {
+        this.ctx = ctx;
+        this.requestId = requestId;
+        this.backlog = backlog;
+        this.batchBytes = batchBytes;
+    }
+
+    ChannelHandlerContext ctx() {
+        return ctx;
+    }
+
+    /**
+     * Starts streaming from {@code offset}.
+     */
+    void start(long offset) {
+        ctx.executor().execute(() -> {
+            position = offset;
+            started = true;
+            drain();
+        });
+    }
+
+    /**
+     * Writes a frame of records with no place in the backlog, the state a full resync starts from.
+     */
+    ChannelFuture writeState(ByteBuf records) {
+        ByteBuf offset = Unpooled.buffer(Long.BYTES).writeLong(-1);
+        return ctx.writeAndFlush(new PayloadReply(requestId, Status.PUSH, Unpooled.wrappedBuffer(offset, records)));
+    }
+
+    /**
+     * Schedules a drain on the connection's event loop, unless one is already pending.
+     */
+    void wake() {
+        if (started && drainScheduled.compareAndSet(false, true)) {
+            ctx.executor().execute(drainTask);
+        }
+    }
+
+    /**
+     * Sends up to a batch of frames and flushes once. It goes on by scheduling itself again while there is
+     * more to send, and otherwise waits to be woken.
+     */
+    private void drain() {
+        drainScheduled.set(false);
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+
+        int sent = 0;
+        while (sent < BATCH && ctx.channel().isWritable()) {
+            ByteBuf records = backlog.read(position, batchBytes);
+            if (records == null) {
+                Log.warn("Replica {} fell behind the backlog at offset {}, disconnecting it", ctx.channel().remoteAddress(),
+                        position);
+                ctx.writeAndFlush(Reply.error(requestId, "Offset " + position + " is no longer in the backlog"))
+                        .addListener(_ -> ctx.close());
+                return;
+            }
+            if (!records.isReadable()) {
+                records.release();
+                break;
+            }
+            ByteBuf offset = Unpooled.buffer(Long.BYTES).writeLong(position);
+            position += records.readableBytes();
+            ctx.write(new PayloadReply(requestId, Status.PUSH, Unpooled.wrappedBuffer(offset, records)), ctx.voidPromise());
+            sent++;
+        }
+        ctx.flush();
+
+        if (sent == BATCH) {
+            wake();
+        }
+    }
+}
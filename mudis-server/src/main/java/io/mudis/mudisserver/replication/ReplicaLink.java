@@ -0,0 +1,156 @@
+package io.mudis.mudisserver.replication;
+
+import io.mudis.mudisserver.cluster.PeerDecoder;
+import io.mudis.mudisshared.model.Operation;
+import io.mudis.mudisshared.model.Status;
+import io.mudis.mudisshared.protocol.Protocol;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A replica's connection to its leader. It opens with {@code SYNC <replication id> <offset>}, naming the
+ * stream it followed and how far it got, and the leader answers "PARTIAL <id> <offset>" to go on from there
+ * or "FULL <id> <offset>" to start over from its current state. Every frame after that is handed to
+ * {@link Replication} on the link's event loop, in order.
+ * <p>
+ * A lost link is retried every second until {@link #stop()}. If a failover timeout is set and a leader the
+ * replica did follow has been unreachable that long, the replica promotes itself.
+ */
+final class ReplicaLink {
+    private static final Logger Log = LoggerFactory.getLogger(ReplicaLink.class);
+    private static final long RETRY_MILLIS = 1000;
+    private static final int SYNC_REQUEST_ID = 1;
+
+    private final Bootstrap bootstrap;
+    private final String leader;
+    private final Replication replication;
+    private final long failoverMillis;
+    private volatile Channel channel;
+    private volatile boolean synced;
+    // Whether the link was ever up; a replica that never had its leader's state has nothing to take over with
+    private volatile boolean followed;
+    private volatile boolean stopped;
+    private volatile long downSince = System.currentTimeMillis();
+
+    ReplicaLink(Bootstrap bootstrap, String leader, Replication replication, long failoverMillis) {
+        this.bootstrap = bootstrap;
+        this.leader = leader;
+        this.replication = replication;
+        this.failoverMillis = failoverMillis;
+    }
+
+    String leader() {
+        return leader;
+    }
+
+    /**
+     * Whether the link is connected and has been answered.
+     */
+    boolean isUp() {
+        return synced;
+    }
+
+    void connect() {
+        if (stopped) {
+            return;
+        }
+        int separator = leader.lastIndexOf(':');
+        ChannelFuture connected = bootstrap.clone()
+                .handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline()
+                                .addLast(new PeerDecoder())
+                                .addLast(new Handler());
+                    }
+                })
+                .connect(leader.substring(0, separator), Integer.parseInt(leader.substring(separator + 1)));
+        channel = connected.channel();
+        connected.addListener(future -> {
+            if (future.isSuccess()) {
+                sync(connected.channel());
+            } else {
+                Log.warn("Cannot connect to leader {}: {}", leader, future.cause().getMessage());
+            }
+        });
+        connected.channel().closeFuture().addListener(_ -> lost());
+    }
+
+    void stop() {
+        stopped = true;
+        Channel current = channel;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private void sync(Channel ch) {
+        ByteBuf frame = Unpooled.buffer();
+        int lengthIndex = Protocol.writeRequestHeader(frame, Operation.SYNC, SYNC_REQUEST_ID);
+        int length = frame.writeCharSequence(replication.replicationId() + " " + replication.offset(),
+                StandardCharsets.UTF_8);
+        frame.setInt(lengthIndex, length);
+        ch.writeAndFlush(frame, ch.voidPromise());
+    }
+
+    private void lost() {
+        if (synced) {
+            synced = false;
+            downSince = System.currentTimeMillis();
+            Log.warn("Lost the link to leader {}", leader);
+        }
+        if (stopped) {
+            return;
+        }
+        if (failoverMillis > 0 && followed && System.currentTimeMillis() - downSince >= failoverMillis) {
+            Log.warn("Leader {} unreachable for {} ms, taking over", leader, failoverMillis);
+            replication.promote();
+            return;
+        }
+        bootstrap.config().group().schedule(this::connect, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private final class Handler extends SimpleChannelInboundHandler<PeerDecoder.Frame> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, PeerDecoder.Frame frame) {
+            try {
+                switch (frame.status()) {
+                    case PUSH -> replication.received(frame.body().readLong(), frame.body());
+                    case OK -> {
+                        String[] tokens = frame.body().toString(StandardCharsets.UTF_8).split(" ");
+                        replication.resynced(tokens[0].equals("FULL"), tokens[1], Long.parseLong(tokens[2]));
+                        synced = true;
+                        followed = true;
+                        Log.info("Following leader {}, {} resync from offset {}", leader, tokens[0].toLowerCase(),
+                                tokens[2]);
+                    }
+                    case ERROR -> {
+                        Log.error("Leader {} refused to replicate: {}", leader, frame.body().toString(StandardCharsets.UTF_8));
+                        ctx.close();
+                    }
+                    default -> {
+                    }
+                }
+            } finally {
+                frame.body().release();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            Log.error("Exception on the link to leader {}", leader, cause);
+            ctx.close();
+        }
+    }
+}
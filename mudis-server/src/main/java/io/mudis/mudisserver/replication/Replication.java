@@ -0,0 +1,574 @@
+package io.mudis.mudisserver.replication;
+
+import io.mudis.mudisserver.model.ConsumerGroupSpec;
+import io.mudis.mudisserver.model.DataStructure;
+import io.mudis.mudisserver.model.Message;
+import io.mudis.mudisserver.model.SubscriptionLimits;
+import io.mudis.mudisserver.persistence.PersistenceLog;
+import io.mudis.mudisserver.pubsub.Publisher;
+import io.mudis.mudisserver.pubsub.PublisherRegistrar;
+import io.mudis.mudisserver.utils.ConfigProperties;
+import io.mudis.mudisshared.model.Reply;
+import io.mudis.mudisshared.protocol.Protocol;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Leader-follower replication. A follower, configured with {@code mudis.replication.leader} or told so with
+ * {@code REPLICAOF host:port}, connects to its leader with SYNC and receives every publish and every change
+ * to the leader's buffered subscriptions as a stream of binary {@link ReplicationRecord}s. It applies them as
+ * they arrive, so that:
+ * <ul>
+ *     <li>its own clients can SUBSCRIBE, SHOW and POP there, taking that load off the leader, while a
+ *     PUBLISH is refused as read-only;</li>
+ *     <li>it holds a mirror of every subscription the leader's clients have, messages included, and
+ *     {@code REPLICAOF NO ONE} (or the failover timeout) promotes it without a cold rebuild: each mirrored
+ *     subscription becomes a restored one, claimed by its client's next SUBSCRIBE as after a snapshot.</li>
+ * </ul>
+ * Every record has an offset in the stream, and the leader keeps the latest stretch of it in a
+ * {@link ReplicationBacklog}. A follower that reconnects names the stream it followed and the offset it
+ * reached, and goes on from there if the backlog still holds it. Otherwise it resyncs in full: it drops what
+ * it mirrored, is sent the leader's current subscriptions, and follows the stream from the offset the leader
+ * was at. A promoted follower remembers the stream it followed, so the other followers of its old leader can
+ * go on partially from it too, and it keeps its backlog for followers of its own.
+ * <p>
+ * Nothing is recorded until a first follower connects, so a server without followers pays one volatile read
+ * per operation. Not replicated: consumer groups, STREAM subscriptions (pushed, so nothing to take over),
+ * durable subscriptions' committed offsets and pending delayed publishes. A full resync may deliver a
+ * publish made during it twice, and POP is mirrored as a count, which matches as long as deliveries on the
+ * follower keep up with the stream.
+ */
+public enum Replication {
+    INSTANCE();
+
+    private static final Logger Log = LoggerFactory.getLogger(Replication.class);
+    // The leader's id for a client connection, shared with the mirror standing for it on followers
+    private static final AttributeKey<Long> CONNECTION = AttributeKey.valueOf("mudis.replication.connection");
+    private static final AttributeKey<ReplicaFeed> FEED = AttributeKey.valueOf("mudis.replication.feed");
+
+    public enum Role {
+        LEADER, FOLLOWER
+    }
+
+    private final ReplicationBacklog backlog;
+    private final int batchBytes;
+    private final long failoverMillis;
+    private final String configuredLeader;
+    private final PublisherRegistrar publisherRegistrar = PublisherRegistrar.INSTANCE;
+    private final PersistenceLog persistenceLog = PersistenceLog.INSTANCE;
+    private final AtomicLong nextConnectionId = new AtomicLong();
+    private final List<ReplicaFeed> feeds = new CopyOnWriteArrayList<>();
+    private final Map<Long, EmbeddedChannel> mirrors = new ConcurrentHashMap<>();
+    private volatile Role role = Role.LEADER;
+    private volatile boolean recording;
+    private volatile String replicationId = newReplicationId();
+    // The stream this server followed before it was promoted, and where that stream stopped
+    private volatile String previousId;
+    private volatile long previousEnd = -1;
+    private volatile ReplicaLink link;
+    private volatile Bootstrap bootstrap;
+
+    Replication() {
+        this.backlog = new ReplicationBacklog(ConfigProperties.getInt("mudis.replication.backlog.bytes", 16 << 20));
+        this.batchBytes = ConfigProperties.getInt("mudis.replication.batch.bytes", 64 << 10);
+        this.failoverMillis = ConfigProperties.getLong("mudis.replication.failover.ms", 0);
+        this.configuredLeader = ConfigProperties.get("mudis.replication.leader", "").strip();
+    }
+
+    /**
+     * Starts following the configured leader, if there is one, using the server's event loops.
+     */
+    public void start(EventLoopGroup group) {
+        this.bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true);
+        if (!configuredLeader.isEmpty()) {
+            replicaOf(configuredLeader);
+        }
+    }
+
+    public Role role() {
+        return role;
+    }
+
+    public boolean isFollower() {
+        return role == Role.FOLLOWER;
+    }
+
+    public String replicationId() {
+        return replicationId;
+    }
+
+    public long offset() {
+        return backlog.end();
+    }
+
+    public int followerCount() {
+        return feeds.size();
+    }
+
+    /**
+     * The leader this server follows, or null.
+     */
+    public String leader() {
+        ReplicaLink current = link;
+        return current == null ? null : current.leader();
+    }
+
+    public boolean isLinkUp() {
+        ReplicaLink current = link;
+        return current != null && current.isUp();
+    }
+
+    /**
+     * Makes this server a follower of {@code leader}. What it holds stays until the leader's reply says
+     * whether the stream can go on from there or must start over.
+     */
+    public synchronized void replicaOf(String leader) {
+        stopLink();
+        role = Role.FOLLOWER;
+        link = new ReplicaLink(bootstrap, leader, this, failoverMillis);
+        link.connect();
+        Log.info("Replicating from leader {}", leader);
+    }
+
+    /**
+     * Makes this follower a leader: stops following, starts a new stream that remembers the old one, and turns
+     * every mirrored subscription into a restored one for its client to claim.
+     *
+     * @return false if this server was already a leader
+     */
+    public synchronized boolean promote() {
+        if (role == Role.LEADER) {
+            return false;
+        }
+        stopLink();
+        previousId = replicationId;
+        previousEnd = backlog.end();
+        replicationId = newReplicationId();
+        role = Role.LEADER;
+        recording = true;
+
+        int detached = mirrors.size();
+        mirrors.forEach((connection, mirror) -> {
+            publisherRegistrar.detach(mirror.pipeline().firstContext());
+            record(out -> ReplicationRecord.writeDetach(out, connection));
+            mirror.close();
+        });
+        mirrors.clear();
+        Log.info("Promoted to leader with replication id {}, {} mirrored connection(s) detached", replicationId,
+                detached);
+        return true;
+    }
+
+    private void stopLink() {
+        if (link != null) {
+            link.stop();
+            link = null;
+        }
+    }
+
+    // Leader: recording and serving SYNC
+
+    private boolean recording() {
+        return recording && role == Role.LEADER;
+    }
+
+    public void published(String channel, ByteBuf payload) {
+        if (recording()) {
+            record(out -> ReplicationRecord.writePublish(out, channel, payload));
+        }
+    }
+
+    public void subscribed(ChannelHandlerContext ctx, boolean pattern, String name, DataStructure ds,
+                           SubscriptionLimits limits, ConsumerGroupSpec group) {
+        if (recording() && group == null && ds != DataStructure.STREAM) {
+            long connection = connectionId(ctx);
+            record(out -> ReplicationRecord.writeSubscribe(out, connection, pattern, name, ds, limits));
+        }
+    }
+
+    public void unsubscribed(ChannelHandlerContext ctx, boolean pattern, String name) {
+        if (recording() && ctx.channel().hasAttr(CONNECTION)) {
+            long connection = ctx.channel().attr(CONNECTION).get();
+            record(out -> ReplicationRecord.writeUnsubscribe(out, connection, pattern, name));
+        }
+    }
+
+    /**
+     * Records a POP that took {@code count} messages from the connection's subscriber to the channel, or to
+     * the pattern the channel was resolved to.
+     */
+    public void taken(ChannelHandlerContext ctx, String channel, Publisher.BufferedSubscriber subscriber, int count) {
+        if (!recording() || count == 0 || !ctx.channel().hasAttr(CONNECTION)) {
+            return;
+        }
+        Publisher publisher = publisherRegistrar.get(channel);
+        boolean pattern = publisher == null || publisher.getSubscriber(ctx) != subscriber;
+        long connection = ctx.channel().attr(CONNECTION).get();
+        record(out -> ReplicationRecord.writeTake(out, connection, pattern, channel, count));
+    }
+
+    public void disconnected(ChannelHandlerContext ctx) {
+        ReplicaFeed feed = ctx.channel().attr(FEED).getAndSet(null);
+        if (feed != null) {
+            feeds.remove(feed);
+            Log.info("Replica {} disconnected", ctx.channel().remoteAddress());
+        }
+        if (recording() && ctx.channel().hasAttr(CONNECTION)) {
+            long connection = ctx.channel().attr(CONNECTION).get();
+            record(out -> ReplicationRecord.writeDisconnect(out, connection));
+        }
+    }
+
+    /**
+     * Resumes the feed of a replica whose socket became writable again.
+     */
+    public void resume(Channel channel) {
+        ReplicaFeed feed = channel.attr(FEED).get();
+        if (feed != null) {
+            feed.wake();
+        }
+    }
+
+    private long connectionId(ChannelHandlerContext ctx) {
+        Long id = ctx.channel().attr(CONNECTION).get();
+        if (id == null) {
+            Long assigned = nextConnectionId.incrementAndGet();
+            id = ctx.channel().attr(CONNECTION).setIfAbsent(assigned);
+            if (id == null) {
+                id = assigned;
+            }
+        }
+        return id;
+    }
+
+    private void record(Consumer<ByteBuf> writer) {
+        ByteBuf record = ByteBufAllocator.DEFAULT.heapBuffer();
+        try {
+            writer.accept(record);
+            backlog.append(record);
+        } finally {
+            record.release();
+        }
+        feeds.forEach(ReplicaFeed::wake);
+    }
+
+    /**
+     * Answers a replica's SYNC: partially if the backlog holds the offset it reached in a stream this
+     * server continues, and otherwise in full, by sending the current subscriptions from a virtual thread
+     * before the stream. Either way the reply comes first.
+     */
+    public void sync(ChannelHandlerContext ctx, Message.Sync sync) {
+        String id;
+        long from;
+        boolean partial;
+        synchronized (this) {
+            recording = true;
+            id = replicationId;
+            String followed = sync.replicationId();
+            partial = followed != null && backlog.holds(sync.offset())
+                    && (followed.equals(id) || followed.equals(previousId) && sync.offset() <= previousEnd);
+            from = partial ? sync.offset() : backlog.end();
+        }
+
+        ReplicaFeed feed = new ReplicaFeed(ctx, sync.requestId(), backlog, batchBytes);
+        ReplicaFeed replaced = ctx.channel().attr(FEED).getAndSet(feed);
+        if (replaced != null) {
+            feeds.remove(replaced);
+        }
+        feeds.add(feed);
+        ctx.writeAndFlush(Reply.ok(sync.requestId(), (partial ? "PARTIAL " : "FULL ") + id + " " + from));
+        Log.info("Replica {} synced {} from offset {}", ctx.channel().remoteAddress(), partial ? "partially" : "in full",
+                from);
+
+        if (partial) {
+            feed.start(from);
+        } else {
+            Thread.ofVirtual().name("mudis-replication-sync").start(() -> sendState(feed, from));
+        }
+    }
+
+    /**
+     * Sends every buffered subscription, in frames of about a batch, waiting for the socket to drain
+     * whenever it fills up, then starts the stream. A follower sends the mirrors and restored subscriptions
+     * it replicates, but not its own clients' subscriptions.
+     */
+    private void sendState(ReplicaFeed feed, long from) {
+        ByteBuf[] batch = {ByteBufAllocator.DEFAULT.heapBuffer()};
+        try {
+            publisherRegistrar.captureConnections((pattern, name, ctx, state) -> {
+                long connection = ReplicationRecord.NO_CONNECTION;
+                if (ctx != null) {
+                    if (role == Role.FOLLOWER && !ctx.channel().hasAttr(CONNECTION)) {
+                        return;
+                    }
+                    connection = connectionId(ctx);
+                }
+                int lengthIndex = batch[0].writerIndex();
+                batch[0].writeInt(0);
+                ReplicationRecord.writeState(batch[0], connection, pattern, name, state.ds(), state.limits(),
+                        state.messages());
+                batch[0].setInt(lengthIndex, batch[0].writerIndex() - lengthIndex - Integer.BYTES);
+                if (batch[0].readableBytes() >= batchBytes) {
+                    ByteBuf full = batch[0];
+                    batch[0] = ByteBufAllocator.DEFAULT.heapBuffer();
+                    writeState(feed, full);
+                }
+            });
+            ByteBuf last = batch[0];
+            batch[0] = null;
+            if (last.isReadable()) {
+                writeState(feed, last);
+            } else {
+                last.release();
+            }
+            feed.start(from);
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Full resync of replica {} failed: {}", feed.ctx().channel().remoteAddress(), e.getMessage());
+            feed.ctx().close();
+        } finally {
+            ReferenceCountUtil.release(batch[0]);
+        }
+    }
+
+    private static void writeState(ReplicaFeed feed, ByteBuf records) throws IOException {
+        ChannelFuture written = feed.writeState(records);
+        if (!feed.ctx().channel().isWritable()) {
+            written.awaitUninterruptibly();
+        }
+        if (!feed.ctx().channel().isActive()) {
+            throw new IOException("replica disconnected");
+        }
+    }
+
+    // Follower: applying the stream
+
+    /**
+     * Takes the leader's answer to SYNC. A full resync drops everything mirrored from before, and the
+     * followers of this server, whose streams went on from it, start over too.
+     */
+    synchronized void resynced(boolean full, String id, long offset) {
+        replicationId = id;
+        if (!full) {
+            return;
+        }
+        mirrors.values().forEach(mirror -> {
+            publisherRegistrar.unsubscribeFromAll(mirror.pipeline().firstContext());
+            mirror.close();
+        });
+        mirrors.clear();
+        publisherRegistrar.discardRestored();
+        backlog.reset(offset);
+        for (ReplicaFeed feed : feeds) {
+            feed.ctx().close();
+        }
+    }
+
+    /**
+     * Applies a frame of records from the leader, on the link's event loop. State frames, at offset -1, are
+     * applied as they come; stream frames are also appended to this server's backlog, at the same offsets,
+     * for followers of its own.
+     */
+    void received(long offset, ByteBuf records) {
+        if (role != Role.FOLLOWER) {
+            return;
+        }
+        if (offset >= 0 && offset != backlog.end()) {
+            throw new IllegalStateException("Replication stream at offset " + offset + ", expected " + backlog.end());
+        }
+        ByteBuf view = records.duplicate();
+        while (view.isReadable()) {
+            ByteBuf record = view.readSlice(view.readInt());
+            apply(ReplicationRecord.decode(record.duplicate()), records);
+        }
+        if (offset >= 0) {
+            backlog.appendRecords(records);
+            feeds.forEach(ReplicaFeed::wake);
+        }
+    }
+
+    /**
+     * Applies one record on the thread owning its channel or pattern, keeping the frame it was decoded from
+     * until then. A record ending a connection belongs to no channel; see {@link #applyAfterQueued}.
+     */
+    private void apply(ReplicationRecord record, ByteBuf frame) {
+        String name = switch (record) {
+            case ReplicationRecord.Publish publish -> publish.channel();
+            case ReplicationRecord.Subscribe subscribe -> subscribe.name();
+            case ReplicationRecord.Unsubscribe unsubscribe -> unsubscribe.name();
+            case ReplicationRecord.Take take -> take.name();
+            case ReplicationRecord.State state -> state.name();
+            case ReplicationRecord.Disconnect _, ReplicationRecord.Detach _ -> null;
+        };
+        if (name == null) {
+            applyAfterQueued(record);
+            return;
+        }
+        EventExecutor owner = publisherRegistrar.ownerOf(name);
+        if (owner == null || owner.inEventLoop()) {
+            applyNow(record);
+            return;
+        }
+        frame.retain();
+        owner.execute(() -> {
+            try {
+                applyNow(record);
+            } finally {
+                frame.release();
+            }
+        });
+    }
+
+    /**
+     * Applies a Disconnect or Detach once every owner has applied the records queued before it. Those may
+     * still subscribe the connection on any channel, and one applied after its mirror is gone would
+     * recreate it for good. Each owner runs its tasks in order, so the record waits for a turn on all of
+     * them, and the last to get there applies it.
+     */
+    private void applyAfterQueued(ReplicationRecord record) {
+        List<EventExecutor> owners = publisherRegistrar.owners();
+        if (owners.isEmpty()) {
+            applyNow(record);
+            return;
+        }
+        AtomicInteger waiting = new AtomicInteger(owners.size());
+        for (EventExecutor owner : owners) {
+            owner.execute(() -> {
+                if (waiting.decrementAndGet() == 0) {
+                    applyNow(record);
+                }
+            });
+        }
+    }
+
+    private void applyNow(ReplicationRecord record) {
+        switch (record) {
+            case ReplicationRecord.Publish publish -> applyPublish(publish.channel(), publish.payload());
+            case ReplicationRecord.Subscribe sub -> {
+                ChannelHandlerContext ctx = mirror(sub.connection());
+                if (sub.pattern()) {
+                    publisherRegistrar.psubscribe(sub.name(), sub.ds(), sub.limits(), null, ctx, Protocol.NO_REQUEST_ID);
+                } else {
+                    publisherRegistrar.subscribe(sub.name(), sub.ds(), sub.limits(), null, ctx, Protocol.NO_REQUEST_ID);
+                }
+            }
+            case ReplicationRecord.Unsubscribe unsub -> {
+                EmbeddedChannel mirror = mirrors.get(unsub.connection());
+                if (mirror == null) {
+                    return;
+                }
+                if (unsub.pattern()) {
+                    publisherRegistrar.punsubscribe(unsub.name(), mirror.pipeline().firstContext());
+                } else {
+                    publisherRegistrar.unsubscribe(unsub.name(), mirror.pipeline().firstContext());
+                }
+            }
+            case ReplicationRecord.Take take -> {
+                EmbeddedChannel mirror = mirrors.get(take.connection());
+                Publisher publisher = take.pattern() ? publisherRegistrar.getPattern(take.name())
+                        : publisherRegistrar.get(take.name());
+                if (mirror == null || publisher == null) {
+                    return;
+                }
+                if (publisher.getSubscriber(mirror.pipeline().firstContext()) instanceof Publisher.BufferedSubscriber buffered) {
+                    buffered.take(take.count()).forEach(ReferenceCountUtil::release);
+                }
+            }
+            case ReplicationRecord.Disconnect disconnect -> {
+                EmbeddedChannel mirror = mirrors.remove(disconnect.connection());
+                if (mirror != null) {
+                    publisherRegistrar.unsubscribeFromAll(mirror.pipeline().firstContext());
+                    mirror.close();
+                }
+            }
+            case ReplicationRecord.Detach detach -> {
+                EmbeddedChannel mirror = mirrors.remove(detach.connection());
+                if (mirror != null) {
+                    publisherRegistrar.detach(mirror.pipeline().firstContext());
+                    mirror.close();
+                }
+            }
+            case ReplicationRecord.State state -> {
+                if (state.connection() == ReplicationRecord.NO_CONNECTION) {
+                    publisherRegistrar.restore(state.pattern(), state.name(), state.ds(), state.limits(), state.messages());
+                } else {
+                    publisherRegistrar.subscribe(state.pattern(), state.name(), state.ds(), state.limits(),
+                            mirror(state.connection()), state.messages());
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes as a PUBLISH from a client would, persisting it if persistence is enabled. A publish that
+     * cannot be persisted is not delivered, just as the leader would have refused it.
+     */
+    private void applyPublish(String channel, ByteBuf payload) {
+        Publisher publisher = publisherRegistrar.get(channel);
+        String rejection = publisher == null ? null : publisher.wouldReject(payload);
+        if (rejection != null) {
+            Log.warn("Replicated publish rejected on channel: {} ({})", channel, rejection);
+            return;
+        }
+        if (persistenceLog.isEnabled()) {
+            try {
+                persistenceLog.append(channel, payload);
+                persistenceLog.syncAppended();
+            } catch (IOException | RuntimeException e) {
+                Log.error("Error persisting replicated publish on channel: {}", channel, e);
+                return;
+            }
+        }
+        var result = publisher == null ? Publisher.PublishResult.NONE : publisher.publish(payload);
+        if (result.rejected()) {
+            Log.warn("Replicated publish persisted but rejected on channel: {} ({})", channel, result.rejection());
+        }
+        publisherRegistrar.publishToPatterns(channel, payload);
+    }
+
+    /**
+     * The context standing for one of the leader's connections. It belongs to a channel that is never
+     * registered with a socket, so it only carries the registrar's attributes and is never written to.
+     */
+    private ChannelHandlerContext mirror(long connection) {
+        return mirrors.computeIfAbsent(connection, id -> {
+            EmbeddedChannel mirror = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+            mirror.attr(CONNECTION).set(id);
+            return mirror;
+        }).pipeline().firstContext();
+    }
+
+    private static String newReplicationId() {
+        byte[] id = new byte[20];
+        ThreadLocalRandom.current().nextBytes(id);
+        return HexFormat.of().formatHex(id);
+    }
+}
@@ -0,0 +1,133 @@
+package io.mudis.mudisserver.replication;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The most recent stretch of the replication stream, kept in a fixed ring of bytes. Every byte of the stream
+ * has an offset, counted from the start of the stream, and records are stored length-prefixed, so any offset
+ * a replica reached at a record boundary can be resumed from as long as the ring still holds it.
+ * <p>
+ * Appending overwrites the oldest records. A record larger than the whole ring is counted but not kept, which
+ * leaves every replica behind it to resync in full. The ring is allocated on the first append, so a server
+ * nobody replicates from pays nothing for it. Thread-safe.
+ */
+final class ReplicationBacklog {
+    private final int capacity;
+    private byte[] ring;
+    // Offsets of the oldest byte held and of the next byte to append
+    private long start;
+    private long end;
+
+    ReplicationBacklog(int capacity) {
+        this.capacity = capacity;
+    }
+
+    synchronized long start() {
+        return start;
+    }
+
+    synchronized long end() {
+        return end;
+    }
+
+    /**
+     * Whether a replica that reached {@code offset} can resume from here.
+     */
+    synchronized boolean holds(long offset) {
+        return offset >= start && offset <= end;
+    }
+
+    /**
+     * Empties the ring, and continues the stream from {@code offset}.
+     */
+    synchronized void reset(long offset) {
+        start = offset;
+        end = offset;
+    }
+
+    /**
+     * Appends the record's readable bytes behind a length prefix.
+     *
+     * @return the offset after it
+     */
+    synchronized long append(ByteBuf record) {
+        int length = record.readableBytes();
+        if (Integer.BYTES + length > capacity) {
+            end += Integer.BYTES + length;
+            start = end;
+            return end;
+        }
+        if (ring == null) {
+            ring = new byte[capacity];
+        }
+
+        long newEnd = end + Integer.BYTES + length;
+        if (newEnd - start > capacity) {
+            start = newEnd - capacity;
+        }
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            ring[index(end++)] = (byte) (length >>> shift);
+        }
+        int at = index(end);
+        int first = Math.min(length, capacity - at);
+        record.getBytes(record.readerIndex(), ring, at, first);
+        record.getBytes(record.readerIndex() + first, ring, 0, length - first);
+        end = newEnd;
+        return end;
+    }
+
+    /**
+     * Appends records exactly as {@link #read} returned them, as a replica relaying its leader's stream does.
+     */
+    synchronized void appendRecords(ByteBuf records) {
+        ByteBuf view = records.duplicate();
+        while (view.isReadable()) {
+            int length = view.readInt();
+            append(view.readSlice(length));
+        }
+    }
+
+    /**
+     * Copies the whole records from {@code from} on, at most {@code maxBytes} of them unless the first alone is
+     * larger, length prefixes included.
+     *
+     * @return the records, empty if there are none yet, or null if the ring no longer holds {@code from}
+     */
+    synchronized ByteBuf read(long from, int maxBytes) {
+        if (from < start || from > end) {
+            return null;
+        }
+        if (from == end) {
+            return Unpooled.EMPTY_BUFFER;
+        }
+        long to = from;
+        while (to < end) {
+            long next = to + Integer.BYTES + lengthAt(to);
+            if (next - from > maxBytes && to > from) {
+                break;
+            }
+            to = next;
+        }
+
+        int length = (int) (to - from);
+        ByteBuf records = Unpooled.buffer(length);
+        int at = index(from);
+        int first = Math.min(length, capacity - at);
+        records.writeBytes(ring, at, first);
+        records.writeBytes(ring, 0, length - first);
+        return records;
+    }
+
+    private int lengthAt(long offset) {
+        int length = 0;
+        for (int i = 0; i < Integer.BYTES; i++) {
+            length = (length << 8) | (ring[index(offset + i)] & 0xff);
+        }
+        return length;
+    }
+
+    private int index(long offset) {
+        return (int) Math.floorMod(offset, (long) capacity);
+    }
+}
@@ -0,0 +1,177 @@
+package io.mudis.mudisserver.replication;
+
+import io.mudis.mudisserver.model.DataStructure;
+import io.mudis.mudisserver.model.LimitPolicy;
+import io.mudis.mudisserver.model.SubscriptionLimits;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One change in the replication stream, in the binary form the backlog keeps and replicas apply. Each starts
+ * with a type byte, followed by:
+ * <ul>
+ *     <li>PUBLISH: the channel, then the payload to the end of the record</li>
+ *     <li>SUBSCRIBE: the connection, the pattern flag, the channel or pattern, the data structure and limits</li>
+ *     <li>UNSUBSCRIBE: the connection, the pattern flag and the channel or pattern</li>
+ *     <li>TAKE: the connection, the pattern flag, the channel or pattern and how many messages a POP took</li>
+ *     <li>DISCONNECT: the connection</li>
+ *     <li>DETACH: the connection, whose subscriptions a promotion turned into restored ones</li>
+ *     <li>STATE: a whole buffered subscription, its connection (0 for a restored one) and messages included;
+ *     only sent by a full resync, never kept in the backlog</li>
+ * </ul>
+ * Connections are the leader's ids for its client connections, strings are length-prefixed UTF-8, and limits
+ * are written as snapshots write them.
+ */
+sealed interface ReplicationRecord {
+    byte PUBLISH = 1;
+    byte SUBSCRIBE = 2;
+    byte UNSUBSCRIBE = 3;
+    byte TAKE = 4;
+    byte DISCONNECT = 5;
+    byte DETACH = 6;
+    byte STATE = 7;
+
+    /**
+     * The connection id of restored subscriptions, which belong to no connection.
+     */
+    long NO_CONNECTION = 0;
+
+    DataStructure[] DATA_STRUCTURES = DataStructure.values();
+    LimitPolicy[] LIMIT_POLICIES = LimitPolicy.values();
+
+    /**
+     * Decodes one record. Payloads and messages are slices of {@code record}, valid as long as it is.
+     */
+    static ReplicationRecord decode(ByteBuf record) {
+        byte type = record.readByte();
+        return switch (type) {
+            case PUBLISH -> new Publish(readString(record), record.readSlice(record.readableBytes()));
+            case SUBSCRIBE -> new Subscribe(record.readLong(), record.readBoolean(), readString(record),
+                    DATA_STRUCTURES[record.readByte()], readLimits(record));
+            case UNSUBSCRIBE -> new Unsubscribe(record.readLong(), record.readBoolean(), readString(record));
+            case TAKE -> new Take(record.readLong(), record.readBoolean(), readString(record), record.readInt());
+            case DISCONNECT -> new Disconnect(record.readLong());
+            case DETACH -> new Detach(record.readLong());
+            case STATE -> {
+                long connection = record.readLong();
+                boolean pattern = record.readBoolean();
+                String name = readString(record);
+                DataStructure ds = DATA_STRUCTURES[record.readByte()];
+                SubscriptionLimits limits = readLimits(record);
+                int count = record.readInt();
+                List<ByteBuf> messages = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    messages.add(record.readSlice(record.readInt()));
+                }
+                yield new State(connection, pattern, name, ds, limits, messages);
+            }
+            default -> throw new IllegalArgumentException("Unknown replication record type: " + type);
+        };
+    }
+
+    static void writePublish(ByteBuf out, String channel, ByteBuf payload) {
+        out.writeByte(PUBLISH);
+        writeString(out, channel);
+        out.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+    }
+
+    static void writeSubscribe(ByteBuf out, long connection, boolean pattern, String name, DataStructure ds,
+                               SubscriptionLimits limits) {
+        out.writeByte(SUBSCRIBE);
+        out.writeLong(connection);
+        out.writeBoolean(pattern);
+        writeString(out, name);
+        out.writeByte(ds.ordinal());
+        writeLimits(out, limits);
+    }
+
+    static void writeUnsubscribe(ByteBuf out, long connection, boolean pattern, String name) {
+        out.writeByte(UNSUBSCRIBE);
+        out.writeLong(connection);
+        out.writeBoolean(pattern);
+        writeString(out, name);
+    }
+
+    static void writeTake(ByteBuf out, long connection, boolean pattern, String name, int count) {
+        out.writeByte(TAKE);
+        out.writeLong(connection);
+        out.writeBoolean(pattern);
+        writeString(out, name);
+        out.writeInt(count);
+    }
+
+    static void writeDisconnect(ByteBuf out, long connection) {
+        out.writeByte(DISCONNECT);
+        out.writeLong(connection);
+    }
+
+    static void writeDetach(ByteBuf out, long connection) {
+        out.writeByte(DETACH);
+        out.writeLong(connection);
+    }
+
+    static void writeState(ByteBuf out, long connection, boolean pattern, String name, DataStructure ds,
+                           SubscriptionLimits limits, List<ByteBuf> messages) {
+        out.writeByte(STATE);
+        out.writeLong(connection);
+        out.writeBoolean(pattern);
+        writeString(out, name);
+        out.writeByte(ds.ordinal());
+        writeLimits(out, limits);
+        out.writeInt(messages.size());
+        for (ByteBuf message : messages) {
+            out.writeInt(message.readableBytes());
+            out.writeBytes(message, message.readerIndex(), message.readableBytes());
+        }
+    }
+
+    private static void writeString(ByteBuf out, String value) {
+        int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+        out.setInt(lengthIndex, out.writeCharSequence(value, StandardCharsets.UTF_8));
+    }
+
+    private static String readString(ByteBuf in) {
+        int length = in.readInt();
+        return in.readCharSequence(length, StandardCharsets.UTF_8).toString();
+    }
+
+    private static void writeLimits(ByteBuf out, SubscriptionLimits limits) {
+        out.writeLong(limits.maxMessages());
+        out.writeByte(limits.messagesPolicy().ordinal());
+        out.writeLong(limits.maxBytes());
+        out.writeByte(limits.bytesPolicy().ordinal());
+        out.writeLong(limits.maxAgeMillis());
+    }
+
+    private static SubscriptionLimits readLimits(ByteBuf in) {
+        return new SubscriptionLimits(in.readLong(), LIMIT_POLICIES[in.readByte()], in.readLong(),
+                LIMIT_POLICIES[in.readByte()], in.readLong());
+    }
+
+    record Publish(String channel, ByteBuf payload) implements ReplicationRecord {
+    }
+
+    record Subscribe(long connection, boolean pattern, String name, DataStructure ds,
+                     SubscriptionLimits limits) implements ReplicationRecord {
+    }
+
+    record Unsubscribe(long connection, boolean pattern, String name) implements ReplicationRecord {
+    }
+
+    record Take(long connection, boolean pattern, String name, int count) implements ReplicationRecord {
+    }
+
+    record Disconnect(long connection) implements ReplicationRecord {
+    }
+
+    record Detach(long connection) implements ReplicationRecord {
+    }
+
+    record State(long connection, boolean pattern, String name, DataStructure ds, SubscriptionLimits limits,
+                 List<ByteBuf> messages) implements ReplicationRecord {
+    }
+}
@@ -0,0 +1,187 @@
+package io.mudis.mudisserver.server;
+
+import io.mudis.mudisserver.persistence.PersistenceLog;
+import io.mudis.mudisserver.pubsub.MemoryBudget;
+import io.mudis.mudisserver.pubsub.Publisher;
+import io.mudis.mudisserver.pubsub.PublisherRegistrar;
+import io.mudis.mudisserver.replication.Replication;
+import io.mudis.mudisserver.utils.ConfigProperties;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes scheduled with {@code PUBLISH <channel> <message> DELAY <ms>} or {@code AT <epoch-ms>}, held
+ * until they are due and then published as if they had just arrived.
+ * <p>
+ * They wait in a {@link TimingWheel} of {@code mudis.schedule.tick.ms} ticks owned by one ticker thread.
+ * Event loops never touch the wheel: they hand new publishes over through a lock-free queue that the ticker
+ * drains every tick, so scheduling costs them one enqueue. When nothing is pending the ticker parks until
+ * the next schedule instead of ticking.
+ * <p>
+ * A pending payload is copied out of the inbound frame and counts against the {@link MemoryBudget}.
+ * Pending publishes are held in memory only and are lost on restart; once due, they are persisted like
+ * any other publish.
+ */
+public enum DelayedPublishes {
+    INSTANCE();
+
+    private static final Logger Log = LoggerFactory.getLogger(DelayedPublishes.class);
+
+    private final long tickMillis;
+    private final TimingWheel<Pending> wheel = new TimingWheel<>();
+    private final Queue<Pending> inbox = PlatformDependent.newMpscQueue();
+    private final AtomicLong pending = new AtomicLong();
+    private final MemoryBudget budget = MemoryBudget.INSTANCE;
+    private final PublisherRegistrar publisherRegistrar = PublisherRegistrar.INSTANCE;
+    private final PersistenceLog persistenceLog = PersistenceLog.INSTANCE;
+    // Epoch millisecond tick 0 of the wheel stands for
+    private final long origin;
+    private final Thread ticker;
+    private volatile boolean idle;
+    private volatile boolean running = true;
+
+    DelayedPublishes() {
+        this.tickMillis = Math.max(1, ConfigProperties.getLong("mudis.schedule.tick.ms", 10));
+        this.origin = System.currentTimeMillis();
+        this.ticker = Thread.ofPlatform().name("mudis-scheduler").daemon().unstarted(this::run);
+        ticker.start();
+    }
+
+    private static final class Pending extends TimingWheel.Timeout {
+        private final String channel;
+        private final byte[] payload;
+
+        private Pending(long tick, String channel, byte[] payload) {
+            super(tick);
+            this.channel = channel;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Schedules a copy of the payload to be published to the channel at {@code deliverAt}, in epoch
+     * milliseconds. Thread-safe.
+     *
+     * @return false if the memory budget cannot hold it
+     */
+    public boolean schedule(String channel, ByteBuf payload, long deliverAt) {
+        int size = payload.readableBytes();
+        if (!budget.tryReserve(size)) {
+            return false;
+        }
+
+        // Rounded up, so nothing is published before it is due
+        long tick = Math.ceilDiv(deliverAt - origin, tickMillis);
+        Pending scheduled = new Pending(tick, channel, ByteBufUtil.getBytes(payload));
+        pending.incrementAndGet();
+        inbox.offer(scheduled);
+        if (idle) {
+            LockSupport.unpark(ticker);
+        }
+        return true;
+    }
+
+    /**
+     * Publishes scheduled and not yet due.
+     */
+    public long pending() {
+        return pending.get();
+    }
+
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(ticker);
+        long dropped = pending.get();
+        if (dropped > 0) {
+            Log.warn("Dropping {} delayed publish(es) that were not due yet", dropped);
+        }
+    }
+
+    private void run() {
+        while (running) {
+            long now = System.currentTimeMillis();
+            long tick = Math.floorDiv(now - origin, tickMillis);
+            Pending scheduled;
+            while ((scheduled = inbox.poll()) != null) {
+                wheel.add(scheduled);
+            }
+            try {
+                wheel.advanceTo(tick, this::publish);
+                persistenceLog.syncAppended();
+            } catch (RuntimeException e) {
+                Log.error("Error publishing delayed messages", e);
+            }
+
+            if (wheel.size() == 0) {
+                idle = true;
+                // Rechecked after announcing it, so a schedule racing with this is never missed
+                if (inbox.isEmpty() && running) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+            } else {
+                long nextTick = origin + (tick + 1) * tickMillis;
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(nextTick - now, 1)));
+            }
+        }
+    }
+
+    /**
+     * Publishes a due message on the thread owning its channel, or right here if the server is not sharded.
+     */
+    private void publish(Pending due) {
+        pending.decrementAndGet();
+        EventExecutor owner = publisherRegistrar.ownerOf(due.channel);
+        if (owner == null) {
+            publishNow(due);
+            return;
+        }
+        owner.execute(() -> {
+            publishNow(due);
+            try {
+                persistenceLog.syncAppended();
+            } catch (UncheckedIOException e) {
+                Log.error("Error syncing persistence log after a delayed publish", e);
+            }
+        });
+    }
+
+    private void publishNow(Pending due) {
+        ByteBuf payload = Unpooled.wrappedBuffer(due.payload);
+        budget.release(due.payload.length);
+
+        Publisher publisher = publisherRegistrar.get(due.channel);
+        String rejection = publisher == null ? null : publisher.wouldReject(payload);
+        if (rejection != null) {
+            Log.warn("Delayed publish rejected on channel: {} ({})", due.channel, rejection);
+            return;
+        }
+        if (persistenceLog.isEnabled()) {
+            try {
+                persistenceLog.append(due.channel, payload);
+            } catch (IOException e) {
+                Log.error("Error persisting delayed publish on channel: {}", due.channel, e);
+                return;
+            }
+        }
+        var result = publisher == null ? Publisher.PublishResult.NONE : publisher.publish(payload);
+        if (result.rejected()) {
+            Log.warn("Delayed publish persisted but rejected on channel: {} ({})", due.channel, result.rejection());
+        }
+        publisherRegistrar.publishToPatterns(due.channel, payload);
+        Replication.INSTANCE.published(due.channel, payload);
+        Log.debug("Delayed publish to channel: {} ({} subscribers)", due.channel, result.subscribers());
+    }
+}
@@ -1,92 +1,352 @@
 package io.mudis.mudisserver.server;
 
+import io.mudis.mudisserver.cluster.ClusterNode;
+import io.mudis.mudisserver.kv.KeyValueStore;
 import io.mudis.mudisserver.model.Message;
+import io.mudis.mudisserver.model.PayloadReply;
+import io.mudis.mudisserver.persistence.DurableSubscriptions;
+import io.mudis.mudisserver.persistence.PersistenceLog;
+import io.mudis.mudisserver.persistence.SnapshotStore;
+import io.mudis.mudisserver.pubsub.MemoryBudget;
+import io.mudis.mudisserver.pubsub.MessageStorage;
 import io.mudis.mudisserver.pubsub.Publisher;
 import io.mudis.mudisserver.pubsub.PublisherRegistrar;
+import io.mudis.mudisserver.replication.Replication;
+import io.mudis.mudisshared.model.Operation;
+import io.mudis.mudisshared.model.Reply;
+import io.mudis.mudisshared.model.Status;
+import io.mudis.mudisshared.protocol.Protocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.StringJoiner;
+
 /**
  * Handles incoming messages from clients and routes them to appropriate pub/sub operations.
+ * Replies are written as requests are handled and flushed once per read batch, so pipelined
+ * requests share a single flush. On a sharded server, channel operations run on the event loop
+ * owning the channel instead (see {@link PublisherRegistrar#shardOver}).
+ * <p>
+ * With persistence enabled, a PUBLISH is appended to the channel's log before it is fanned out, and the
+ * logs are synced as the {@link PersistenceLog} policy requires before replies are flushed. Durable
+ * subscriptions ({@link DurableSubscriptions}) replay from those logs.
+ * <p>
+ * In a cluster ({@link ClusterNode}), publishes to channels owned by another node are forwarded there, and
+ * subscriptions to them are relayed from there.
+ * <p>
+ * Publishes and buffered subscription changes are recorded for {@link Replication} followers, and a follower
+ * refuses PUBLISH.
+ * <p>
+ * Key-value operations run on the calling event loop against the {@link KeyValueStore}, which locks for itself.
  */
 public class ServerHandler extends SimpleChannelInboundHandler<Message> {
     private static final Logger Log = LoggerFactory.getLogger(ServerHandler.class);
+    private static final byte[] NEWLINE = {'\n'};
     private final PublisherRegistrar publisherRegistrar;
+    private final PersistenceLog persistenceLog;
+    private final DurableSubscriptions durableSubscriptions;
+    private final DelayedPublishes delayedPublishes;
+    private final ClusterNode clusterNode;
+    private final Replication replication;
+    private final KeyValueStore keyValueStore;
 
     public ServerHandler() {
         this.publisherRegistrar = io.mudis.mudisserver.pubsub.PublisherRegistrar.INSTANCE;
+        this.persistenceLog = PersistenceLog.INSTANCE;
+        this.durableSubscriptions = DurableSubscriptions.INSTANCE;
+        this.delayedPublishes = DelayedPublishes.INSTANCE;
+        this.clusterNode = ClusterNode.INSTANCE;
+        this.replication = Replication.INSTANCE;
+        this.keyValueStore = KeyValueStore.INSTANCE;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Message msg) {
         if (msg == null) {
-            sendError(ctx, "Invalid message");
+            sendError(ctx, Protocol.NO_REQUEST_ID, "Invalid message");
             return;
         }
 
         Log.debug("Received message: {}", msg);
 
-        try {
-            switch (msg) {
-                case Message.Show show -> handleShow(ctx, show);
-                case Message.Subscribe sub -> handleSubscribe(ctx, sub);
-                case Message.Publish pub -> handlePublish(ctx, pub);
-                case Message.Unsubscribe unsub -> handleUnsubscribe(ctx, unsub);
+        switch (msg) {
+            case Message.Show show -> onOwner(ctx, show, show.channel(), () -> handleShow(ctx, show));
+            case Message.Subscribe sub when clusterNode.forwards(ctx, sub.channel()) ->
+                    onOwner(ctx, sub, sub.channel(), () -> handleRelayedSubscribe(ctx, sub));
+            case Message.Subscribe sub -> onOwner(ctx, sub, sub.channel(), () -> handleSubscribe(ctx, sub));
+            case Message.Publish pub when replication.isFollower() ->
+                    sendError(ctx, pub.requestId(), "READONLY: this server is a replica of " + replication.leader());
+            case Message.Publish pub when clusterNode.forwards(ctx, pub.channel()) ->
+                    handle(ctx, pub, () -> forwardPublish(ctx, pub));
+            case Message.Publish pub when pub.isScheduled() -> handle(ctx, pub, () -> handleScheduledPublish(ctx, pub));
+            case Message.Publish pub -> onOwner(ctx, pub, pub.channel(), () -> handlePublish(ctx, pub));
+            case Message.Unsubscribe unsub -> onOwner(ctx, unsub, unsub.channel(), () -> handleUnsubscribe(ctx, unsub));
+            case Message.Pop pop -> onOwner(ctx, pop, pop.channel(), () -> handlePop(ctx, pop));
+            case Message.PSubscribe sub -> onOwner(ctx, sub, sub.pattern(), () -> handlePSubscribe(ctx, sub));
+            case Message.PUnsubscribe unsub -> onOwner(ctx, unsub, unsub.pattern(), () -> handlePUnsubscribe(ctx, unsub));
+            case Message.DSubscribe sub when clusterNode.forwards(ctx, sub.channel()) ->
+                    sendNotOwner(ctx, sub.requestId(), sub.channel());
+            case Message.Ack ack when clusterNode.forwards(ctx, ack.channel()) ->
+                    sendNotOwner(ctx, ack.requestId(), ack.channel());
+            case Message.DUnsubscribe unsub when clusterNode.forwards(ctx, unsub.channel()) ->
+                    sendNotOwner(ctx, unsub.requestId(), unsub.channel());
+            case Message.DSubscribe sub -> onOwner(ctx, sub, sub.channel(), () -> handleDSubscribe(ctx, sub));
+            case Message.Ack ack -> onOwner(ctx, ack, ack.channel(), () -> handleAck(ctx, ack));
+            case Message.DUnsubscribe unsub -> onOwner(ctx, unsub, unsub.channel(), () -> handleDUnsubscribe(ctx, unsub));
+            case Message.Info info -> handle(ctx, info, () -> handleInfo(ctx, info));
+            case Message.Subscriptions subscriptions ->
+                    handle(ctx, subscriptions, () -> handleSubscriptions(ctx, subscriptions));
+            case Message.Snapshot snapshot -> handle(ctx, snapshot, () -> handleSnapshot(ctx, snapshot));
+            case Message.Cluster cluster -> handle(ctx, cluster, () -> handleCluster(ctx, cluster));
+            case Message.Sync sync -> handle(ctx, sync, () -> replication.sync(ctx, sync));
+            case Message.ReplicaOf replicaOf -> handle(ctx, replicaOf, () -> handleReplicaOf(ctx, replicaOf));
+            case Message.Get get -> handle(ctx, get, () -> handleGet(ctx, get));
+            case Message.Set set -> handle(ctx, set, () -> handleSet(ctx, set));
+            case Message.Del del -> handle(ctx, del, () -> handleDel(ctx, del));
+            case Message.MGet mget -> handle(ctx, mget, () -> handleMGet(ctx, mget));
+            case Message.MSet mset -> handle(ctx, mset, () -> handleMSet(ctx, mset));
+            case Message.Incr incr -> handle(ctx, incr, () -> handleIncr(ctx, incr));
+            case Message.Invalid invalid -> sendError(ctx, invalid.requestId(), invalid.reason());
+        }
+    }
+
+    /**
+     * Runs a channel operation on the thread owning the channel. Unless the server is sharded, or this event
+     * loop is the owner, that means queueing it on the owner's task queue; the message is retained until it
+     * has run, and its replies are flushed right after, since this read batch's flush will not cover them.
+     */
+    private void onOwner(ChannelHandlerContext ctx, Message msg, String channel, Runnable operation) {
+        EventExecutor owner = publisherRegistrar.ownerOf(channel);
+        if (owner == null || owner.inEventLoop()) {
+            handle(ctx, msg, operation);
+            return;
+        }
+
+        ReferenceCountUtil.retain(msg);
+        owner.execute(() -> {
+            try {
+                handle(ctx, msg, operation);
+            } finally {
+                ReferenceCountUtil.release(msg);
+                flush(ctx);
             }
+        });
+    }
+
+    private void handle(ChannelHandlerContext ctx, Message msg, Runnable operation) {
+        try {
+            operation.run();
         } catch (Exception e) {
             Log.error("Error handling message: {}", msg, e);
-            sendError(ctx, "Error processing message: " + e.getMessage());
+            sendError(ctx, msg.requestId(), "Error processing message: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        flush(ctx);
+    }
+
+    /**
+     * Flushes the replies written so far once the publishes they acknowledge are as durable as the fsync
+     * policy requires. If a log cannot be forced, the connection is closed instead, which discards them.
+     */
+    private void flush(ChannelHandlerContext ctx) {
+        try {
+            persistenceLog.syncAppended();
+        } catch (UncheckedIOException e) {
+            Log.error("Error syncing persistence log, closing connection", e);
+            ctx.close();
+            return;
         }
+        ctx.flush();
     }
 
     private void handleShow(ChannelHandlerContext ctx, Message.Show show) {
-        String channel = show.channel();
+        var subscriber = bufferedSubscriber(ctx, show.requestId(), show.channel());
+        if (subscriber == null) {
+            return;
+        }
+
+        long first = subscriber.firstPosition();
+        long last = subscriber.endPosition();
+        EventExecutor owner = publisherRegistrar.ownerOf(show.channel());
+        if (!show.paged()) {
+            ShowStream.start(ctx, owner, show.requestId(), subscriber, first, last, null);
+            return;
+        }
+
+        long from = Math.min(Math.max(show.sinceLastRead() ? subscriber.lastRead() : show.cursor(), first), last);
+        long to = show.count() == 0 ? last : Math.min(from + show.count(), last);
+        if (show.sinceLastRead()) {
+            subscriber.markRead(to);
+        }
+        ShowStream.start(ctx, owner, show.requestId(), subscriber, from, to, Long.toString(to));
+    }
+
+    private void handlePop(ChannelHandlerContext ctx, Message.Pop pop) {
+        var subscriber = bufferedSubscriber(ctx, pop.requestId(), pop.channel());
+        if (subscriber == null) {
+            return;
+        }
+
+        List<ByteBuf> messages = subscriber.take(pop.count());
+        replication.taken(ctx, pop.channel(), subscriber, messages.size());
+        ShowStream.writeList(ctx, pop.requestId(), messages);
+        Log.debug("Popped {} message(s) from channel: {}", messages.size(), pop.channel());
+    }
 
+    /**
+     * Returns the caller's QUEUE or SET subscriber on the channel, or on the pattern if the caller has no
+     * subscription to a channel of that name, or writes a warning and returns null.
+     */
+    private Publisher.BufferedSubscriber bufferedSubscriber(ChannelHandlerContext ctx, int requestId, String channel) {
         Publisher publisher = publisherRegistrar.get(channel);
+        if (publisher == null || !publisher.isSubscribed(ctx)) {
+            Publisher patternPublisher = publisherRegistrar.getPattern(channel);
+            if (patternPublisher != null) {
+                publisher = patternPublisher;
+            }
+        }
         if (publisher == null) {
-            ctx.writeAndFlush("WARN: No channel found: " + channel);
-            Log.warn("Show to non-existent channel: {}", channel);
-            return;
+            ctx.write(Reply.warn(requestId, "No channel found: " + channel));
+            Log.warn("Read from non-existent channel: {}", channel);
+            return null;
         }
 
         var subscriber = publisher.getSubscriber(ctx);
         if (subscriber == null) {
-            ctx.writeAndFlush("WARN: You are not currently subscribed to this channel: " + channel);
+            ctx.write(Reply.warn(requestId, "You are not currently subscribed to this channel: " + channel));
             Log.warn("Subscriber not found or closed for ctx: {}", ctx);
-            return;
+            return null;
         }
 
-        ctx.writeAndFlush(subscriber.toString());
+        if (!(subscriber instanceof Publisher.BufferedSubscriber buffered)) {
+            ctx.write(Reply.warn(requestId, "Stream subscriptions are pushed, not buffered: " + channel));
+            return null;
+        }
+        return buffered;
     }
 
     private void handleSubscribe(ChannelHandlerContext ctx, Message.Subscribe sub) {
         String channel = sub.channel();
 
-        Publisher publisher = publisherRegistrar.getOrCreate(channel);
-        publisher.subscribe(sub.ds(), ctx);
+        publisherRegistrar.subscribe(channel, sub.ds(), sub.limits(), sub.group(), ctx, sub.requestId());
+        replication.subscribed(ctx, false, channel, sub.ds(), sub.limits(), sub.group());
 
-        ctx.writeAndFlush("OK: Subscribed to channel: " + channel);
-        Log.info("Client subscribed to channel: {}", channel);
+        String group = sub.group() == null ? "" : " in group " + sub.group().name();
+        ctx.write(Reply.ok(sub.requestId(), "Subscribed to channel: " + channel + group));
+        Log.info("Client subscribed to channel: {}{}", channel, group);
+    }
+
+    /**
+     * Subscribes locally and relays the channel from its owner, replying once the relay is in place. If the
+     * owner cannot be reached, the subscription stands and is warned that nothing arrives until it can.
+     */
+    private void handleRelayedSubscribe(ChannelHandlerContext ctx, Message.Subscribe sub) {
+        String channel = sub.channel();
+
+        publisherRegistrar.subscribe(channel, sub.ds(), sub.limits(), sub.group(), ctx, sub.requestId());
+        replication.subscribed(ctx, false, channel, sub.ds(), sub.limits(), sub.group());
+
+        String group = sub.group() == null ? "" : " in group " + sub.group().name();
+        String owner = clusterNode.ownerOf(channel);
+        clusterNode.relay(channel).whenComplete((_, error) -> {
+            if (error == null) {
+                ctx.writeAndFlush(Reply.ok(sub.requestId(), "Subscribed to channel: " + channel + group));
+            } else {
+                ctx.writeAndFlush(Reply.warn(sub.requestId(), "Subscribed to channel: " + channel + group
+                        + ", but its node " + owner + " is unreachable (" + error.getMessage() + ")"));
+            }
+        });
+        Log.info("Client subscribed to channel: {}{} relayed from node {}", channel, group, owner);
+    }
+
+    /**
+     * Sends the PUBLISH on to the channel's owner, with what is left of its schedule as a DELAY so it does not
+     * start over there, and answers with the owner's reply. The DELAY is always there, 0 for a publish due
+     * now, so a message that itself ends in a schedule is not read as one again.
+     */
+    private void forwardPublish(ChannelHandlerContext ctx, Message.Publish pub) {
+        String schedule = " DELAY " + Math.max(0, pub.deliverAt() - System.currentTimeMillis());
+        ByteBuf args = Unpooled.wrappedBuffer(
+                Unpooled.copiedBuffer(pub.channel() + " ", StandardCharsets.UTF_8),
+                pub.payload().retainedSlice(),
+                Unpooled.copiedBuffer(schedule, StandardCharsets.UTF_8));
+        clusterNode.forward(pub.channel(), Operation.PUBLISH, args,
+                (status, body) -> ctx.writeAndFlush(new Reply(pub.requestId(), status, body)));
     }
 
     private void handlePublish(ChannelHandlerContext ctx, Message.Publish pub) {
         String channel = pub.channel();
-        String message = pub.message();
 
+        // Refused messages must not reach the log, and logged ones only fan out once they are there
         Publisher publisher = publisherRegistrar.get(channel);
-        if (publisher == null) {
-            ctx.writeAndFlush("WARN: No subscribers for channel: " + channel);
+        String rejection = publisher == null ? null : publisher.wouldReject(pub.payload());
+        if (rejection != null) {
+            sendError(ctx, pub.requestId(), "Publish rejected, " + rejection + " on channel: " + channel);
+            Log.warn("Publish rejected on channel: {} ({})", channel, rejection);
+            return;
+        }
+
+        int durable = 0;
+        if (persistenceLog.isEnabled()) {
+            try {
+                durable = persistenceLog.append(channel, pub.payload());
+            } catch (IOException e) {
+                sendError(ctx, pub.requestId(), "Publish not persisted: " + e.getMessage());
+                Log.error("Error persisting publish on channel: {}", channel, e);
+                return;
+            }
+        }
+
+        var result = publisher == null ? Publisher.PublishResult.NONE : publisher.publish(pub.payload());
+        if (result.rejected()) {
+            // Only the shared memory budget can have run out since the check; the message is logged by now
+            Log.warn("Publish persisted but rejected on channel: {} ({})", channel, result.rejection());
+            result = new Publisher.PublishResult(result.subscribers(), result.subscribers(), null);
+        }
+
+        var patternResult = publisherRegistrar.publishToPatterns(channel, pub.payload());
+        replication.published(channel, pub.payload());
+        if (publisher == null && patternResult.subscribers() == 0 && durable == 0) {
+            ctx.write(Reply.warn(pub.requestId(), "No subscribers for channel: " + channel));
             Log.warn("Publish to channel with no subscribers: {}", channel);
             return;
         }
 
-        int lag = publisher.submit(message);
-        int subscriberCount = publisher.getSubscriberCount();
+        int subscribers = result.subscribers() + patternResult.subscribers() + durable;
+        int dropped = result.dropped() + patternResult.dropped();
+        if (dropped > 0) {
+            ctx.write(Reply.warn(pub.requestId(), String.format("Published to %d subscriber(s), %d full subscriber(s) skipped",
+                    subscribers - dropped, dropped)));
+        } else {
+            ctx.write(Reply.ok(pub.requestId(), String.format("Published to %d subscriber(s)", subscribers)));
+        }
+        Log.debug("Published to channel: {} ({} subscribers, dropped: {})", channel, subscribers, dropped);
+    }
 
-        ctx.writeAndFlush(String.format("OK: Published to %d subscriber(s)", subscriberCount));
-        Log.debug("Published to channel: {} ({} subscribers, lag: {})", channel, subscriberCount, lag);
+    /**
+     * Hands a PUBLISH with a future DELAY or AT to {@link DelayedPublishes}. Whether it has subscribers is
+     * only known once it is due, so the reply just confirms when that is.
+     */
+    private void handleScheduledPublish(ChannelHandlerContext ctx, Message.Publish pub) {
+        if (!delayedPublishes.schedule(pub.channel(), pub.payload(), pub.deliverAt())) {
+            sendError(ctx, pub.requestId(), "Publish rejected, " + Publisher.BUDGET_EXHAUSTED + " on channel: " + pub.channel());
+            return;
+        }
+        ctx.write(Reply.ok(pub.requestId(), "Scheduled for channel " + pub.channel() + " at " + pub.deliverAt()));
+        Log.debug("Scheduled publish to channel: {} at {}", pub.channel(), pub.deliverAt());
     }
 
     private void handleUnsubscribe(ChannelHandlerContext ctx, Message.Unsubscribe unsub) {
@@ -94,34 +354,287 @@ public class ServerHandler extends SimpleChannelInboundHandler<Message> {
 
         Publisher publisher = publisherRegistrar.get(channel);
         if (publisher == null) {
-            sendError(ctx, "Channel not found: " + channel);
+            sendError(ctx, unsub.requestId(), "Channel not found: " + channel);
             return;
         }
 
         if (!publisher.isSubscribed(ctx)) {
-            sendError(ctx, "Not subscribed to channel: " + channel);
+            sendError(ctx, unsub.requestId(), "Not subscribed to channel: " + channel);
             return;
         }
 
-        publisher.unsubscribe(ctx);
-        ctx.writeAndFlush("OK: Unsubscribed from channel: " + channel);
+        publisherRegistrar.unsubscribe(channel, ctx);
+        replication.unsubscribed(ctx, false, channel);
+        ctx.write(Reply.ok(unsub.requestId(), "Unsubscribed from channel: " + channel));
         Log.info("Client unsubscribed from channel: {}", channel);
     }
 
+    private void handlePSubscribe(ChannelHandlerContext ctx, Message.PSubscribe sub) {
+        String pattern = sub.pattern();
+
+        publisherRegistrar.psubscribe(pattern, sub.ds(), sub.limits(), sub.group(), ctx, sub.requestId());
+        replication.subscribed(ctx, true, pattern, sub.ds(), sub.limits(), sub.group());
+
+        String group = sub.group() == null ? "" : " in group " + sub.group().name();
+        ctx.write(Reply.ok(sub.requestId(), "Subscribed to pattern: " + pattern + group));
+        Log.info("Client subscribed to pattern: {}{}", pattern, group);
+    }
+
+    private void handlePUnsubscribe(ChannelHandlerContext ctx, Message.PUnsubscribe unsub) {
+        String pattern = unsub.pattern();
+
+        Publisher publisher = publisherRegistrar.getPattern(pattern);
+        if (publisher == null || !publisher.isSubscribed(ctx)) {
+            sendError(ctx, unsub.requestId(), "Not subscribed to pattern: " + pattern);
+            return;
+        }
+
+        publisherRegistrar.punsubscribe(pattern, ctx);
+        replication.unsubscribed(ctx, true, pattern);
+        ctx.write(Reply.ok(unsub.requestId(), "Unsubscribed from pattern: " + pattern));
+        Log.info("Client unsubscribed from pattern: {}", pattern);
+    }
+
+    /**
+     * Replies before attaching, so the reply reaches the client ahead of the messages pushed under its
+     * request id.
+     */
+    private void handleDSubscribe(ChannelHandlerContext ctx, Message.DSubscribe sub) {
+        try {
+            var attachment = durableSubscriptions.attach(sub.channel(), sub.name(), sub.from(), ctx, sub.requestId(),
+                    (from, committed) -> ctx.write(Reply.ok(sub.requestId(), String.format(
+                            "Subscribed durably to channel: %s as %s from offset %d (committed %d)",
+                            sub.channel(), sub.name(), from, committed))));
+            Log.info("Client attached to durable subscription {} on channel: {} at offset {}", sub.name(),
+                    sub.channel(), attachment.from());
+        } catch (IOException e) {
+            sendError(ctx, sub.requestId(), "Durable subscription failed: " + e.getMessage());
+            Log.error("Error attaching durable subscription {} on channel: {}", sub.name(), sub.channel(), e);
+        }
+    }
+
+    private void handleAck(ChannelHandlerContext ctx, Message.Ack ack) {
+        boolean moved = durableSubscriptions.acknowledge(ack.channel(), ack.name(), ack.offset());
+        if (moved) {
+            ctx.write(Reply.ok(ack.requestId(), "Acknowledged up to offset " + ack.offset()));
+        } else {
+            ctx.write(Reply.warn(ack.requestId(), "Offset " + ack.offset() + " was already acknowledged"));
+        }
+    }
+
+    private void handleDUnsubscribe(ChannelHandlerContext ctx, Message.DUnsubscribe unsub) {
+        try {
+            durableSubscriptions.delete(unsub.channel(), unsub.name());
+        } catch (IOException e) {
+            sendError(ctx, unsub.requestId(), "Durable subscription not deleted: " + e.getMessage());
+            Log.error("Error deleting durable subscription {} on channel: {}", unsub.name(), unsub.channel(), e);
+            return;
+        }
+        ctx.write(Reply.ok(unsub.requestId(), "Deleted durable subscription " + unsub.name() + " on channel: "
+                + unsub.channel()));
+        Log.info("Durable subscription {} on channel: {} deleted", unsub.name(), unsub.channel());
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
         Log.debug("Client disconnected, cleaning up subscriptions");
         publisherRegistrar.unsubscribeFromAll(ctx);
+        durableSubscriptions.detachAll(ctx);
+        replication.disconnected(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable()) {
+            Publisher.resumeStreams(ctx.channel());
+            durableSubscriptions.resume(ctx.channel());
+            replication.resume(ctx.channel());
+        }
+        ctx.fireChannelWritabilityChanged();
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         Log.error("Exception in server handler", cause);
-        sendError(ctx, "Internal server error");
+        ctx.writeAndFlush(Reply.error(Protocol.NO_REQUEST_ID, "Internal server error"));
         ctx.close();
     }
 
-    private void sendError(ChannelHandlerContext ctx, String errorMessage) {
-        ctx.writeAndFlush("ERROR: " + errorMessage);
+    private void handleInfo(ChannelHandlerContext ctx, Message.Info info) {
+        MessageStorage storage = MessageStorage.INSTANCE;
+        MemoryBudget budget = MemoryBudget.INSTANCE;
+
+        String body = "storage:" + (storage.isOffHeap() ? "offheap" : "heap") + "\n"
+                + "stored_messages:" + storage.storedMessages() + "\n"
+                + "stored_bytes:" + storage.storedBytes() + "\n"
+                + "storage_direct_bytes:" + storage.usedDirectMemory() + "\n"
+                + "network_direct_bytes:" + storage.networkDirectMemory() + "\n"
+                + "budget_used_bytes:" + budget.used() + "\n"
+                + "budget_limit_bytes:" + (budget.limit() == Long.MAX_VALUE ? 0 : budget.limit()) + "\n"
+                + "delayed_publishes:" + delayedPublishes.pending() + "\n"
+                + "kv_keys:" + keyValueStore.size() + "\n"
+                + "kv_bytes:" + keyValueStore.usedBytes() + "\n"
+                + "kv_maxmemory:" + keyValueStore.maxMemory() + "\n"
+                + "kv_eviction_policy:" + keyValueStore.evictionPolicy().name().toLowerCase() + "\n"
+                + "kv_expired_keys:" + keyValueStore.expiredKeys() + "\n"
+                + "kv_evicted_keys:" + keyValueStore.evictedKeys() + "\n"
+                + "persistence:" + (persistenceLog.isEnabled() ? persistenceLog.fsyncPolicy().name().toLowerCase() : "off");
+        if (persistenceLog.isEnabled()) {
+            body += "\npersisted_channels:" + persistenceLog.channelCount() + "\n"
+                    + "persisted_bytes:" + persistenceLog.sizeInBytes() + "\n"
+                    + "durable_subscriptions:" + durableSubscriptions.count();
+        }
+        if (clusterNode.isEnabled()) {
+            body += "\ncluster_node:" + clusterNode.self() + "\n"
+                    + "cluster_nodes:" + clusterNode.ring().nodes().size() + "\n"
+                    + "cluster_relays:" + clusterNode.relayCount();
+        }
+        body += "\nrole:" + replication.role().name().toLowerCase() + "\n"
+                + "replication_id:" + replication.replicationId() + "\n"
+                + "replication_offset:" + replication.offset() + "\n"
+                + "replication_followers:" + replication.followerCount();
+        if (replication.isFollower()) {
+            body += "\nreplication_leader:" + replication.leader() + "\n"
+                    + "replication_link:" + (replication.isLinkUp() ? "up" : "down");
+        }
+        ctx.write(Reply.ok(info.requestId(), body));
+    }
+
+    /**
+     * Replies with one "<channel> <data structure>" line per subscription of the connection, followed by
+     * "<pattern> <data structure> pattern" lines for its pattern subscriptions and "<channel> <name> durable
+     * <committed offset>" lines for the durable subscriptions it is attached to. Group memberships end
+     * with "group <name>".
+     */
+    private void handleSubscriptions(ChannelHandlerContext ctx, Message.Subscriptions subscriptions) {
+        StringJoiner body = new StringJoiner("\n");
+        publisherRegistrar.subscriptions(ctx).forEach((channel, subscriber) ->
+                body.add(channel + " " + subscriber.dataStructure().token() + groupSuffix(subscriber)));
+        publisherRegistrar.patternSubscriptions(ctx).forEach((pattern, subscriber) ->
+                body.add(pattern + " " + subscriber.dataStructure().token() + " pattern" + groupSuffix(subscriber)));
+        durableSubscriptions.attached(ctx).forEach(durable ->
+                body.add(durable.channel() + " " + durable.name() + " durable " + durable.committed()));
+        ctx.write(Reply.ok(subscriptions.requestId(), body.toString()));
+    }
+
+    private static String groupSuffix(Publisher.ChannelSubscriber subscriber) {
+        return subscriber instanceof Publisher.GroupMember member ? " group " + member.groupName() : "";
+    }
+
+    /**
+     * Saves in the background and replies once the snapshot is on disk.
+     */
+    private void handleSnapshot(ChannelHandlerContext ctx, Message.Snapshot snapshot) {
+        SnapshotStore.INSTANCE.saveAsync().whenComplete((result, error) -> {
+            if (error != null) {
+                Log.error("Error saving snapshot", error);
+                ctx.writeAndFlush(Reply.error(snapshot.requestId(), "Snapshot failed: " + error.getCause().getMessage()));
+            } else {
+                Log.info("Snapshot saved: {}", result);
+                ctx.writeAndFlush(Reply.ok(snapshot.requestId(), "Snapshot saved: " + result));
+            }
+        });
+    }
+
+    /**
+     * Answers the CLUSTER PEER handshake of another node, or a client asking for the topology with the
+     * {@link io.mudis.mudisshared.cluster.HashRing#describe() ring description}.
+     */
+    private void handleCluster(ChannelHandlerContext ctx, Message.Cluster cluster) {
+        if (!clusterNode.isEnabled()) {
+            sendError(ctx, cluster.requestId(), "Cluster mode is disabled");
+            return;
+        }
+        if (cluster.peer() != null) {
+            clusterNode.markPeer(ctx, cluster.peer());
+            ctx.write(Reply.ok(cluster.requestId(), "Peer " + cluster.peer()));
+            return;
+        }
+        ctx.write(Reply.ok(cluster.requestId(), clusterNode.ring().describe()));
+    }
+
+    /**
+     * Follows the given leader, or with REPLICAOF NO ONE, promotes this follower to leader.
+     */
+    private void handleReplicaOf(ChannelHandlerContext ctx, Message.ReplicaOf replicaOf) {
+        if (replicaOf.leader() != null) {
+            replication.replicaOf(replicaOf.leader());
+            ctx.write(Reply.ok(replicaOf.requestId(), "Replicating from leader " + replicaOf.leader()));
+        } else if (replication.promote()) {
+            ctx.write(Reply.ok(replicaOf.requestId(), "Promoted to leader, replication id " + replication.replicationId()));
+        } else {
+            ctx.write(Reply.warn(replicaOf.requestId(), "Already a leader"));
+        }
+    }
+
+    /**
+     * Replies with the value as it is stored, wrapped rather than copied.
+     */
+    private void handleGet(ChannelHandlerContext ctx, Message.Get get) {
+        byte[] value = keyValueStore.get(get.key());
+        if (value == null) {
+            ctx.write(Reply.warn(get.requestId(), "Key not found: " + new String(get.key(), StandardCharsets.UTF_8)));
+            return;
+        }
+        ctx.write(new PayloadReply(get.requestId(), Status.OK, Unpooled.wrappedBuffer(value)));
+    }
+
+    private void handleSet(ChannelHandlerContext ctx, Message.Set set) {
+        try {
+            keyValueStore.set(set.key(), set.value(), set.expiresAt());
+        } catch (IllegalStateException e) {
+            sendError(ctx, set.requestId(), e.getMessage());
+            return;
+        }
+        ctx.write(Reply.ok(set.requestId(), "OK"));
+    }
+
+    /**
+     * Replies with the number of keys that were present.
+     */
+    private void handleDel(ChannelHandlerContext ctx, Message.Del del) {
+        ctx.write(Reply.ok(del.requestId(), Integer.toString(keyValueStore.delete(del.keys()))));
+    }
+
+    /**
+     * Replies with one line per key, in request order, empty for a key that is absent.
+     */
+    private void handleMGet(ChannelHandlerContext ctx, Message.MGet mget) {
+        byte[][] values = keyValueStore.getAll(mget.keys());
+        ByteBuf[] lines = new ByteBuf[values.length * 2 - 1];
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                lines[i * 2 - 1] = Unpooled.wrappedBuffer(NEWLINE);
+            }
+            lines[i * 2] = values[i] == null ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(values[i]);
+        }
+        ctx.write(new PayloadReply(mget.requestId(), Status.OK, Unpooled.wrappedBuffer(lines)));
+    }
+
+    private void handleMSet(ChannelHandlerContext ctx, Message.MSet mset) {
+        try {
+            keyValueStore.setAll(mset.keys(), mset.values());
+        } catch (IllegalStateException e) {
+            sendError(ctx, mset.requestId(), e.getMessage());
+            return;
+        }
+        ctx.write(Reply.ok(mset.requestId(), "OK"));
+    }
+
+    private void handleIncr(ChannelHandlerContext ctx, Message.Incr incr) {
+        try {
+            ctx.write(Reply.ok(incr.requestId(), Long.toString(keyValueStore.increment(incr.key()))));
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            sendError(ctx, incr.requestId(), e.getMessage());
+        }
+    }
+
+    private void sendNotOwner(ChannelHandlerContext ctx, int requestId, String channel) {
+        sendError(ctx, requestId, "Channel " + channel + " is owned by node " + clusterNode.ownerOf(channel)
+                + ", durable subscriptions must connect there");
+    }
+
+    private void sendError(ChannelHandlerContext ctx, int requestId, String errorMessage) {
+        ctx.write(Reply.error(requestId, errorMessage));
     }
 }
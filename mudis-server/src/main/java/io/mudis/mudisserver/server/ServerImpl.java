@@ -1,5 +1,8 @@
 package io.mudis.mudisserver.server;
 
+import io.mudis.mudisserver.cluster.ClusterNode;
+import io.mudis.mudisserver.pubsub.PublisherRegistrar;
+import io.mudis.mudisserver.replication.Replication;
 import io.mudis.mudisserver.utils.ConfigProperties;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
@@ -37,7 +40,15 @@ public class ServerImpl implements Server {
         this.host = ConfigProperties.get("mudis.server.host");
         this.port = Integer.parseInt(ConfigProperties.get("mudis.server.port"));
         this.bossGroup = new MultiThreadIoEventLoopGroup(BOSS_THREADS, NioIoHandler.newFactory());
-        this.workerGroup = new MultiThreadIoEventLoopGroup(WORKER_THREADS, NioIoHandler.newFactory());
+        int workers = ConfigProperties.getInt("mudis.server.workers", WORKER_THREADS);
+        this.workerGroup = new MultiThreadIoEventLoopGroup(
+                workers > 0 ? workers : Runtime.getRuntime().availableProcessors(), NioIoHandler.newFactory());
+
+        if (Boolean.parseBoolean(ConfigProperties.get("mudis.server.sharded", "false").trim())) {
+            PublisherRegistrar.INSTANCE.shardOver(workerGroup);
+        }
+        ClusterNode.INSTANCE.start(workerGroup);
+        Replication.INSTANCE.start(workerGroup);
     }
 
     @Override
@@ -63,6 +74,7 @@ public class ServerImpl implements Server {
                         protected void initChannel(SocketChannel ch) {
                             ch.pipeline()
                                     .addLast(new io.mudis.mudisserver.codec.ServerCodec())
+                                    .addLast(io.mudis.mudisserver.codec.PayloadReplyEncoder.INSTANCE)
                                     .addLast(new ServerHandler());
                         }
                     })
@@ -0,0 +1,131 @@
+package io.mudis.mudisserver.server;
+
+import io.mudis.mudisserver.model.PayloadReply;
+import io.mudis.mudisserver.pubsub.Page;
+import io.mudis.mudisserver.pubsub.Publisher;
+import io.mudis.mudisshared.model.Status;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes a SHOW result as a series of frames rendering {@code [a, b, ...]}, optionally preceded by a cursor.
+ * <p>
+ * Each frame holds a bounded chunk of messages; all but the last carry {@link Status#CONTINUE}. A chunk is
+ * only read once the previous one has been written to the socket, so a large result is never held in the
+ * outbound buffer as a whole, and messages evicted meanwhile are skipped instead of pinned. Chunks are read on
+ * the channel's owning event loop when the server is sharded, and on the connection's event loop otherwise.
+ */
+final class ShowStream implements ChannelFutureListener {
+    private static final int CHUNK_MESSAGES = 1024;
+    private static final long CHUNK_BYTES = 64 * 1024;
+
+    private static final ByteBuf OPEN = constant("[");
+    private static final ByteBuf SEPARATOR = constant(", ");
+    private static final ByteBuf CLOSE = constant("]");
+
+    private final ChannelHandlerContext ctx;
+    private final EventExecutor executor;
+    private final int requestId;
+    private final Publisher.BufferedSubscriber subscriber;
+    private final long end;
+    private final String cursor;
+    private long position;
+    private boolean started;
+    private boolean empty = true;
+
+    private ShowStream(ChannelHandlerContext ctx, EventExecutor owner, int requestId,
+                       Publisher.BufferedSubscriber subscriber, long from, long end, String cursor) {
+        this.ctx = ctx;
+        this.executor = owner != null ? owner : ctx.executor();
+        this.requestId = requestId;
+        this.subscriber = subscriber;
+        this.position = from;
+        this.end = end;
+        this.cursor = cursor;
+    }
+
+    /**
+     * Streams the messages between two positions. With a non-null {@code cursor} the body starts with it,
+     * followed by a space. The first frame is written without a flush, like any other reply. {@code owner} is
+     * the channel's owning event loop, or null if the server is not sharded.
+     */
+    static void start(ChannelHandlerContext ctx, EventExecutor owner, int requestId,
+                      Publisher.BufferedSubscriber subscriber, long from, long end, String cursor) {
+        new ShowStream(ctx, owner, requestId, subscriber, from, end, cursor).writeChunk(false);
+    }
+
+    /**
+     * Writes messages the caller owns as one complete {@code [a, b, ...]} list in a single frame; they are
+     * released once written. Used for POP, whose result is bounded by the request and already removed.
+     */
+    static void writeList(ChannelHandlerContext ctx, int requestId, List<ByteBuf> messages) {
+        CompositeByteBuf body = ctx.alloc().compositeBuffer(messages.size() * 2 + 1);
+        body.addComponent(true, OPEN.duplicate());
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) {
+                body.addComponent(true, SEPARATOR.duplicate());
+            }
+            body.addComponent(true, messages.get(i));
+        }
+        body.addComponent(true, CLOSE.duplicate());
+        ctx.write(new PayloadReply(requestId, Status.OK, body));
+    }
+
+    private static ByteBuf constant(String value) {
+        return Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(value, StandardCharsets.US_ASCII).asReadOnly());
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture future) {
+        if (!future.isSuccess()) {
+            return;
+        }
+        if (executor.inEventLoop()) {
+            writeChunk(true);
+        } else {
+            executor.execute(() -> writeChunk(true));
+        }
+    }
+
+    private void writeChunk(boolean flush) {
+        Page page = subscriber.read(position, end, CHUNK_MESSAGES, CHUNK_BYTES);
+        position = page.next();
+        boolean last = position >= end;
+
+        CompositeByteBuf body = ctx.alloc().compositeBuffer(page.messages().size() * 2 + 3);
+        if (!started) {
+            if (cursor != null) {
+                body.addComponent(true, ByteBufUtil.writeAscii(ctx.alloc(), cursor + " "));
+            }
+            body.addComponent(true, OPEN.duplicate());
+            started = true;
+        }
+        for (ByteBuf message : page.messages()) {
+            if (!empty) {
+                body.addComponent(true, SEPARATOR.duplicate());
+            }
+            body.addComponent(true, message);
+            empty = false;
+        }
+        if (last) {
+            body.addComponent(true, CLOSE.duplicate());
+        }
+
+        ChannelFuture written = ctx.write(new PayloadReply(requestId, last ? Status.OK : Status.CONTINUE, body));
+        if (flush) {
+            ctx.flush();
+        }
+        if (!last) {
+            written.addListener(this);
+        }
+    }
+}
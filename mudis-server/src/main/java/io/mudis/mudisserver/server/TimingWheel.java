@@ -0,0 +1,133 @@
+package io.mudis.mudisserver.server;
+
+import java.util.function.Consumer;
+
+/**
+ * Hashed hierarchical timing wheel: timeouts are hashed by their deadline tick into the slots of a level
+ * whose span covers it, so adding one and expiring one are both O(1) however many are pending.
+ * <p>
+ * Level 0 has 256 slots of one tick each; every level above has 64 slots, each spanning a whole turn of
+ * the level below. When level 0 wraps around, the next slot of level 1 is cascaded: its timeouts are placed
+ * again, now into level 0, and so on up the levels, so a timeout moves down at most once per level. The
+ * top level spans 2^32 ticks; a timeout further out waits in its last slot and is placed again from there.
+ * <p>
+ * Slots are intrusive FIFO lists of {@link Timeout} nodes, so a pending timeout costs no allocation besides
+ * itself, and timeouts due on the same tick expire in the order they were added. Not thread-safe: it
+ * belongs to the one thread that ticks it.
+ */
+final class TimingWheel<T extends TimingWheel.Timeout> {
+    private static final int ROOT_BITS = 8;
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVELS = 5;
+    private static final long MAX_DELTA = (1L << (ROOT_BITS + LEVEL_BITS * (LEVELS - 1))) - 1;
+
+    private final Timeout[][] heads = new Timeout[LEVELS][];
+    private final Timeout[][] tails = new Timeout[LEVELS][];
+    // Next tick to expire
+    private long currentTick;
+    private int size;
+
+    TimingWheel() {
+        for (int level = 0; level < LEVELS; level++) {
+            int slots = 1 << (level == 0 ? ROOT_BITS : LEVEL_BITS);
+            heads[level] = new Timeout[slots];
+            tails[level] = new Timeout[slots];
+        }
+    }
+
+    /**
+     * Node of a slot's list, extended by whatever is scheduled.
+     */
+    abstract static class Timeout {
+        private final long tick;
+        private Timeout next;
+
+        Timeout(long tick) {
+            this.tick = tick;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Schedules the timeout to expire on its tick, or on the next tick expired if that has passed.
+     */
+    void add(T timeout) {
+        place(timeout);
+        size++;
+    }
+
+    /**
+     * Expires every tick up to and including {@code tick}, handing each timeout due to {@code expired}.
+     */
+    @SuppressWarnings("unchecked")
+    void advanceTo(long tick, Consumer<? super T> expired) {
+        if (size == 0) {
+            // Nothing to cascade or expire, so the skipped ticks need no visit
+            currentTick = Math.max(currentTick, tick + 1);
+            return;
+        }
+
+        while (currentTick <= tick) {
+            int index = (int) (currentTick & ((1 << ROOT_BITS) - 1));
+            if (index == 0) {
+                cascade();
+            }
+            Timeout timeout = heads[0][index];
+            heads[0][index] = null;
+            tails[0][index] = null;
+            currentTick++;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.next = null;
+                size--;
+                expired.accept((T) timeout);
+                timeout = next;
+            }
+        }
+    }
+
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            int shift = ROOT_BITS + LEVEL_BITS * (level - 1);
+            int index = (int) ((currentTick >>> shift) & ((1 << LEVEL_BITS) - 1));
+            Timeout timeout = heads[level][index];
+            heads[level][index] = null;
+            tails[level][index] = null;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.next = null;
+                place(timeout);
+                timeout = next;
+            }
+            // The level above only turns over when this one wraps around too
+            if (index != 0) {
+                return;
+            }
+        }
+    }
+
+    private void place(Timeout timeout) {
+        long delta = Math.min(Math.max(timeout.tick - currentTick, 0), MAX_DELTA);
+        long tick = currentTick + delta;
+
+        int level = 0;
+        int shift = 0;
+        int bits = ROOT_BITS;
+        while (delta >= 1L << (shift + bits)) {
+            shift += bits;
+            bits = LEVEL_BITS;
+            level++;
+        }
+        int index = (int) ((tick >>> shift) & ((1 << bits) - 1));
+
+        if (tails[level][index] == null) {
+            heads[level][index] = timeout;
+        } else {
+            tails[level][index].next = timeout;
+        }
+        tails[level][index] = timeout;
+    }
+}
@@ -3,6 +3,10 @@ package io.mudis.mudisserver.utils;
 import java.io.IOException;
 import java.util.Properties;
 
+/**
+ * Server settings from {@code config.properties} on the classpath. A system property of the same name
+ * overrides the file, e.g. {@code -Dmudis.server.port=6380}, so several servers can run from one build.
+ */
 public class ConfigProperties {
     private static final Properties PROPERTIES = new Properties();
 
@@ -12,6 +16,9 @@ public class ConfigProperties {
                 throw new RuntimeException("Properties file 'config.properties' not found in classpath.");
             }
             PROPERTIES.load(input);
+            System.getProperties().stringPropertyNames().stream()
+                    .filter(key -> key.startsWith("mudis."))
+                    .forEach(key -> PROPERTIES.setProperty(key, System.getProperty(key)));
         } catch (IOException e) {
             throw new RuntimeException("Error loading properties file", e);
         }
@@ -20,4 +27,18 @@ public class ConfigProperties {
     public static String get(final String key) {
         return PROPERTIES.getProperty(key);
     }
+
+    public static String get(final String key, final String defaultValue) {
+        return PROPERTIES.getProperty(key, defaultValue);
+    }
+
+    public static int getInt(final String key, final int defaultValue) {
+        String value = PROPERTIES.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public static long getLong(final String key, final long defaultValue) {
+        String value = PROPERTIES.getProperty(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
 }
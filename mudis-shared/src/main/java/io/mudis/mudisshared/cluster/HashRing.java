@@ -0,0 +1,104 @@
+package io.mudis.mudisshared.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Consistent-hash ring assigning channels to cluster nodes. Each node is placed on the ring at
+ * {@code vnodes} points, hashed from "<node>#<i>", and a channel belongs to the node of the first point at
+ * or after the channel's own hash. Adding or removing a node therefore only moves the channels between its
+ * points and their predecessors, about 1/n of them, and the virtual nodes keep the shares even.
+ * <p>
+ * Servers and clients build the same ring from the same node list, so a client that has learned the
+ * topology (see {@link #describe()}) can send each channel's requests straight to its owner.
+ */
+public final class HashRing {
+    private final List<String> nodes;
+    private final int vnodes;
+    // Ring points in ascending order, and the index into nodes owning each
+    private final long[] points;
+    private final int[] owners;
+
+    public HashRing(List<String> nodes, int vnodes) {
+        if (nodes.isEmpty() || vnodes <= 0) {
+            throw new IllegalArgumentException("A ring needs at least one node and one virtual node per node");
+        }
+        // Sorted, so every member builds the same ring whatever order its node list is in
+        this.nodes = nodes.stream().distinct().sorted().toList();
+        this.vnodes = vnodes;
+
+        List<Point> ring = new ArrayList<>(this.nodes.size() * vnodes);
+        for (int node = 0; node < this.nodes.size(); node++) {
+            for (int i = 0; i < vnodes; i++) {
+                ring.add(new Point(hash(this.nodes.get(node) + "#" + i), node));
+            }
+        }
+        // Ties between equal hashes are broken by node, so they too resolve the same everywhere
+        ring.sort(Comparator.comparingLong(Point::hash).thenComparingInt(Point::node));
+        this.points = new long[ring.size()];
+        this.owners = new int[ring.size()];
+        for (int i = 0; i < ring.size(); i++) {
+            points[i] = ring.get(i).hash();
+            owners[i] = ring.get(i).node();
+        }
+    }
+
+    private record Point(long hash, int node) {
+    }
+
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    public int vnodes() {
+        return vnodes;
+    }
+
+    public String ownerOf(String channel) {
+        int slot = Arrays.binarySearch(points, hash(channel));
+        if (slot < 0) {
+            slot = -slot - 1;
+        }
+        return nodes.get(owners[slot == points.length ? 0 : slot]);
+    }
+
+    /**
+     * Describes the ring as its virtual node count followed by one node per line, the body of a CLUSTER reply.
+     */
+    public String describe() {
+        return vnodes + "\n" + String.join("\n", nodes);
+    }
+
+    /**
+     * Builds the ring a {@link #describe()} body stands for.
+     */
+    public static HashRing parse(String description) {
+        String[] lines = description.strip().split("\n");
+        List<String> nodes = Arrays.asList(lines).subList(1, lines.length);
+        try {
+            return new HashRing(nodes, Integer.parseInt(lines[0].strip()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid ring description: " + description, e);
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, finished with a murmur3 mix so nearby names spread over the ring.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb33fa64f62b9L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -4,10 +4,39 @@ public enum Operation {
     SHOW,
     PUBLISH,
     SUBSCRIBE,
-    UNSUBSCRIBE;
+    UNSUBSCRIBE,
+    INFO,
+    POP,
+    DRAIN,
+    SUBSCRIPTIONS,
+    PSUBSCRIBE,
+    PUNSUBSCRIBE,
+    SNAPSHOT,
+    DSUBSCRIBE,
+    ACK,
+    DUNSUBSCRIBE,
+    CLUSTER,
+    SYNC,
+    REPLICAOF,
+    GET,
+    SET,
+    DEL,
+    MGET,
+    MSET,
+    INCR;
+
+    // values() clones the array on every call, so the decoder looks ordinals up here instead
+    private static final Operation[] VALUES = values();
+
+    public static Operation fromOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= VALUES.length) {
+            throw new IllegalArgumentException("Unknown operation ordinal: " + ordinal);
+        }
+        return VALUES[ordinal];
+    }
 
     public static String asString() {
-        var ops = values();
+        var ops = VALUES;
         var sb = new StringBuilder();
         for (int i = 0; i < ops.length; i++) {
             sb.append(ops[i].name());
@@ -0,0 +1,28 @@
+package io.mudis.mudisshared.model;
+
+/**
+ * Server response correlated to the request that produced it.
+ */
+public record Reply(int requestId, Status status, String body) {
+
+    public static Reply ok(int requestId, String body) {
+        return new Reply(requestId, Status.OK, body);
+    }
+
+    public static Reply warn(int requestId, String body) {
+        return new Reply(requestId, Status.WARN, body);
+    }
+
+    public static Reply error(int requestId, String body) {
+        return new Reply(requestId, Status.ERROR, body);
+    }
+
+    public boolean isOk() {
+        return status == Status.OK;
+    }
+
+    @Override
+    public String toString() {
+        return status + ": " + body;
+    }
+}
@@ -0,0 +1,20 @@
+package io.mudis.mudisshared.model;
+
+public enum Status {
+    OK,
+    WARN,
+    ERROR,
+    // Message pushed to a stream subscription, tagged with the id of its SUBSCRIBE request
+    PUSH,
+    // Part of a larger reply; the frames that follow with the same request id carry the rest of the body
+    CONTINUE;
+
+    private static final Status[] VALUES = values();
+
+    public static Status fromOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= VALUES.length) {
+            throw new IllegalArgumentException("Unknown status ordinal: " + ordinal);
+        }
+        return VALUES[ordinal];
+    }
+}
@@ -0,0 +1,60 @@
+package io.mudis.mudisshared.protocol;
+
+import io.mudis.mudisshared.model.Operation;
+import io.mudis.mudisshared.model.Status;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Wire format shared by client and server. Every frame carries the protocol version and a request id,
+ * so a connection can have many requests in flight and match replies that arrive in any order.
+ * <pre>
+ * Request  Client→Server: [version:byte][operation:byte][request_id:int][args_length:int][args:bytes]
+ * Response Server→Client: [version:byte][status:byte][request_id:int][data_length:int][data:bytes]
+ * </pre>
+ * Request id 0 is reserved for frames that do not answer a particular request.
+ */
+public final class Protocol {
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 10; // version + operation/status + request id + length
+    public static final int NO_REQUEST_ID = 0;
+
+    private Protocol() {
+    }
+
+    /**
+     * Writes a request header with a zero length and returns the index of the length field,
+     * so the caller can stream the arguments and patch the length afterwards.
+     */
+    public static int writeRequestHeader(ByteBuf out, Operation op, int requestId) {
+        out.writeByte(VERSION);
+        out.writeByte(op.ordinal());
+        out.writeInt(requestId);
+        int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+        return lengthIndex;
+    }
+
+    /**
+     * Writes a response header with a zero length and returns the index of the length field.
+     */
+    public static int writeResponseHeader(ByteBuf out, Status status, int requestId) {
+        out.writeByte(VERSION);
+        out.writeByte(status.ordinal());
+        out.writeInt(requestId);
+        int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+        return lengthIndex;
+    }
+
+    public static void checkVersion(byte version) {
+        if (version != VERSION) {
+            throw new IllegalStateException("Unsupported protocol version: " + version);
+        }
+    }
+
+    public static void checkLength(int length) {
+        if (length < 0) {
+            throw new IllegalStateException("Negative frame length: " + length);
+        }
+    }
+}